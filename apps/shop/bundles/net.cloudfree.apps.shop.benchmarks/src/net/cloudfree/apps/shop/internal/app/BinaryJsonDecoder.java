@@ -0,0 +1,212 @@
+/*******************************************************************************
+ * Copyright (c) 2010 Gunnar Wagenknecht and others.
+ * All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html.
+ *
+ * Contributors:
+ *     Gunnar Wagenknecht - initial API and implementation
+ *******************************************************************************/
+package net.cloudfree.apps.shop.internal.app;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.codehaus.jackson.JsonGenerator;
+
+/**
+ * A reference decoder of the binary encoding written by
+ * {@link BinaryJsonGenerator}.
+ * <p>
+ * The decoder is written against the format table documented in
+ * {@link BinaryJsonGenerator} only (it does not share the type constants)
+ * and replays the decoded document into any {@link JsonGenerator}. Replaying
+ * into the JSON generator must produce exactly the JSON rendering of the same
+ * document, which is what {@link ResponseEncodingBenchmark} verifies before
+ * benchmarking.
+ * </p>
+ */
+final class BinaryJsonDecoder {
+
+	private final InputStream in;
+	private final List<String> fieldNames = new ArrayList<String>(Arrays.asList(BinaryJsonGenerator.SHARED_FIELD_NAMES));
+	private final List<String> strings = new ArrayList<String>(Arrays.asList(BinaryJsonGenerator.SHARED_STRINGS));
+
+	/**
+	 * Creates a new instance.
+	 *
+	 * @param in
+	 *            the stream to read from
+	 */
+	BinaryJsonDecoder(final InputStream in) {
+		this.in = in;
+	}
+
+	/**
+	 * Decodes the document and replays it into a generator.
+	 *
+	 * @param json
+	 *            the generator (not closed)
+	 * @throws IOException
+	 *             if the stream is not a valid document of the supported
+	 *             version
+	 */
+	void copyTo(final JsonGenerator json) throws IOException {
+		if ((read() != 'C') || (read() != 'F') || (read() != 'B')) {
+			throw new IOException("not a binary listing document");
+		}
+		final int version = read();
+		if (version != BinaryJsonGenerator.VERSION) {
+			throw new IOException("unsupported version: " + version);
+		}
+
+		int type;
+		while ((type = in.read()) >= 0) {
+			if (type >= 0xC0) {
+				// short string (appended to the table)
+				final String text = readUtf8(type - 0xC0);
+				append(strings, text);
+				json.writeString(text);
+			} else if (type >= 0x80) {
+				json.writeString(lookup(strings, type - 0x80));
+			} else if (type >= 0x40) {
+				json.writeFieldName(lookup(fieldNames, type - 0x40));
+			} else if (type >= 0x20) {
+				json.writeNumber(type - 0x30);
+			} else {
+				copyValue(type, json);
+			}
+		}
+	}
+
+	private void append(final List<String> table, final String value) {
+		if (table.size() < BinaryJsonGenerator.MAX_REFERENCES) {
+			table.add(value);
+		}
+	}
+
+	private void copyValue(final int type, final JsonGenerator json) throws IOException {
+		switch (type) {
+			case 0x01:
+				json.writeStartObject();
+				break;
+			case 0x02:
+				json.writeEndObject();
+				break;
+			case 0x03:
+				json.writeStartArray();
+				break;
+			case 0x04:
+				json.writeEndArray();
+				break;
+			case 0x05:
+				json.writeNull();
+				break;
+			case 0x06:
+				json.writeBoolean(false);
+				break;
+			case 0x07:
+				json.writeBoolean(true);
+				break;
+			case 0x08:
+				final long zigzag = readVarint();
+				json.writeNumber((zigzag >>> 1) ^ -(zigzag & 1));
+				break;
+			case 0x09:
+				json.writeNumber(Double.longBitsToDouble(readBits(8)));
+				break;
+			case 0x0A:
+				json.writeNumber(Float.intBitsToFloat((int) readBits(4)));
+				break;
+			case 0x0B:
+				json.writeNumber(readUtf8(readLength()));
+				break;
+			case 0x0C:
+				json.writeString(readUtf8(readLength()));
+				break;
+			case 0x0D:
+				json.writeString(lookup(strings, readLength()));
+				break;
+			case 0x0E:
+				final String name = readUtf8(readLength());
+				append(fieldNames, name);
+				json.writeFieldName(name);
+				break;
+			case 0x0F:
+				json.writeFieldName(lookup(fieldNames, readLength()));
+				break;
+			case 0x10:
+				final byte[] data = readBytes(readLength());
+				json.writeBinary(data, 0, data.length);
+				break;
+			default:
+				throw new IOException("unknown type: 0x" + Integer.toHexString(type));
+		}
+	}
+
+	private String lookup(final List<String> table, final int index) throws IOException {
+		if (index >= table.size()) {
+			throw new IOException("invalid reference: " + index);
+		}
+		return table.get(index);
+	}
+
+	private int read() throws IOException {
+		final int b = in.read();
+		if (b < 0) {
+			throw new EOFException("truncated document");
+		}
+		return b;
+	}
+
+	private long readBits(final int length) throws IOException {
+		long bits = 0;
+		for (int i = 0; i < length; i++) {
+			bits = (bits << 8) | read();
+		}
+		return bits;
+	}
+
+	private byte[] readBytes(final int length) throws IOException {
+		final byte[] bytes = new byte[length];
+		int offset = 0;
+		while (offset < length) {
+			final int read = in.read(bytes, offset, length - offset);
+			if (read < 0) {
+				throw new EOFException("truncated document");
+			}
+			offset += read;
+		}
+		return bytes;
+	}
+
+	private int readLength() throws IOException {
+		final long length = readVarint();
+		if ((length < 0) || (length > Integer.MAX_VALUE)) {
+			throw new IOException("invalid length: " + length);
+		}
+		return (int) length;
+	}
+
+	private String readUtf8(final int length) throws IOException {
+		return new String(readBytes(length), "UTF-8");
+	}
+
+	private long readVarint() throws IOException {
+		long value = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			final int b = read();
+			value |= (long) (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				return value;
+			}
+		}
+		throw new IOException("invalid varint");
+	}
+}
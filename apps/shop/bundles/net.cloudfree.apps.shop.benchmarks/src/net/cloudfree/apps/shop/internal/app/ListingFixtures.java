@@ -0,0 +1,341 @@
+/*******************************************************************************
+ * Copyright (c) 2010 Gunnar Wagenknecht and others.
+ * All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html.
+ *
+ * Contributors:
+ *     Gunnar Wagenknecht - initial API and implementation
+ *******************************************************************************/
+package net.cloudfree.apps.shop.internal.app;
+
+import java.io.OutputStream;
+import java.io.Writer;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.eclipse.gyrex.cds.model.IListing;
+import org.eclipse.gyrex.cds.model.IListingAttribute;
+import org.eclipse.gyrex.cds.service.query.ListingQuery;
+import org.eclipse.gyrex.cds.service.query.ListingQuery.ResultDimension;
+import org.eclipse.gyrex.cds.service.result.IListingResult;
+import org.eclipse.gyrex.cds.service.result.IListingResultFacet;
+import org.eclipse.gyrex.cds.service.result.IListingResultFacetValue;
+
+import org.apache.solr.common.SolrDocument;
+import org.apache.solr.common.SolrDocumentList;
+
+/**
+ * Synthetic listing data for the rendering benchmarks.
+ * <p>
+ * The Gyrex result interfaces are stubbed using dynamic proxies which answer
+ * every getter from a pre-populated map. The proxy dispatch cost is constant
+ * for a given fixture shape, so it does not skew comparisons between two
+ * versions of the rendering code.
+ * </p>
+ */
+final class ListingFixtures {
+
+	/**
+	 * A stream which discards everything but counts the bytes written.
+	 */
+	static final class CountingOutputStream extends OutputStream {
+		private long count;
+
+		@Override
+		public void close() {
+			// empty
+		}
+
+		/**
+		 * Returns the number of bytes written since the last reset.
+		 *
+		 * @return the count
+		 */
+		long getCount() {
+			return count;
+		}
+
+		void reset() {
+			count = 0;
+		}
+
+		@Override
+		public void write(final byte[] b, final int off, final int len) {
+			count += len;
+		}
+
+		@Override
+		public void write(final int b) {
+			count++;
+		}
+	}
+
+	/**
+	 * A writer which discards everything but counts the characters written.
+	 */
+	static final class CountingWriter extends Writer {
+		private long count;
+
+		@Override
+		public void close() {
+			// empty
+		}
+
+		@Override
+		public void flush() {
+			// empty
+		}
+
+		/**
+		 * Returns the number of characters written since the last reset.
+		 *
+		 * @return the count
+		 */
+		long getCount() {
+			return count;
+		}
+
+		void reset() {
+			count = 0;
+		}
+
+		@Override
+		public void write(final char[] cbuf, final int off, final int len) {
+			count += len;
+		}
+
+		@Override
+		public void write(final int c) {
+			count++;
+		}
+
+		@Override
+		public void write(final String str, final int off, final int len) {
+			count += len;
+		}
+	}
+
+	private static final class MapInvocationHandler implements InvocationHandler {
+		private final String type;
+		private final Map<String, Object> values;
+
+		MapInvocationHandler(final String type, final Map<String, Object> values) {
+			this.type = type;
+			this.values = values;
+		}
+
+		@Override
+		public Object invoke(final Object proxy, final Method method, final Object[] args) throws Throwable {
+			final String name = method.getName();
+			if ((null != args) && (args.length == 1) && values.containsKey(name + ":" + args[0])) {
+				return values.get(name + ":" + args[0]);
+			}
+			if (values.containsKey(name)) {
+				return values.get(name);
+			}
+			if ("hashCode".equals(name)) {
+				return System.identityHashCode(proxy);
+			}
+			if ("equals".equals(name)) {
+				return proxy == args[0];
+			}
+			if ("toString".equals(name)) {
+				return type;
+			}
+			final Class<?> returnType = method.getReturnType();
+			if (returnType == Boolean.TYPE) {
+				return Boolean.FALSE;
+			}
+			if (returnType == Integer.TYPE) {
+				return 0;
+			}
+			if (returnType == Long.TYPE) {
+				return 0L;
+			}
+			return null;
+		}
+	}
+
+	/**
+	 * Creates an attribute with values of a type depending on the attribute
+	 * index so that all specialized attribute writers are exercised.
+	 */
+	private static IListingAttribute createAttribute(final int index, final int listing) {
+		final Object[] values;
+		switch (index % 4) {
+			case 0:
+				values = new Object[] { "value-" + listing + "-" + index, "other-" + index };
+				break;
+			case 1:
+				values = new Object[] { Double.valueOf((listing * 1.25) + index) };
+				break;
+			case 2:
+				values = new Object[] { Long.valueOf(listing * 1000L + index) };
+				break;
+			default:
+				values = new Object[] { new Date(1262300400000L + listing) };
+				break;
+		}
+		final Map<String, Object> attribute = new HashMap<String, Object>();
+		attribute.put("getName", "attr" + index);
+		attribute.put("getValues", values);
+		return stub(IListingAttribute.class, attribute);
+	}
+
+	private static IListingResultFacet createFacet(final int index, final int cardinality) {
+		final IListingResultFacetValue[] values = new IListingResultFacetValue[cardinality];
+		for (int i = 0; i < cardinality; i++) {
+			final Map<String, Object> value = new HashMap<String, Object>();
+			value.put("getValue", "facet" + index + "-value" + i);
+			value.put("getCount", Long.valueOf(cardinality - i));
+			value.put("toFilterQuery", "+facet" + index + ":value" + i);
+			values[i] = stub(IListingResultFacetValue.class, value);
+		}
+		final Map<String, Object> facet = new HashMap<String, Object>();
+		facet.put("getId", "facet" + index);
+		facet.put("getLabel", "Facet " + index);
+		facet.put("getValues", values);
+		return stub(IListingResultFacet.class, facet);
+	}
+
+	/**
+	 * Creates a synthetic listing.
+	 *
+	 * @param index
+	 *            the listing number
+	 * @param attributeCount
+	 *            the number of additional attributes
+	 * @return the listing
+	 */
+	static IListing createListing(final int index, final int attributeCount) {
+		final Map<String, Object> listing = new HashMap<String, Object>();
+		final IListingAttribute[] attributes = new IListingAttribute[attributeCount + 3];
+		attributes[0] = createNamedAttribute("category", "category" + (index % 7));
+		attributes[1] = createNamedAttribute("price", Double.valueOf(9.99 + index));
+		attributes[2] = createNamedAttribute("type", "product");
+		for (int i = 0; i < attributeCount; i++) {
+			attributes[i + 3] = createAttribute(i, index);
+		}
+		for (final IListingAttribute attribute : attributes) {
+			listing.put("getAttribute:" + attribute.getName(), attribute);
+		}
+		listing.put("getAttributes", attributes);
+		listing.put("getId", "id" + index);
+		listing.put("getName", "product-" + index);
+		listing.put("getTitle", "Product Number " + index);
+		listing.put("getDescription", "A synthetic product description for product number " + index + " used for benchmarking the listing rendering.");
+		listing.put("getUriPath", "products/product-" + index);
+		return stub(IListing.class, listing);
+	}
+
+	private static IListingAttribute createNamedAttribute(final String name, final Object value) {
+		final Map<String, Object> attribute = new HashMap<String, Object>();
+		attribute.put("getName", name);
+		attribute.put("getValues", new Object[] { value });
+		return stub(IListingAttribute.class, attribute);
+	}
+
+	/**
+	 * Creates a request stub sufficient for building base URLs.
+	 *
+	 * @return the request
+	 */
+	static HttpServletRequest createRequest() {
+		final Map<String, Object> request = new HashMap<String, Object>();
+		request.put("getScheme", "http");
+		request.put("getServerName", "shop.example.com");
+		request.put("getServerPort", 80);
+		request.put("getContextPath", "");
+		request.put("getServletPath", "/listings");
+		return stub(HttpServletRequest.class, request);
+	}
+
+	/**
+	 * Creates a synthetic listing result.
+	 *
+	 * @param rows
+	 *            the number of listings
+	 * @param attributeCount
+	 *            the number of additional attributes per listing
+	 * @param facetCount
+	 *            the number of facets
+	 * @param facetCardinality
+	 *            the number of values per facet
+	 * @return the result
+	 */
+	static IListingResult createResult(final int rows, final int attributeCount, final int facetCount, final int facetCardinality) {
+		final ListingQuery query = new ListingQuery();
+		query.setQuery("shirt");
+		query.addFilterQuery("-type:variation");
+		query.addFilterQuery("+category:shirts");
+		query.setMaxResults(rows);
+		query.setResultDimension(ResultDimension.COMPACT);
+
+		final IListing[] listings = new IListing[rows];
+		for (int i = 0; i < rows; i++) {
+			listings[i] = createListing(i, attributeCount);
+		}
+		final IListingResultFacet[] facets = new IListingResultFacet[facetCount];
+		for (int i = 0; i < facetCount; i++) {
+			facets[i] = createFacet(i, facetCardinality);
+		}
+
+		final Map<String, Object> result = new HashMap<String, Object>();
+		result.put("getQuery", query);
+		result.put("getQueryTime", Long.valueOf(12));
+		result.put("getNumFound", Long.valueOf(rows * 10L));
+		result.put("getStartOffset", Long.valueOf(0));
+		result.put("getListings", listings);
+		result.put("getFacets", facets);
+		return stub(IListingResult.class, result);
+	}
+
+	/**
+	 * Creates a Solr document list as returned for the HTML listings.
+	 *
+	 * @param rows
+	 *            the number of documents
+	 * @param attributeCount
+	 *            the number of additional fields per document
+	 * @return the document list
+	 */
+	static SolrDocumentList createSolrDocuments(final int rows, final int attributeCount) {
+		final SolrDocumentList documents = new SolrDocumentList();
+		for (int i = 0; i < rows; i++) {
+			final SolrDocument document = new SolrDocument();
+			document.setField("id", "id" + i);
+			document.setField("title", "Product Number " + i);
+			document.setField("name", "product-" + i);
+			document.setField("price", Double.valueOf(9.99 + i));
+			document.setField("score", Float.valueOf(1.0f / (i + 1)));
+			document.setField("img48", "http://static.example.com/img48/" + i + ".png");
+			document.setField("uripath", "products/product-" + i);
+			document.setField("description", "A synthetic product description for product number " + i + ".");
+			for (int a = 0; a < attributeCount; a++) {
+				document.setField("attr" + a, "value-" + i + "-" + a);
+			}
+			documents.add(document);
+		}
+		documents.setNumFound(rows * 10L);
+		documents.setStart(0);
+		return documents;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static <T> T stub(final Class<T> type, final Map<String, Object> values) {
+		return (T) Proxy.newProxyInstance(ListingFixtures.class.getClassLoader(), new Class[] { type }, new MapInvocationHandler(type.getSimpleName(), values));
+	}
+
+	private ListingFixtures() {
+		// empty
+	}
+}
@@ -0,0 +1,186 @@
+/*******************************************************************************
+ * Copyright (c) 2010 Gunnar Wagenknecht and others.
+ * All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html.
+ *
+ * Contributors:
+ *     Gunnar Wagenknecht - initial API and implementation
+ *******************************************************************************/
+package net.cloudfree.apps.shop.internal.app;
+
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.http.HttpServletRequest;
+
+import net.cloudfree.apps.shop.internal.app.ListingFixtures.CountingOutputStream;
+import net.cloudfree.apps.shop.internal.app.ListingFixtures.CountingWriter;
+
+import org.eclipse.gyrex.cds.model.IListing;
+import org.eclipse.gyrex.cds.service.result.IListingResult;
+import org.eclipse.gyrex.cds.service.result.IListingResultFacet;
+
+import org.codehaus.jackson.JsonGenerator;
+
+import org.apache.solr.common.SolrDocument;
+import org.apache.solr.common.SolrDocumentList;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Benchmarks for the rendering paths of the listing servlets.
+ * <p>
+ * Every benchmark operation renders one complete response (or one facet) into
+ * a discarding writer, so the throughput is reported in responses per second
+ * and the GC profiler's <code>gc.alloc.rate.norm</code> is the number of bytes
+ * allocated per response.
+ * </p>
+ * <p>
+ * The <code>encoded*</code> benchmarks include the UTF-8 encoding into bytes
+ * and compare the pooled {@link ResponseWriter} with a {@link PrintWriter} on
+ * top of an {@link OutputStreamWriter} (the former servlet writer).
+ * </p>
+ * <p>
+ * Run {@link #main(String[])} or use the JMH command line, eg.
+ * <code>-p rows=10,100 -p attributes=20 -prof gc</code>.
+ * </p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+public class ListingRenderingBenchmark {
+
+	public static void main(final String[] args) throws RunnerException {
+		new Runner(new OptionsBuilder().include(ListingRenderingBenchmark.class.getSimpleName()).addProfiler(GCProfiler.class).build()).run();
+	}
+
+	/** number of listings per response */
+	@Param({ "10", "100" })
+	public int rows;
+
+	/** number of additional attributes per listing */
+	@Param({ "5", "20" })
+	public int attributes;
+
+	/** number of facets per response */
+	@Param({ "10" })
+	public int facets;
+
+	/** number of values per facet */
+	@Param({ "10", "50" })
+	public int facetCardinality;
+
+	private IListingResult productsResult;
+	private IListingResult singleProductResult;
+	private SolrDocumentList documents;
+	private HttpServletRequest request;
+	private ListingServlet listingServlet;
+	private CountingWriter writer;
+	private CountingOutputStream out;
+	private ResponseCompression buffers;
+
+	@Benchmark
+	public long facet() throws IOException {
+		writer.reset();
+		final JsonGenerator json = ListingJsonWriter.createGenerator(writer, false);
+		final IListingResultFacet facet = productsResult.getFacets()[0];
+		new ListingJsonWriter(JsonListingServlet.getBaseUrl(request).toString()).writeFacet(facet, json);
+		json.close();
+		return writer.getCount();
+	}
+
+	@Benchmark
+	public long encodedProductsResultPrintWriter() throws IOException {
+		out.reset();
+		final PrintWriter printWriter = new PrintWriter(new OutputStreamWriter(out, "UTF-8"));
+		final JsonGenerator json = ListingJsonWriter.createGenerator(printWriter, false);
+		new ListingJsonWriter(JsonListingServlet.getBaseUrl(request).toString()).writeProductsResult(productsResult, json);
+		json.close();
+		printWriter.close();
+		return out.getCount();
+	}
+
+	@Benchmark
+	public long encodedProductsResultResponseWriter() throws IOException {
+		out.reset();
+		final ResponseWriter responseWriter = new ResponseWriter(new ResponseOutputStream(out, null, buffers));
+		final JsonGenerator json = ListingJsonWriter.createGenerator(responseWriter, false);
+		new ListingJsonWriter(JsonListingServlet.getBaseUrl(request).toString()).writeProductsResult(productsResult, json);
+		json.close();
+		responseWriter.close();
+		return out.getCount();
+	}
+
+	@Benchmark
+	public long htmlListings() throws IOException {
+		out.reset();
+		final ResponseWriter responseWriter = new ResponseWriter(new ResponseOutputStream(out, null, buffers));
+		for (final SolrDocument document : documents) {
+			listingServlet.writeListing(document, responseWriter, request, PriceFormatter.DEFAULT);
+		}
+		responseWriter.close();
+		return out.getCount();
+	}
+
+	@Benchmark
+	public long product() throws IOException {
+		writer.reset();
+		final JsonGenerator json = ListingJsonWriter.createGenerator(writer, false);
+		final IListing listing = productsResult.getListings()[0];
+		new ListingJsonWriter(JsonListingServlet.getBaseUrl(request).toString()).writeProduct(listing, json, null);
+		json.close();
+		return writer.getCount();
+	}
+
+	@Benchmark
+	public long productsResult() throws IOException {
+		writer.reset();
+		final JsonGenerator json = ListingJsonWriter.createGenerator(writer, false);
+		new ListingJsonWriter(JsonListingServlet.getBaseUrl(request).toString()).writeProductsResult(productsResult, json);
+		json.close();
+		return writer.getCount();
+	}
+
+	@Setup
+	public void setup() {
+		productsResult = ListingFixtures.createResult(rows, attributes, facets, facetCardinality);
+		singleProductResult = ListingFixtures.createResult(1, attributes, 0, 0);
+		documents = ListingFixtures.createSolrDocuments(rows, attributes);
+		request = ListingFixtures.createRequest();
+		listingServlet = new ListingServlet(null, null, null, null, null);
+		writer = new CountingWriter();
+		out = new CountingOutputStream();
+		buffers = new ResponseCompression(false, ResponseCompression.DEFAULT_LEVEL, ResponseCompression.DEFAULT_MIN_SIZE, 1, ResponseOutputStream.DEFAULT_BUFFER_SIZE, 1);
+	}
+
+	@Benchmark
+	public long singleProductResult() throws IOException {
+		writer.reset();
+		final JsonGenerator json = ListingJsonWriter.createGenerator(writer, false);
+		new ListingJsonWriter(JsonListingServlet.getBaseUrl(request).toString()).writeSingleProductResult(singleProductResult, json, null);
+		json.close();
+		return writer.getCount();
+	}
+}
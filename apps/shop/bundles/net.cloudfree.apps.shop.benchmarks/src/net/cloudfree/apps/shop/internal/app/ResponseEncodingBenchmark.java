@@ -0,0 +1,175 @@
+/*******************************************************************************
+ * Copyright (c) 2010 Gunnar Wagenknecht and others.
+ * All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html.
+ *
+ * Contributors:
+ *     Gunnar Wagenknecht - initial API and implementation
+ *******************************************************************************/
+package net.cloudfree.apps.shop.internal.app;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.StringWriter;
+import java.util.concurrent.TimeUnit;
+
+import net.cloudfree.apps.shop.internal.app.ListingFixtures.CountingOutputStream;
+
+import org.eclipse.gyrex.cds.service.result.IListingResult;
+
+import org.codehaus.jackson.JsonGenerator;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Compares the JSON and the binary encoding of the listing responses.
+ * <p>
+ * Every benchmark operation encodes one complete response into a discarding
+ * stream (JSON as UTF-8 like the servlet does) and returns the number of bytes,
+ * so the throughput is the encode rate. {@link #main(String[])} verifies that
+ * the binary responses decode to exactly the JSON responses (using
+ * {@link BinaryJsonDecoder}) and prints the response sizes of both encodings
+ * before running the benchmarks.
+ * </p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+public class ResponseEncodingBenchmark {
+
+	public static void main(final String[] args) throws IOException, RunnerException {
+		for (final String rows : new String[] { "10", "100" }) {
+			for (final String attributes : new String[] { "5", "20" }) {
+				final ResponseEncodingBenchmark benchmark = new ResponseEncodingBenchmark();
+				benchmark.rows = Integer.parseInt(rows);
+				benchmark.attributes = Integer.parseInt(attributes);
+				benchmark.setup();
+				benchmark.verifyRoundTrip();
+				final long json = benchmark.jsonProductsResult();
+				final long binary = benchmark.binaryProductsResult();
+				System.out.println(String.format("rows=%s attributes=%s: json=%d bytes binary=%d bytes (%.0f%%) single json=%d bytes binary=%d bytes", rows, attributes, json, binary, (binary * 100d) / json, benchmark.jsonSingleProductResult(), benchmark.binarySingleProductResult()));
+			}
+		}
+		new Runner(new OptionsBuilder().include(ResponseEncodingBenchmark.class.getSimpleName()).addProfiler(GCProfiler.class).build()).run();
+	}
+
+	/** number of listings per response */
+	@Param({ "10", "100" })
+	public int rows;
+
+	/** number of additional attributes per listing */
+	@Param({ "5", "20" })
+	public int attributes;
+
+	private IListingResult productsResult;
+	private IListingResult singleProductResult;
+	private ListingJsonWriter listingWriter;
+	private CountingOutputStream out;
+
+	@Benchmark
+	public long binaryProductsResult() throws IOException {
+		out.reset();
+		final JsonGenerator json = new BinaryJsonGenerator(out);
+		listingWriter.writeProductsResult(productsResult, json);
+		json.close();
+		return out.getCount();
+	}
+
+	@Benchmark
+	public long binarySingleProductResult() throws IOException {
+		out.reset();
+		final JsonGenerator json = new BinaryJsonGenerator(out);
+		listingWriter.writeSingleProductResult(singleProductResult, json, null);
+		json.close();
+		return out.getCount();
+	}
+
+	@Benchmark
+	public long jsonProductsResult() throws IOException {
+		out.reset();
+		final JsonGenerator json = ListingJsonWriter.createGenerator(new OutputStreamWriter(out, "UTF-8"), false);
+		listingWriter.writeProductsResult(productsResult, json);
+		json.close();
+		return out.getCount();
+	}
+
+	@Benchmark
+	public long jsonSingleProductResult() throws IOException {
+		out.reset();
+		final JsonGenerator json = ListingJsonWriter.createGenerator(new OutputStreamWriter(out, "UTF-8"), false);
+		listingWriter.writeSingleProductResult(singleProductResult, json, null);
+		json.close();
+		return out.getCount();
+	}
+
+	private void assertRoundTrip(final String name, final IListingResult result, final boolean single) throws IOException {
+		final StringWriter expected = new StringWriter();
+		final JsonGenerator json = ListingJsonWriter.createGenerator(expected, false);
+		write(result, single, json);
+		json.close();
+
+		final ByteArrayOutputStream binary = new ByteArrayOutputStream();
+		final JsonGenerator binaryJson = new BinaryJsonGenerator(binary);
+		write(result, single, binaryJson);
+		binaryJson.close();
+
+		final StringWriter decoded = new StringWriter();
+		final JsonGenerator decodedJson = ListingJsonWriter.createGenerator(decoded, false);
+		new BinaryJsonDecoder(new ByteArrayInputStream(binary.toByteArray())).copyTo(decodedJson);
+		decodedJson.close();
+
+		if (!expected.toString().equals(decoded.toString())) {
+			throw new IllegalStateException(String.format("binary %s (rows=%d attributes=%d) does not decode to the JSON rendering%nexpected: %s%n decoded: %s", name, rows, attributes, expected, decoded));
+		}
+	}
+
+	@Setup
+	public void setup() {
+		productsResult = ListingFixtures.createResult(rows, attributes, 10, 10);
+		singleProductResult = ListingFixtures.createResult(1, attributes, 0, 0);
+		listingWriter = new ListingJsonWriter(JsonListingServlet.getBaseUrl(ListingFixtures.createRequest()).toString());
+		out = new CountingOutputStream();
+	}
+
+	/**
+	 * Verifies that the binary responses decode to the JSON responses.
+	 *
+	 * @throws IOException
+	 * @throws IllegalStateException
+	 *             if a response differs
+	 */
+	void verifyRoundTrip() throws IOException {
+		assertRoundTrip("products result", productsResult, false);
+		assertRoundTrip("single product result", singleProductResult, true);
+	}
+
+	private void write(final IListingResult result, final boolean single, final JsonGenerator json) throws IOException {
+		if (single) {
+			listingWriter.writeSingleProductResult(result, json, null);
+		} else {
+			listingWriter.writeProductsResult(result, json);
+		}
+	}
+}
@@ -0,0 +1,110 @@
+/*******************************************************************************
+ * Copyright (c) 2010 Gunnar Wagenknecht and others.
+ * All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html.
+ *
+ * Contributors:
+ *     Gunnar Wagenknecht - initial API and implementation
+ *******************************************************************************/
+package net.cloudfree.apps.shop.internal.app;
+
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Measures typeahead lookups in the {@link SuggestIndex}.
+ * <p>
+ * The index is built from random titles of one to four words. Every benchmark
+ * operation looks up the top ten suggestions for a random prefix of one to
+ * all letters of a word. {@link #main(String[])} prints the memory used by the
+ * builder and the snapshot per million keys before running the benchmarks.
+ * </p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+public class SuggestIndexBenchmark {
+
+	private static final String[] WORDS = { "black", "blue", "cap", "cool", "cotton", "crew", "fit", "hoodie", "jeans", "logo", "neck", "organic", "red", "shirt", "slim", "tee", "vintage", "white", "zip", "caf\u00e9" };
+
+	public static void main(final String[] args) throws UnsupportedEncodingException, RunnerException {
+		for (final String texts : new String[] { "100000", "1000000" }) {
+			final Runtime runtime = Runtime.getRuntime();
+			System.gc();
+			final long used = runtime.totalMemory() - runtime.freeMemory();
+			final SuggestIndex.Builder builder = createBuilder(new Random(1), Integer.parseInt(texts));
+			System.gc();
+			final long builderSize = (runtime.totalMemory() - runtime.freeMemory()) - used;
+			final SuggestIndex.Snapshot snapshot = builder.build();
+			final long memorySize = snapshot.getMemorySize();
+			final double millionKeys = snapshot.size() / 1000000d;
+			System.out.println(String.format("texts=%s: keys=%d builder=%d KB (%.1f MB per million keys) snapshot=%d KB (%.1f MB per million keys)", texts, snapshot.size(), builderSize / 1024, (builderSize / millionKeys) / (1024 * 1024), memorySize / 1024, (memorySize / millionKeys) / (1024 * 1024)));
+		}
+		new Runner(new OptionsBuilder().include(SuggestIndexBenchmark.class.getSimpleName()).build()).run();
+	}
+
+	private static SuggestIndex.Builder createBuilder(final Random random, final int texts) {
+		final SuggestIndex.Builder builder = new SuggestIndex.Builder();
+		for (int i = 0; i < texts; i++) {
+			final StringBuilder text = new StringBuilder();
+			for (int j = random.nextInt(4); j >= 0; j--) {
+				text.append(WORDS[random.nextInt(WORDS.length)]).append(' ');
+			}
+			text.append(i);
+			builder.add(text.toString(), random.nextInt(1000));
+		}
+		return builder;
+	}
+
+	/** number of suggestion texts */
+	@Param({ "100000", "1000000" })
+	public int texts;
+
+	private SuggestIndex.Snapshot snapshot;
+	private byte[][] prefixes;
+	private List<Integer> suggestions;
+	private int next;
+
+	@Setup
+	public void setup() throws UnsupportedEncodingException {
+		final Random random = new Random(1);
+		snapshot = createBuilder(random, texts).build();
+		prefixes = new byte[1024][];
+		for (int i = 0; i < prefixes.length; i++) {
+			final String word = WORDS[random.nextInt(WORDS.length)];
+			prefixes[i] = SuggestIndex.normalize(word.substring(0, 1 + random.nextInt(word.length()))).getBytes("UTF-8");
+		}
+		suggestions = new ArrayList<Integer>(10);
+	}
+
+	@Benchmark
+	public int suggest() {
+		suggestions.clear();
+		snapshot.suggest(prefixes[next++ & (prefixes.length - 1)], 10, suggestions);
+		return suggestions.size();
+	}
+}
@@ -25,6 +25,8 @@ public class ShopActivator extends BaseBundleActivator {
 
 	private static final AtomicReference<ShopActivator> instance = new AtomicReference<ShopActivator>();
 
+	private volatile BundleContext bundleContext;
+
 	public static ShopActivator getInstance() {
 		final ShopActivator activator = instance.get();
 		if (null == activator) {
@@ -44,6 +46,7 @@ public class ShopActivator extends BaseBundleActivator {
 
 	@Override
 	protected void doStart(final BundleContext context) throws Exception {
+		bundleContext = context;
 		instance.set(this);
 
 		// register fan shop provider
@@ -53,5 +56,19 @@ public class ShopActivator extends BaseBundleActivator {
 	@Override
 	protected void doStop(final BundleContext context) throws Exception {
 		instance.set(null);
+		bundleContext = null;
+	}
+
+	/**
+	 * Returns the bundle context.
+	 * 
+	 * @return the bundle context
+	 */
+	public BundleContext getBundleContext() {
+		final BundleContext context = bundleContext;
+		if (null == context) {
+			throw new IllegalStateException("inactive");
+		}
+		return context;
 	}
 }
@@ -0,0 +1,551 @@
+/*******************************************************************************
+ * Copyright (c) 2010 Gunnar Wagenknecht and others.
+ * All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html.
+ *
+ * Contributors:
+ *     Gunnar Wagenknecht - initial API and implementation
+ *******************************************************************************/
+package net.cloudfree.apps.shop.internal.app;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.codehaus.jackson.JsonGenerationException;
+import org.codehaus.jackson.JsonGenerator;
+import org.codehaus.jackson.JsonParser;
+import org.codehaus.jackson.JsonToken;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.commons.lang.math.NumberUtils;
+
+/**
+ * A generator writing the listing documents in a compact binary encoding.
+ * <p>
+ * The encoding carries the same logical document as the JSON generator (it is
+ * a drop-in for {@link ListingJsonWriter}) but needs no escaping, number
+ * formatting or quoting. Every value starts with a type byte:
+ * </p>
+ * <table>
+ * <tr><td><code>0x01 0x02</code></td><td>start/end object</td></tr>
+ * <tr><td><code>0x03 0x04</code></td><td>start/end array</td></tr>
+ * <tr><td><code>0x05 0x06 0x07</code></td><td>null, false, true</td></tr>
+ * <tr><td><code>0x08</code></td><td>integer (zigzag varint)</td></tr>
+ * <tr><td><code>0x09 0x0A</code></td><td>double (8 bytes), float (4 bytes), big-endian IEEE 754</td></tr>
+ * <tr><td><code>0x0B</code></td><td>decimal (varint length, ASCII digits)</td></tr>
+ * <tr><td><code>0x0C</code></td><td>long string (varint length, UTF-8)</td></tr>
+ * <tr><td><code>0x0D</code></td><td>string reference (varint index)</td></tr>
+ * <tr><td><code>0x0E</code></td><td>field name (varint length, UTF-8)</td></tr>
+ * <tr><td><code>0x0F</code></td><td>field name reference (varint index)</td></tr>
+ * <tr><td><code>0x10</code></td><td>binary (varint length, bytes)</td></tr>
+ * <tr><td><code>0x20-0x3F</code></td><td>small integer -16..15</td></tr>
+ * <tr><td><code>0x40-0x7F</code></td><td>field name reference 0..63</td></tr>
+ * <tr><td><code>0x80-0xBF</code></td><td>string reference 0..63</td></tr>
+ * <tr><td><code>0xC0-0xFF</code></td><td>short string of 0..63 UTF-8 bytes</td></tr>
+ * </table>
+ * <p>
+ * The document starts with the header <code>CFB</code> and the
+ * {@link #VERSION version}. Field names and short strings are written once and
+ * referenced afterwards. The reference tables start with the
+ * {@link #SHARED_FIELD_NAMES shared field names} and
+ * {@link #SHARED_STRINGS shared strings} of the version, so the common fields
+ * are single bytes from the start. Every field name and short string written
+ * literally is appended to its table until it holds {@value #MAX_REFERENCES}
+ * entries.
+ * </p>
+ * <p>
+ * The benchmarks fragment contains a reference decoder
+ * (<code>BinaryJsonDecoder</code>) which verifies that every encoded
+ * response decodes to its JSON rendering.
+ * </p>
+ */
+final class BinaryJsonGenerator extends JsonGenerator {
+
+	/** the content type of the encoding */
+	static final String CONTENT_TYPE = "application/x-cloudfree-binary-json";
+
+	/** the version of the encoding (and the shared tables) */
+	static final int VERSION = 1;
+
+	/** the maximum size of a reference table */
+	static final int MAX_REFERENCES = 1024;
+
+	/** field names known to both sides (must only be appended to) */
+	static final String[] SHARED_FIELD_NAMES = { "id", "name", "title", "description", "uri", "uripath", "category", "shopPrice", "type", "parentid", "attributes", "version", "query", "queryTime", "numFound", "startOffset", "nextCursor", "facets", "products", "product", "label", "values", "value", "count", "filter", "filters", "sortFields", "dimension", "advancedQuery", "missing", "variations", "master" };
+
+	/** strings known to both sides (must only be appended to) */
+	static final String[] SHARED_STRINGS = { "1.0", "application/x-gyrex-fanshop-products-json", "application/x-gyrex-fanshop-product-json", "application/x-gyrex-fanshop-products-by-id-json", "full", "compact", "asc", "desc", "variable-product", "variation" };
+
+	private static final int START_OBJECT = 0x01;
+	private static final int END_OBJECT = 0x02;
+	private static final int START_ARRAY = 0x03;
+	private static final int END_ARRAY = 0x04;
+	private static final int NULL = 0x05;
+	private static final int FALSE = 0x06;
+	private static final int TRUE = 0x07;
+	private static final int INTEGER = 0x08;
+	private static final int DOUBLE = 0x09;
+	private static final int FLOAT = 0x0A;
+	private static final int DECIMAL = 0x0B;
+	private static final int LONG_STRING = 0x0C;
+	private static final int STRING_REFERENCE = 0x0D;
+	private static final int FIELD_NAME = 0x0E;
+	private static final int FIELD_NAME_REFERENCE = 0x0F;
+	private static final int BINARY = 0x10;
+	private static final int SMALL_INTEGER = 0x30;
+	private static final int SHORT_FIELD_NAME_REFERENCE = 0x40;
+	private static final int SHORT_STRING_REFERENCE = 0x80;
+	private static final int SHORT_STRING = 0xC0;
+
+	/** the limit of the single byte references and short strings */
+	private static final int SHORT_LIMIT = 64;
+
+	private static final int BUFFER_SIZE = 8192;
+
+	private static final Map<String, Integer> sharedFieldNames = createTable(SHARED_FIELD_NAMES);
+	private static final Map<String, Integer> sharedStrings = createTable(SHARED_STRINGS);
+
+	private static Map<String, Integer> createTable(final String[] values) {
+		final Map<String, Integer> table = new HashMap<String, Integer>(values.length * 2);
+		for (int i = 0; i < values.length; i++) {
+			table.put(values[i], i);
+		}
+		return table;
+	}
+
+	/**
+	 * Indicates if a request accepts the binary encoding.
+	 * <p>
+	 * The content type must be listed explicitly (wildcards do not count) with
+	 * a quality greater than zero.
+	 * </p>
+	 *
+	 * @param req
+	 *            the request
+	 * @return <code>true</code> if the response may be binary
+	 */
+	static boolean isAccepted(final HttpServletRequest req) {
+		final String accept = req.getHeader("Accept");
+		if ((null == accept) || (accept.indexOf(CONTENT_TYPE) < 0)) {
+			return false;
+		}
+		for (final String element : StringUtils.split(accept, ',')) {
+			final String[] params = StringUtils.split(element, ';');
+			if ((params.length == 0) || !params[0].trim().equalsIgnoreCase(CONTENT_TYPE)) {
+				continue;
+			}
+			for (int i = 1; i < params.length; i++) {
+				final String param = params[i].trim();
+				if (param.startsWith("q=")) {
+					return NumberUtils.toDouble(param.substring(2).trim(), 0d) > 0d;
+				}
+			}
+			return true;
+		}
+		return false;
+	}
+
+	private static int utf8Length(final String text) {
+		final int length = text.length();
+		int bytes = length;
+		for (int i = 0; i < length; i++) {
+			final char c = text.charAt(i);
+			if (c >= 0x80) {
+				if (c < 0x800) {
+					bytes++;
+				} else if (Character.isHighSurrogate(c) && ((i + 1) < length) && Character.isLowSurrogate(text.charAt(i + 1))) {
+					// four bytes for two chars
+					bytes += 2;
+					i++;
+				} else {
+					bytes += 2;
+				}
+			}
+		}
+		return bytes;
+	}
+
+	private final OutputStream out;
+	private final byte[] buffer = new byte[BUFFER_SIZE];
+	private int position;
+	private Map<String, Integer> fieldNames;
+	private Map<String, Integer> strings;
+	private boolean closed;
+
+	/**
+	 * Creates a new instance.
+	 *
+	 * @param out
+	 *            the stream to write to (closed with the generator)
+	 */
+	BinaryJsonGenerator(final OutputStream out) {
+		this.out = out;
+		buffer[position++] = 'C';
+		buffer[position++] = 'F';
+		buffer[position++] = 'B';
+		buffer[position++] = VERSION;
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		flushBuffer();
+		out.close();
+	}
+
+	@Override
+	public void copyCurrentEvent(final JsonParser jp) throws IOException {
+		final JsonToken token = jp.getCurrentToken();
+		if (null == token) {
+			throw new JsonGenerationException("no current event to copy");
+		}
+		switch (token) {
+			case START_OBJECT:
+				writeStartObject();
+				break;
+			case END_OBJECT:
+				writeEndObject();
+				break;
+			case START_ARRAY:
+				writeStartArray();
+				break;
+			case END_ARRAY:
+				writeEndArray();
+				break;
+			case FIELD_NAME:
+				writeFieldName(jp.getCurrentName());
+				break;
+			case VALUE_STRING:
+				writeString(jp.getText());
+				break;
+			case VALUE_NUMBER_INT:
+				switch (jp.getNumberType()) {
+					case INT:
+						writeNumber(jp.getIntValue());
+						break;
+					case BIG_INTEGER:
+						writeNumber(jp.getBigIntegerValue());
+						break;
+					default:
+						writeNumber(jp.getLongValue());
+						break;
+				}
+				break;
+			case VALUE_NUMBER_FLOAT:
+				switch (jp.getNumberType()) {
+					case BIG_DECIMAL:
+						writeNumber(jp.getDecimalValue());
+						break;
+					default:
+						writeNumber(jp.getDoubleValue());
+						break;
+				}
+				break;
+			case VALUE_TRUE:
+				writeBoolean(true);
+				break;
+			case VALUE_FALSE:
+				writeBoolean(false);
+				break;
+			case VALUE_NULL:
+				writeNull();
+				break;
+			default:
+				throw new JsonGenerationException("unsupported event: " + token);
+		}
+	}
+
+	@Override
+	public void copyCurrentStructure(final JsonParser jp) throws IOException {
+		JsonToken token = jp.getCurrentToken();
+		if (token == JsonToken.FIELD_NAME) {
+			writeFieldName(jp.getCurrentName());
+			token = jp.nextToken();
+		}
+		if (token == JsonToken.START_OBJECT) {
+			writeStartObject();
+			while (jp.nextToken() != JsonToken.END_OBJECT) {
+				copyCurrentStructure(jp);
+			}
+			writeEndObject();
+		} else if (token == JsonToken.START_ARRAY) {
+			writeStartArray();
+			while (jp.nextToken() != JsonToken.END_ARRAY) {
+				copyCurrentStructure(jp);
+			}
+			writeEndArray();
+		} else {
+			copyCurrentEvent(jp);
+		}
+	}
+
+	private void ensureCapacity(final int length) throws IOException {
+		if ((position + length) > buffer.length) {
+			flushBuffer();
+		}
+	}
+
+	@Override
+	public void flush() throws IOException {
+		flushBuffer();
+		out.flush();
+	}
+
+	private void flushBuffer() throws IOException {
+		if (position > 0) {
+			out.write(buffer, 0, position);
+			position = 0;
+		}
+	}
+
+	/**
+	 * Returns the reference index of a value.
+	 *
+	 * @return the index or <code>-1</code> if the value was appended to the
+	 *         table (or is not referenced at all)
+	 */
+	private int reference(final Map<String, Integer> shared, final Map<String, Integer> table, final String value) {
+		final Integer sharedIndex = shared.get(value);
+		if (null != sharedIndex) {
+			return sharedIndex.intValue();
+		}
+		final Integer index = table.get(value);
+		if (null != index) {
+			return index.intValue();
+		}
+		final int size = shared.size() + table.size();
+		if (size < MAX_REFERENCES) {
+			table.put(value, size);
+		}
+		return -1;
+	}
+
+	@Override
+	public void useDefaultPrettyPrinter() {
+		// not applicable
+	}
+
+	@Override
+	public void writeBinary(final byte[] data, final int offset, final int len) throws IOException {
+		writeByte(BINARY);
+		writeVarint(len);
+		flushBuffer();
+		out.write(data, offset, len);
+	}
+
+	@Override
+	public void writeBoolean(final boolean state) throws IOException {
+		writeByte(state ? TRUE : FALSE);
+	}
+
+	private void writeByte(final int b) throws IOException {
+		ensureCapacity(1);
+		buffer[position++] = (byte) b;
+	}
+
+	@Override
+	public void writeEndArray() throws IOException {
+		writeByte(END_ARRAY);
+	}
+
+	@Override
+	public void writeEndObject() throws IOException {
+		writeByte(END_OBJECT);
+	}
+
+	@Override
+	public void writeFieldName(final String name) throws IOException {
+		if (null == fieldNames) {
+			fieldNames = new HashMap<String, Integer>();
+		}
+		final int index = reference(sharedFieldNames, fieldNames, name);
+		if (index >= 0) {
+			writeReference(SHORT_FIELD_NAME_REFERENCE, FIELD_NAME_REFERENCE, index);
+			return;
+		}
+		writeByte(FIELD_NAME);
+		writeVarint(utf8Length(name));
+		writeUtf8(name);
+	}
+
+	@Override
+	public void writeNull() throws IOException {
+		writeByte(NULL);
+	}
+
+	@Override
+	public void writeNumber(final BigInteger value) throws IOException {
+		if (null == value) {
+			writeNull();
+		} else if (value.bitLength() < 64) {
+			writeNumber(value.longValue());
+		} else {
+			writeNumber(value.toString());
+		}
+	}
+
+	@Override
+	public void writeNumber(final BigDecimal value) throws IOException {
+		if (null == value) {
+			writeNull();
+		} else {
+			writeNumber(value.toString());
+		}
+	}
+
+	@Override
+	public void writeNumber(final double value) throws IOException {
+		ensureCapacity(9);
+		buffer[position++] = DOUBLE;
+		final long bits = Double.doubleToLongBits(value);
+		for (int shift = 56; shift >= 0; shift -= 8) {
+			buffer[position++] = (byte) (bits >>> shift);
+		}
+	}
+
+	@Override
+	public void writeNumber(final float value) throws IOException {
+		ensureCapacity(5);
+		buffer[position++] = FLOAT;
+		final int bits = Float.floatToIntBits(value);
+		for (int shift = 24; shift >= 0; shift -= 8) {
+			buffer[position++] = (byte) (bits >>> shift);
+		}
+	}
+
+	@Override
+	public void writeNumber(final int value) throws IOException {
+		writeNumber((long) value);
+	}
+
+	@Override
+	public void writeNumber(final long value) throws IOException {
+		if ((value >= -16) && (value < 16)) {
+			writeByte(SMALL_INTEGER + (int) value);
+			return;
+		}
+		writeByte(INTEGER);
+		writeVarint((value << 1) ^ (value >> 63));
+	}
+
+	@Override
+	public void writeNumber(final String encodedValue) throws IOException {
+		writeByte(DECIMAL);
+		writeVarint(encodedValue.length());
+		writeUtf8(encodedValue);
+	}
+
+	@Override
+	public void writeRaw(final char c) throws IOException {
+		throw new JsonGenerationException("raw content is not supported by the binary encoding");
+	}
+
+	@Override
+	public void writeRaw(final char[] text, final int offset, final int len) throws IOException {
+		throw new JsonGenerationException("raw content is not supported by the binary encoding");
+	}
+
+	@Override
+	public void writeRaw(final String text) throws IOException {
+		throw new JsonGenerationException("raw content is not supported by the binary encoding");
+	}
+
+	@Override
+	public void writeRaw(final String text, final int offset, final int len) throws IOException {
+		throw new JsonGenerationException("raw content is not supported by the binary encoding");
+	}
+
+	private void writeReference(final int shortType, final int type, final int index) throws IOException {
+		if (index < SHORT_LIMIT) {
+			writeByte(shortType + index);
+		} else {
+			writeByte(type);
+			writeVarint(index);
+		}
+	}
+
+	@Override
+	public void writeStartArray() throws IOException {
+		writeByte(START_ARRAY);
+	}
+
+	@Override
+	public void writeStartObject() throws IOException {
+		writeByte(START_OBJECT);
+	}
+
+	@Override
+	public void writeString(final char[] text, final int offset, final int len) throws IOException {
+		writeString(new String(text, offset, len));
+	}
+
+	@Override
+	public void writeString(final String text) throws IOException {
+		if (null == text) {
+			writeNull();
+			return;
+		}
+		final int length = utf8Length(text);
+		if (length >= SHORT_LIMIT) {
+			writeByte(LONG_STRING);
+			writeVarint(length);
+			writeUtf8(text);
+			return;
+		}
+		if (null == strings) {
+			strings = new HashMap<String, Integer>();
+		}
+		final int index = reference(sharedStrings, strings, text);
+		if (index >= 0) {
+			writeReference(SHORT_STRING_REFERENCE, STRING_REFERENCE, index);
+			return;
+		}
+		writeByte(SHORT_STRING + length);
+		writeUtf8(text);
+	}
+
+	private void writeUtf8(final String text) throws IOException {
+		final int length = text.length();
+		for (int i = 0; i < length; i++) {
+			ensureCapacity(4);
+			int c = text.charAt(i);
+			if (c < 0x80) {
+				buffer[position++] = (byte) c;
+			} else if (c < 0x800) {
+				buffer[position++] = (byte) (0xC0 | (c >> 6));
+				buffer[position++] = (byte) (0x80 | (c & 0x3F));
+			} else if (Character.isHighSurrogate((char) c) && ((i + 1) < length) && Character.isLowSurrogate(text.charAt(i + 1))) {
+				c = Character.toCodePoint((char) c, text.charAt(++i));
+				buffer[position++] = (byte) (0xF0 | (c >> 18));
+				buffer[position++] = (byte) (0x80 | ((c >> 12) & 0x3F));
+				buffer[position++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+				buffer[position++] = (byte) (0x80 | (c & 0x3F));
+			} else {
+				buffer[position++] = (byte) (0xE0 | (c >> 12));
+				buffer[position++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+				buffer[position++] = (byte) (0x80 | (c & 0x3F));
+			}
+		}
+	}
+
+	private void writeVarint(long value) throws IOException {
+		ensureCapacity(10);
+		while ((value & ~0x7FL) != 0) {
+			buffer[position++] = (byte) ((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		buffer[position++] = (byte) value;
+	}
+}
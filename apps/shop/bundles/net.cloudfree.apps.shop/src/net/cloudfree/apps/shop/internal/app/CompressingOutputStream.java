@@ -0,0 +1,185 @@
+/*******************************************************************************
+ * Copyright (c) 2010 Gunnar Wagenknecht and others.
+ * All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html.
+ *
+ * Contributors:
+ *     Gunnar Wagenknecht - initial API and implementation
+ *******************************************************************************/
+package net.cloudfree.apps.shop.internal.app;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import javax.servlet.http.HttpServletResponse;
+
+import net.cloudfree.apps.shop.internal.app.ResponseCompression.PooledDeflater;
+
+/**
+ * A response output stream which compresses the written data on the fly.
+ * <p>
+ * The first bytes are held back until the minimum size for compression is
+ * reached. Smaller responses are sent uncompressed (with a
+ * <code>Content-Length</code>). Larger responses are sent with a
+ * <code>Content-Encoding</code> header and compressed while being written.
+ * </p>
+ */
+final class CompressingOutputStream extends OutputStream {
+
+	/** gzip member header (no file name, no modification time, unknown OS) */
+	private static final byte[] GZIP_HEADER = new byte[] { 0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff };
+
+	private final HttpServletResponse resp;
+	private final String encoding;
+	private final ResponseCompression compression;
+	private final boolean gzip;
+	private final byte[] pending;
+
+	private int pendingCount;
+	private OutputStream out;
+	private PooledDeflater deflater;
+	private CRC32 crc;
+	private boolean closed;
+
+	/**
+	 * Creates a new instance.
+	 *
+	 * @param resp
+	 *            the response
+	 * @param encoding
+	 *            the negotiated content encoding
+	 * @param compression
+	 *            the compression support providing the deflaters
+	 */
+	CompressingOutputStream(final HttpServletResponse resp, final String encoding, final ResponseCompression compression) {
+		this.resp = resp;
+		this.encoding = encoding;
+		this.compression = compression;
+		gzip = ResponseCompression.GZIP.equals(encoding);
+		pending = new byte[compression.getMinSize()];
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (closed) {
+			return;
+		}
+		closed = true;
+
+		if (null == deflater) {
+			// too small for compression
+			resp.setContentLength(pendingCount);
+			out = resp.getOutputStream();
+			out.write(pending, 0, pendingCount);
+			out.close();
+			return;
+		}
+
+		try {
+			final Deflater def = deflater.deflater;
+			def.finish();
+			while (!def.finished()) {
+				final int len = def.deflate(deflater.buffer, 0, deflater.buffer.length);
+				if (len > 0) {
+					out.write(deflater.buffer, 0, len);
+				}
+			}
+			if (gzip) {
+				writeIntLE((int) crc.getValue());
+				writeIntLE((int) def.getBytesRead());
+			}
+		} finally {
+			compression.releaseDeflater(deflater);
+			deflater = null;
+		}
+		out.close();
+	}
+
+	/**
+	 * Closes the stream without completing the response and releases the
+	 * deflater.
+	 */
+	void discard() {
+		closed = true;
+		pendingCount = 0;
+		if (null != deflater) {
+			compression.releaseDeflater(deflater);
+			deflater = null;
+		}
+	}
+
+	private void deflate(final byte[] b, final int off, final int len) throws IOException {
+		if (gzip) {
+			crc.update(b, off, len);
+		}
+		final Deflater def = deflater.deflater;
+		def.setInput(b, off, len);
+		while (!def.needsInput()) {
+			final int deflated = def.deflate(deflater.buffer, 0, deflater.buffer.length);
+			if (deflated > 0) {
+				out.write(deflater.buffer, 0, deflated);
+			}
+		}
+	}
+
+	/**
+	 * Flushes already compressed data.
+	 * <p>
+	 * Note, data held back by the deflater is only written when it decides to
+	 * emit a block or when the stream is closed.
+	 * </p>
+	 */
+	@Override
+	public void flush() throws IOException {
+		if (null != out) {
+			out.flush();
+		}
+	}
+
+	private void startCompression() throws IOException {
+		resp.setHeader("Content-Encoding", encoding);
+		out = resp.getOutputStream();
+		deflater = compression.obtainDeflater(gzip);
+		if (gzip) {
+			crc = new CRC32();
+			out.write(GZIP_HEADER);
+		}
+		if (pendingCount > 0) {
+			deflate(pending, 0, pendingCount);
+			pendingCount = 0;
+		}
+	}
+
+	@Override
+	public void write(final byte[] b, final int off, final int len) throws IOException {
+		if (closed) {
+			throw new IOException("stream closed");
+		}
+		if (null == deflater) {
+			if ((pendingCount + len) <= pending.length) {
+				System.arraycopy(b, off, pending, pendingCount, len);
+				pendingCount += len;
+				return;
+			}
+			startCompression();
+		}
+		deflate(b, off, len);
+	}
+
+	@Override
+	public void write(final int b) throws IOException {
+		write(new byte[] { (byte) b }, 0, 1);
+	}
+
+	private void writeIntLE(final int value) throws IOException {
+		out.write(value & 0xff);
+		out.write((value >> 8) & 0xff);
+		out.write((value >> 16) & 0xff);
+		out.write((value >> 24) & 0xff);
+	}
+}
@@ -0,0 +1,229 @@
+/*******************************************************************************
+ * Copyright (c) 2010 Gunnar Wagenknecht and others.
+ * All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html.
+ *
+ * Contributors:
+ *     Gunnar Wagenknecht - initial API and implementation
+ *******************************************************************************/
+package net.cloudfree.apps.shop.internal.app;
+
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+import org.eclipse.gyrex.monitoring.metrics.BaseMetric;
+import org.eclipse.gyrex.monitoring.metrics.StatusMetric;
+
+/**
+ * Request metrics of a servlet endpoint.
+ * <p>
+ * Requests, errors by status and bytes written are counted and the total,
+ * index query and rendering latencies are recorded in
+ * {@link LatencyHistogram histograms}. Recording only touches atomic counters.
+ * The published metrics are refreshed from them by at most one request per
+ * second; the percentiles cover the current window of one minute.
+ * </p>
+ */
+final class EndpointMetrics {
+
+	/**
+	 * A response which counts the bytes written and remembers the status.
+	 */
+	static final class MeteredResponse extends HttpServletResponseWrapper {
+
+		private long bytesWritten;
+		private int status = SC_OK;
+		private ServletOutputStream outputStream;
+		private PrintWriter writer;
+
+		MeteredResponse(final HttpServletResponse resp) {
+			super(resp);
+		}
+
+		long getBytesWritten() {
+			return bytesWritten;
+		}
+
+		@Override
+		public ServletOutputStream getOutputStream() throws IOException {
+			if (null == outputStream) {
+				final ServletOutputStream out = super.getOutputStream();
+				outputStream = new ServletOutputStream() {
+					@Override
+					public void close() throws IOException {
+						out.close();
+					}
+
+					@Override
+					public void flush() throws IOException {
+						out.flush();
+					}
+
+					@Override
+					public void write(final byte[] b, final int off, final int len) throws IOException {
+						out.write(b, off, len);
+						bytesWritten += len;
+					}
+
+					@Override
+					public void write(final int b) throws IOException {
+						out.write(b);
+						bytesWritten++;
+					}
+				};
+			}
+			return outputStream;
+		}
+
+		int getStatus() {
+			return status;
+		}
+
+		@Override
+		public PrintWriter getWriter() throws IOException {
+			if (null == writer) {
+				writer = new PrintWriter(new OutputStreamWriter(getOutputStream(), getCharacterEncoding()));
+			}
+			return writer;
+		}
+
+		@Override
+		public void sendError(final int sc) throws IOException {
+			status = sc;
+			super.sendError(sc);
+		}
+
+		@Override
+		public void sendError(final int sc, final String msg) throws IOException {
+			status = sc;
+			super.sendError(sc, msg);
+		}
+
+		@Override
+		public void setStatus(final int sc) {
+			status = sc;
+			super.setStatus(sc);
+		}
+	}
+
+	/** interval for refreshing the published metrics in milliseconds */
+	private static final long PUBLISH_INTERVAL = 1000L;
+
+	/** length of a percentile window in milliseconds */
+	private static final long WINDOW = 60000L;
+
+	/** lowest status counted as error */
+	private static final int MIN_ERROR_STATUS = 400;
+
+	private static String formatPercentiles(final LatencyHistogram histogram) {
+		// values are recorded in microseconds
+		return String.format("p50=%.1fms p99=%.1fms p999=%.1fms", histogram.getPercentile(0.5) / 1000d, histogram.getPercentile(0.99) / 1000d, histogram.getPercentile(0.999) / 1000d);
+	}
+
+	private final AtomicLong requests = new AtomicLong();
+	private final AtomicLong bytesWritten = new AtomicLong();
+	private final AtomicLongArray errors = new AtomicLongArray(200);
+	private final LatencyHistogram latency = new LatencyHistogram();
+	private final LatencyHistogram queryLatency = new LatencyHistogram();
+	private final LatencyHistogram renderingLatency = new LatencyHistogram();
+	private final AtomicLong nextPublish = new AtomicLong();
+
+	private final StatusMetric requestsMetric;
+	private final StatusMetric errorsMetric;
+	private final StatusMetric latencyMetric;
+	private final StatusMetric queryLatencyMetric;
+	private final StatusMetric renderingLatencyMetric;
+
+	private volatile long windowEnd;
+
+	/**
+	 * Creates a new instance.
+	 *
+	 * @param id
+	 *            the id prefix of the published metrics
+	 */
+	EndpointMetrics(final String id) {
+		requestsMetric = new StatusMetric(id + ".requests", "requests=0 bytes=0", "since start");
+		errorsMetric = new StatusMetric(id + ".errors", "none", "since start");
+		latencyMetric = new StatusMetric(id + ".latency", "n/a", "no requests");
+		queryLatencyMetric = new StatusMetric(id + ".queryLatency", "n/a", "no queries");
+		renderingLatencyMetric = new StatusMetric(id + ".renderingLatency", "n/a", "no responses");
+		windowEnd = System.currentTimeMillis() + WINDOW;
+	}
+
+	/**
+	 * Returns the metrics to publish.
+	 *
+	 * @return the metrics
+	 */
+	BaseMetric[] getMetrics() {
+		return new BaseMetric[] { requestsMetric, errorsMetric, latencyMetric, queryLatencyMetric, renderingLatencyMetric };
+	}
+
+	private void publish() {
+		final long now = System.currentTimeMillis();
+		final long next = nextPublish.get();
+		if ((now < next) || !nextPublish.compareAndSet(next, now + PUBLISH_INTERVAL)) {
+			return;
+		}
+
+		requestsMetric.setStatus("requests=" + requests.get() + " bytes=" + bytesWritten.get(), "since start");
+		final StringBuilder errorCounts = new StringBuilder();
+		for (int i = 0; i < errors.length(); i++) {
+			final long count = errors.get(i);
+			if (count > 0) {
+				if (errorCounts.length() > 0) {
+					errorCounts.append(' ');
+				}
+				errorCounts.append(MIN_ERROR_STATUS + i).append('=').append(count);
+			}
+		}
+		errorsMetric.setStatus(errorCounts.length() > 0 ? errorCounts.toString() : "none", "since start");
+		latencyMetric.setStatus(formatPercentiles(latency), latency.getCount() + " requests in the current window");
+		queryLatencyMetric.setStatus(formatPercentiles(queryLatency), queryLatency.getCount() + " queries in the current window");
+		renderingLatencyMetric.setStatus(formatPercentiles(renderingLatency), renderingLatency.getCount() + " responses in the current window");
+
+		if (now >= windowEnd) {
+			windowEnd = now + WINDOW;
+			latency.reset();
+			queryLatency.reset();
+			renderingLatency.reset();
+		}
+	}
+
+	/**
+	 * Records a finished request.
+	 *
+	 * @param trace
+	 *            the trace of the request
+	 * @param status
+	 *            the response status
+	 * @param bytes
+	 *            the number of bytes written
+	 */
+	void requestFinished(final RequestTrace trace, final int status, final long bytes) {
+		requests.incrementAndGet();
+		bytesWritten.addAndGet(bytes);
+		if ((status >= MIN_ERROR_STATUS) && (status < (MIN_ERROR_STATUS + errors.length()))) {
+			errors.incrementAndGet(status - MIN_ERROR_STATUS);
+		}
+		latency.record((System.nanoTime() - trace.start) / 1000);
+		if (trace.queryTime >= 0) {
+			queryLatency.record(trace.queryTime * 1000);
+		}
+		if (trace.renderingTime >= 0) {
+			renderingLatency.record(trace.renderingTime / 1000);
+		}
+		publish();
+	}
+}
@@ -0,0 +1,183 @@
+/*******************************************************************************
+ * Copyright (c) 2010 Gunnar Wagenknecht and others.
+ * All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html.
+ *
+ * Contributors:
+ *     Gunnar Wagenknecht - initial API and implementation
+ *******************************************************************************/
+package net.cloudfree.apps.shop.internal.app;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.solr.client.solrj.SolrQuery;
+
+/**
+ * The facets offered by the HTML listings, compiled into a query template.
+ * <p>
+ * A schema is defined as a comma separated list of facets. A facet is either
+ * a field name (faceted by its values) or a field name followed by
+ * <code>=</code> and <code>|</code> separated query expressions (eg.
+ * <code>price=[* TO 10]|[10 TO *]</code>). The facet parameters are added to
+ * an immutable template once; requests only {@link #createQuery(boolean) copy}
+ * it.
+ * </p>
+ */
+final class FacetSchema {
+
+	static class FacetExpressionFilter extends FacetFilter {
+
+		private final String[] expressions;
+
+		FacetExpressionFilter(final String name, final String... expressions) {
+			super(name);
+			this.expressions = expressions;
+		}
+
+		@Override
+		boolean addFilter(final SolrQuery query, final String value) {
+			for (final String expression : expressions) {
+				if (expression.equals(value)) {
+					query.addFilterQuery(name + ":" + expression);
+					return true;
+				}
+			}
+			return false;
+		}
+
+		@Override
+		void defineFilter(final SolrQuery query) {
+			for (final String expression : expressions) {
+				query.addFacetQuery(name + ":" + expression);
+			}
+		}
+	}
+
+	static class FacetFilter {
+		final String name;
+
+		FacetFilter(final String name) {
+			this.name = name;
+		}
+
+		boolean addFilter(final SolrQuery query, final String value) {
+			query.addFilterQuery(name + ":" + value);
+			return true;
+		}
+
+		void defineFilter(final SolrQuery query) {
+			query.addFacetField(name);
+		}
+	}
+
+	/** the default schema */
+	static final String DEFAULT_DEFINITION = "style_n,color_n,source_n,size_n,category,thickness,fit,paper,finish,price=[* TO 10]|[10 TO 20]|[20 TO 30]|[30 TO 50]|[50 TO *]";
+
+	/** the default schema, compiled */
+	static final FacetSchema DEFAULT = compile(DEFAULT_DEFINITION);
+
+	/**
+	 * Compiles a schema definition.
+	 *
+	 * @param definition
+	 *            the definition
+	 * @return the schema
+	 * @throws IllegalArgumentException
+	 *             if the definition is invalid
+	 */
+	static FacetSchema compile(final String definition) throws IllegalArgumentException {
+		final Map<String, FacetFilter> filters = new LinkedHashMap<String, FacetFilter>();
+		for (final String facet : StringUtils.split(definition, ',')) {
+			final int separator = facet.indexOf('=');
+			final String name = (separator < 0 ? facet : facet.substring(0, separator)).trim();
+			if (!name.matches("[A-Za-z0-9_.]+")) {
+				throw new IllegalArgumentException("invalid facet name: " + facet);
+			}
+			if (separator < 0) {
+				filters.put(name, new FacetFilter(name));
+				continue;
+			}
+			final String[] expressions = StringUtils.split(facet.substring(separator + 1), '|');
+			for (int i = 0; i < expressions.length; i++) {
+				expressions[i] = expressions[i].trim();
+			}
+			if (expressions.length == 0) {
+				throw new IllegalArgumentException("facet without expressions: " + facet);
+			}
+			filters.put(name, new FacetExpressionFilter(name, expressions));
+		}
+		return new FacetSchema(definition, filters);
+	}
+
+	private static SolrQuery copy(final SolrQuery template) {
+		final SolrQuery query = new SolrQuery();
+		for (final Iterator<String> names = template.getParameterNamesIterator(); names.hasNext();) {
+			final String name = names.next();
+			query.set(name, template.getParams(name));
+		}
+		return query;
+	}
+
+	private final String definition;
+	private final Map<String, FacetFilter> filters;
+	private final SolrQuery template;
+	private final SolrQuery facetTemplate;
+
+	private FacetSchema(final String definition, final Map<String, FacetFilter> filters) {
+		this.definition = definition;
+		this.filters = Collections.unmodifiableMap(filters);
+		template = new SolrQuery();
+		template.setQueryType("dismax");
+		facetTemplate = copy(template);
+		if (!filters.isEmpty()) {
+			facetTemplate.setFacet(true);
+			for (final FacetFilter filter : filters.values()) {
+				filter.defineFilter(facetTemplate);
+			}
+		}
+	}
+
+	/**
+	 * Narrows a query to a facet value.
+	 *
+	 * @param query
+	 *            the query
+	 * @param name
+	 *            the facet name
+	 * @param value
+	 *            the facet value
+	 * @return <code>true</code> if the facet and value are known and the
+	 *         filter was added, <code>false</code> otherwise
+	 */
+	boolean addFilter(final SolrQuery query, final String name, final String value) {
+		final FacetFilter filter = filters.get(name);
+		return (null != filter) && filter.addFilter(query, value);
+	}
+
+	/**
+	 * Creates a new query from the template.
+	 *
+	 * @param facet
+	 *            <code>true</code> if the facets should be computed
+	 * @return the query
+	 */
+	SolrQuery createQuery(final boolean facet) {
+		return copy(facet ? facetTemplate : template);
+	}
+
+	/**
+	 * Returns the definition.
+	 *
+	 * @return the definition
+	 */
+	String getDefinition() {
+		return definition;
+	}
+}
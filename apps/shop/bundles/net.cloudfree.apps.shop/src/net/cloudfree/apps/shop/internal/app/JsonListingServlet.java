@@ -11,17 +11,34 @@
  *******************************************************************************/
 package net.cloudfree.apps.shop.internal.app;
 
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
+import net.cloudfree.apps.shop.internal.app.EndpointMetrics.MeteredResponse;
+import net.cloudfree.apps.shop.internal.app.ListingJsonWriter.Enhancer;
+import net.cloudfree.apps.shop.internal.app.ListingQueryExecutor.ServerBusyException;
+import net.cloudfree.apps.shop.internal.app.ProductDocumentCache.CachedDocument;
+import net.cloudfree.apps.shop.internal.app.SuggestIndex.Suggestion;
+
 import org.eclipse.gyrex.cds.model.IListing;
 import org.eclipse.gyrex.cds.model.IListingAttribute;
 import org.eclipse.gyrex.cds.model.documents.Document;
@@ -31,35 +48,37 @@ import org.eclipse.gyrex.cds.service.query.ListingQuery.ResultDimension;
 import org.eclipse.gyrex.cds.service.query.ListingQuery.SortDirection;
 import org.eclipse.gyrex.cds.service.result.IListingResult;
 import org.eclipse.gyrex.cds.service.result.IListingResultFacet;
-import org.eclipse.gyrex.cds.service.result.IListingResultFacetValue;
 import org.eclipse.gyrex.context.IRuntimeContext;
 import org.eclipse.gyrex.http.application.ApplicationException;
-import org.eclipse.gyrex.services.common.ServiceUtil;
 
-import org.codehaus.jackson.JsonFactory;
-import org.codehaus.jackson.JsonGenerationException;
 import org.codehaus.jackson.JsonGenerator;
-import org.codehaus.jackson.map.ObjectMapper;
 
 import org.apache.commons.lang.StringUtils;
 import org.apache.commons.lang.math.NumberUtils;
 
-import com.ibm.icu.text.MeasureFormat;
-import com.ibm.icu.util.CurrencyAmount;
-import com.ibm.icu.util.ULocale;
-
 public class JsonListingServlet extends HttpServlet {
 
-	static interface Enhancer {
-		void enhanceWithinObject(JsonGenerator json) throws IOException;
-	}
-
 	private static final String ID_PATH_PREFIX = "/_id/";
+	private static final String EXPORT_PATH = "/_export";
+	private static final String IDS_PATH = "/_ids";
+	private static final String SUGGEST_PATH = "/_suggest";
+
+	/** default number of suggestions */
+	private static final int DEFAULT_SUGGEST_COUNT = 10;
+
+	/** default max age of single product responses in seconds */
+	private static final int DEFAULT_MAX_AGE_PRODUCT = 300;
+
+	/** default max age of search responses in seconds */
+	private static final int DEFAULT_MAX_AGE_SEARCH = 60;
+
+	/** default maximum start index for offset paging */
+	private static final long DEFAULT_MAX_START_INDEX = 1000;
 
 	/** serialVersionUID */
 	private static final long serialVersionUID = 1L;
 
-	private static StringBuilder getBaseUrl(final HttpServletRequest req) {
+	static StringBuilder getBaseUrl(final HttpServletRequest req) {
 		final StringBuilder builder = new StringBuilder(50);
 		builder.append(req.getScheme());
 		builder.append("://");
@@ -75,14 +94,67 @@ public class JsonListingServlet extends HttpServlet {
 	}
 
 	private final IRuntimeContext context;
+	private final ListingServices services;
+	private final ListingResultCache resultCache;
+	private final ListingFacetCache facetCache;
+	private final ListingIndexMonitor indexMonitor;
+	private final UriPathIndex uriPathIndex;
+	private final SuggestIndex suggestIndex;
+	private final ProductDocumentCache productCache;
+	private final ResponseCompression compression;
+	private final ListingQueryCoalescer queryCoalescer;
+	private final EndpointMetrics requestMetrics;
+	private final EndpointMetrics suggestMetrics;
+	private final SlowRequestLog slowRequestLog;
+	private final VariationLoader variationLoader;
+	private final PriceFormatter.Selector priceFormatters;
+	private final int productMaxAge;
+	private final int searchMaxAge;
+	private final int exportPageSize;
+	private final long maxStartIndex;
+	private final int maxIdsPerRequest;
 
 	/**
 	 * Creates a new instance.
 	 * 
 	 * @param context
+	 * @param services
+	 * @param resultCache
+	 * @param facetCache
+	 * @param indexMonitor
+	 * @param uriPathIndex
+	 *            (maybe <code>null</code>)
+	 * @param suggestIndex
+	 *            (maybe <code>null</code>)
+	 * @param productCache
+	 * @param compression
+	 * @param queryCoalescer
+	 * @param requestMetrics
+	 * @param suggestMetrics
+	 * @param slowRequestLog
+	 *            (maybe <code>null</code>)
 	 */
-	public JsonListingServlet(final IRuntimeContext context) {
+	public JsonListingServlet(final IRuntimeContext context, final ListingServices services, final ListingResultCache resultCache, final ListingFacetCache facetCache, final ListingIndexMonitor indexMonitor, final UriPathIndex uriPathIndex, final SuggestIndex suggestIndex, final ProductDocumentCache productCache, final ResponseCompression compression, final ListingQueryCoalescer queryCoalescer, final EndpointMetrics requestMetrics, final EndpointMetrics suggestMetrics, final SlowRequestLog slowRequestLog) {
 		this.context = context;
+		this.services = services;
+		this.resultCache = resultCache;
+		this.facetCache = facetCache;
+		this.indexMonitor = indexMonitor;
+		this.uriPathIndex = uriPathIndex;
+		this.suggestIndex = suggestIndex;
+		this.productCache = productCache;
+		this.compression = compression;
+		this.queryCoalescer = queryCoalescer;
+		this.requestMetrics = requestMetrics;
+		this.suggestMetrics = suggestMetrics;
+		this.slowRequestLog = slowRequestLog;
+		variationLoader = new VariationLoader(ShopPreferences.getInt(context, ShopPreferences.VARIATIONS_MAX_PER_PRODUCT, VariationLoader.DEFAULT_MAX_PER_PRODUCT));
+		priceFormatters = new PriceFormatter.Selector(context);
+		productMaxAge = ShopPreferences.getInt(context, ShopPreferences.HTTP_MAX_AGE_PRODUCT, DEFAULT_MAX_AGE_PRODUCT);
+		searchMaxAge = ShopPreferences.getInt(context, ShopPreferences.HTTP_MAX_AGE_SEARCH, DEFAULT_MAX_AGE_SEARCH);
+		exportPageSize = ShopPreferences.getInt(context, ShopPreferences.EXPORT_PAGE_SIZE, ListingExporter.DEFAULT_PAGE_SIZE);
+		maxStartIndex = ShopPreferences.getLong(context, ShopPreferences.SEARCH_MAX_START_INDEX, DEFAULT_MAX_START_INDEX);
+		maxIdsPerRequest = Math.min(VariationLoader.MAX_IDS_PER_QUERY, ShopPreferences.getInt(context, ShopPreferences.IDS_MAX_PER_REQUEST, VariationLoader.MAX_IDS_PER_QUERY));
 	}
 
 	@Override
@@ -92,60 +164,53 @@ public class JsonListingServlet extends HttpServlet {
 			return;
 		}
 
-		final IListingService listingService = ServiceUtil.getService(IListingService.class, getContext());
+		if (SUGGEST_PATH.equals(req.getPathInfo())) {
+			doSuggest(req, resp);
+			return;
+		}
+
+		final IListingService listingService = services.getListingService();
+		final RequestTrace trace = RequestTrace.of(req);
 		final ListingQuery query = new ListingQuery();
 		boolean isSingleListing = false;
+		List<String> ids = null;
+		String uriPath = null;
+		String uriPathId = null;
+		String productId = null;
+		String cursor = null;
+		ListingQueryKey facetKey = null;
 
 		final String path = req.getPathInfo();
-		if ((null != path) && (path.length() > 1)) {
+		if (EXPORT_PATH.equals(path)) {
+			doExport(req, resp, listingService, query);
+			return;
+		} else if (IDS_PATH.equals(path)) {
+			ids = getIds(req);
+			VariationLoader.setIdFilter(query, ids);
+			trace.shaped(IDS_PATH);
+			isSingleListing = true;
+		} else if ((null != path) && (path.length() > 1)) {
 			if (path.startsWith(ID_PATH_PREFIX)) {
 				// ID path
-				query.setFilterQueries(Document.ID + ":" + path.substring(ID_PATH_PREFIX.length()));
+				productId = path.substring(ID_PATH_PREFIX.length());
+				query.setFilterQueries(Document.ID + ":" + productId);
 			} else {
-				// URI path
-				query.setFilterQueries(Document.URI_PATH + ":" + ListingQuery.escapeQueryChars(path.substring(1)));
+				// URI path (looked up by id if known)
+				uriPath = path.substring(1);
+				uriPathId = null != uriPathIndex ? uriPathIndex.getId(uriPath) : null;
+				if (null != uriPathId) {
+					productId = uriPathId;
+					query.setFilterQueries(Document.ID + ":" + ListingQuery.escapeQueryChars(uriPathId));
+				} else {
+					query.setFilterQueries(Document.URI_PATH + ":" + ListingQuery.escapeQueryChars(uriPath));
+				}
 			}
 			query.setResultDimension(ResultDimension.FULL);
 			query.setMaxResults(1);
+			trace.shaped(null != uriPath ? "/<uriPath>" : ID_PATH_PREFIX + "<id>");
 			isSingleListing = true;
 		} else {
-			final String q = req.getParameter("q");
-			if (StringUtils.isNotBlank(q)) {
-				query.setQuery(q);
-			}
-
-			// ignore variations
-			query.addFilterQuery("-type:variation");
-
-			// add filters
-			final String[] f = req.getParameterValues("f");
-			if ((null != f) && (f.length > 0)) {
-				for (final String filter : f) {
-					if (StringUtils.isNotBlank(filter)) {
-						query.addFilterQuery(filter);
-					}
-				}
-			}
-
-			// simple category selection
-			final String[] categories = req.getParameterValues("c");
-			if ((null != categories) && (categories.length > 0)) {
-				for (final String cat : categories) {
-					if (StringUtils.isNotBlank(cat)) {
-						query.addFilterQuery("+category:" + ListingQuery.escapeQueryChars(cat));
-					}
-				}
-			}
-
-			// simple tags selection
-			final String[] tags = req.getParameterValues("t");
-			if ((null != tags) && (tags.length > 0)) {
-				for (final String tag : tags) {
-					if (StringUtils.isNotBlank(tag)) {
-						query.addFilterQuery("+tags:" + ListingQuery.escapeQueryChars(tag));
-					}
-				}
-			}
+			applySearchParameters(getParameters(req), query);
 
 			// start offset
 			final String start = req.getParameter("s");
@@ -154,6 +219,9 @@ public class JsonListingServlet extends HttpServlet {
 				if (startIndex < 0) {
 					throw new ApplicationException(400, "startIndex must be greater than or equal to zero");
 				}
+				if ((maxStartIndex >= 0) && (startIndex > maxStartIndex)) {
+					throw new ApplicationException(400, "startIndex must be less than or equal to " + maxStartIndex + "; use a cursor for deeper paging");
+				}
 				query.setStartIndex(startIndex);
 			}
 
@@ -167,48 +235,465 @@ public class JsonListingServlet extends HttpServlet {
 
 				query.setMaxResults(maxResults);
 			}
+
+			// sort order
+			final String[] order = req.getParameterValues("o");
+			if ((null != order) && (order.length > 0)) {
+				for (final String field : order) {
+					if (StringUtils.isBlank(field)) {
+						continue;
+					}
+					final boolean descending = field.startsWith("-");
+					final String name = descending ? field.substring(1) : field;
+					if (!name.matches("[A-Za-z0-9_.]+")) {
+						throw new ApplicationException(400, "invalid sort field: " + field);
+					}
+					query.addSortField(name, descending ? SortDirection.DESCENDING : SortDirection.ASCENDING);
+				}
+			}
+
+			// facets are shared by all pages
+			facetKey = ListingQueryKey.ofFacets(query);
+
+			final String shape = ListingQueryKey.shapeOf(query);
+			final String facets = StringUtils.trimToNull(req.getParameter("facets"));
+			trace.shaped((null != facets) && !"none".equals(facets) ? shape + " facets=" + facets : shape);
+
+			// search-after paging
+			cursor = StringUtils.trimToNull(req.getParameter("cursor"));
+			if (null != cursor) {
+				if (null != start) {
+					throw new ApplicationException(400, "cursor and startIndex cannot be combined");
+				}
+				ListingCursor.apply(query, cursor);
+			}
+		}
+
+		// field projection
+		final ListingProjection projection = ListingProjection.resolve(getContext(), req.getParameter("fields"));
+		if ((null != projection) && (null != projection.getDimension()) && (null == cursor)) {
+			// a cursor needs the sort values of the last hit (see ListingCursor)
+			query.setResultDimension(projection.getDimension());
+		}
+
+		// price locale and currency
+		final PriceFormatter priceFormatter = priceFormatters.select(req);
+		if (priceFormatters.isNegotiated(req)) {
+			resp.addHeader("Vary", "Accept-Language");
+		}
+
+		// compact binary encoding for clients asking for it
+		final boolean text = req.getParameter("text") != null;
+		final boolean binary = !text && BinaryJsonGenerator.isAccepted(req);
+		resp.addHeader("Vary", "Accept");
+
+		// negotiated before the conditional check; a 304 varies as well
+		final String encoding = compression.negotiateEncoding(req, resp);
+
+		// the response only changes with the index; answer conditional requests without querying
+		final ListingQueryKey queryKey = ListingQueryKey.of(query);
+		final String baseUrl = getBaseUrl(req).toString();
+		final String facetsParameter = StringUtils.trimToNull(req.getParameter("facets"));
+		final String facetSelection = "none".equals(facetsParameter) ? null : facetsParameter;
+		final long indexVersion = indexMonitor.getVersion();
+		final long lastModified = indexMonitor.getLastModified();
+		final String variant = (text ? baseUrl + "|text" : binary ? baseUrl + "|binary" : baseUrl) + "|" + facetSelection + "|" + projection + "|" + priceFormatter;
+		final String etag = indexVersion >= 0 ? ResponseValidators.createETag(indexVersion, queryKey, variant + "|" + encoding) : null;
+		final int maxAge = isSingleListing ? productMaxAge : searchMaxAge;
+		if (ResponseValidators.isNotModified(req, etag, lastModified)) {
+			ResponseValidators.setCacheHeaders(resp, etag, lastModified, maxAge);
+			resp.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+			return;
+		}
+
+		// serialized products are written without querying and rendering
+		if ((null != productId) && (indexVersion >= 0)) {
+			final CachedDocument document = productCache.get(productId, variant, indexVersion);
+			if ((null != document) && ((null == uriPath) || uriPath.equals(document.uriPath))) {
+				trace.queried(queryKey.toString(), 1, -1);
+				setContentHeaders(resp, text, binary, etag, lastModified, maxAge);
+				final OutputStream out = compression.getOutputStream(resp, encoding);
+				try {
+					document.writeTo(out);
+				} finally {
+					out.close();
+				}
+				return;
+			}
 		}
 
-		final IListingResult result = listingService.findListings(query);
-
-		//		final Future<IListingResult> findListings = listingService.findListings(query, null);
-		//		IListingResult result;
-		//		try {
-		//			result = findListings.get(8, TimeUnit.SECONDS);
-		//		} catch (final InterruptedException e) {
-		//			Thread.currentThread().interrupt();
-		//			throw new ApplicationException(503, "Server Too Busy");
-		//		} catch (final TimeoutException e) {
-		//			throw new ApplicationException(503, "Server Too Busy");
-		//		} catch (final Exception e) {
-		//			throw new ApplicationException(e);
-		//		}
+		// the facets of a result only cover the whole search on its first page
+		final boolean completeFacets = (null != facetKey) && ((null == cursor) || ListingCursor.FIRST.equals(cursor));
+		final long facetVersion = facetCache.getVersion();
+		ListingQueryKey resultKey = queryKey;
+		IListingResult result = resultCache.get(resultKey);
+		boolean cached = null != result;
+		try {
+			if (null == result) {
+				result = findListings(listingService, query, resultKey, completeFacets ? facetKey : null);
+			}
+			if ((null != uriPath) && (null != uriPathIndex)) {
+				if ((null != uriPathId) && !isListing(result, uriPath)) {
+					// stale mapping or hash collision; query by URI path instead
+					uriPathIndex.remove(uriPath);
+					uriPathId = null;
+					query.setFilterQueries(Document.URI_PATH + ":" + ListingQuery.escapeQueryChars(uriPath));
+					resultKey = ListingQueryKey.of(query);
+					result = resultCache.get(resultKey);
+					cached = null != result;
+					if (null == result) {
+						result = findListings(listingService, query, resultKey, completeFacets ? facetKey : null);
+					}
+				}
+				if ((null == uriPathId) && isListing(result, uriPath)) {
+					uriPathIndex.put(uriPath, result.getListings()[0].getId());
+				}
+			}
+		} catch (final ServerBusyException e) {
+			sendServerBusy(resp, e);
+			return;
+		}
 		if (null == result) {
 			resp.sendError(404);
 			return;
 		}
+		trace.queried(resultKey.toString(), result.getNumFound(), cached ? -1 : result.getQueryTime());
 
-		//resp.setContentType("application/json");
-		if (req.getParameter("text") != null) {
-			resp.setContentType("text/plain");
+		IListingResultFacet[] selectedFacets = null;
+		if (null != facetKey) {
+			if (completeFacets && cached) {
+				// queried results already put their facets
+				facetCache.put(facetKey, result.getFacets(), facetVersion);
+			}
+			if (null != facetSelection) {
+				IListingResultFacet[] facets = facetCache.get(facetKey);
+				if (null == facets) {
+					try {
+						facets = completeFacets ? result.getFacets() : loadFacets(req, listingService, facetKey);
+					} catch (final ServerBusyException e) {
+						sendServerBusy(resp, e);
+						return;
+					}
+				}
+				selectedFacets = selectFacets(facets, facetSelection);
+			}
+		}
+
+		// variations and masters are loaded before anything is written
+		Map<String, IListing> relatedListings = null;
+		if (isSingleListing && (null == ids) && (result.getListings().length == 1)) {
+			try {
+				relatedListings = loadRelatedListings(listingService, result.getListings()[0]);
+			} catch (final ServerBusyException e) {
+				sendServerBusy(resp, e);
+				return;
+			}
+		}
+
+		// fails before anything is written if the last hit lacks a sort value
+		final String nextCursor = null != cursor ? ListingCursor.next(query, result) : null;
+
+		setContentHeaders(resp, text, binary, etag, lastModified, maxAge);
+
+		final ListingJsonWriter listingWriter = new ListingJsonWriter(baseUrl, projection, priceFormatter);
+		if (isSingleListing && (null == ids) && (indexVersion >= 0) && productCache.isEnabled() && (result.getListings().length == 1)) {
+			// render into the near-cache first
+			final long renderingStart = System.nanoTime();
+			final IListing listing = result.getListings()[0];
+			final ByteArrayOutputStream buffer = new ByteArrayOutputStream(4096);
+			final ResponseOutputStream bufferOut = new ResponseOutputStream(buffer, null, compression);
+			try {
+				final JsonGenerator json = binary ? new BinaryJsonGenerator(bufferOut) : ListingJsonWriter.createGenerator(new ResponseWriter(bufferOut), text);
+				listingWriter.writeSingleProductResult(query, result, json, createVariationsEnhancer(listing, relatedListings, listingWriter));
+				json.close();
+			} finally {
+				bufferOut.close();
+			}
+			final byte[] bytes = buffer.toByteArray();
+			trace.rendered(renderingStart);
+			productCache.put(listing.getId(), listing.getUriPath(), variant, indexVersion, bytes);
+			final OutputStream out = compression.getOutputStream(resp, encoding);
+			try {
+				out.write(bytes);
+			} finally {
+				out.close();
+			}
+			return;
+		}
+
+		final long renderingStart = System.nanoTime();
+		final Closeable target;
+		final JsonGenerator json;
+		if (binary) {
+			final OutputStream out = compression.getOutputStream(resp, encoding);
+			json = new BinaryJsonGenerator(out);
+			target = out;
 		} else {
-			resp.setContentType("application/json");
+			final ResponseWriter writer = compression.getWriter(resp, encoding);
+			json = ListingJsonWriter.createGenerator(writer, text);
+			target = writer;
+		}
+
+		try {
+			if (null != ids) {
+				listingWriter.writeProductsById(ids, result, json);
+			} else if (isSingleListing) {
+				final IListing[] listings = result.getListings();
+				listingWriter.writeSingleProductResult(query, result, json, null != relatedListings ? createVariationsEnhancer(listings[0], relatedListings, listingWriter) : null);
+			} else {
+				listingWriter.writeProductsResult(query, result, selectedFacets, nextCursor, json);
+			}
+			json.close();
+		} finally {
+			// releases the pooled buffer and deflater
+			target.close();
+		}
+		trace.rendered(renderingStart);
+	}
+
+	/**
+	 * Records the request metrics.
+	 * <p>
+	 * Suggestions are answered from memory and are metered and logged
+	 * separately so they do not skew the listing request times.
+	 * </p>
+	 */
+	@Override
+	protected void service(final HttpServletRequest req, final HttpServletResponse resp) throws ServletException, IOException {
+		final boolean suggest = SUGGEST_PATH.equals(req.getPathInfo());
+		final RequestTrace trace = RequestTrace.start(req);
+		final MeteredResponse meteredResp = new MeteredResponse(resp);
+		int status = HttpServletResponse.SC_INTERNAL_SERVER_ERROR;
+		try {
+			super.service(req, meteredResp);
+			status = meteredResp.getStatus();
+		} catch (final ApplicationException e) {
+			status = e.getStatus();
+			throw e;
+		} finally {
+			(suggest ? suggestMetrics : requestMetrics).requestFinished(trace, status, meteredResp.getBytesWritten());
+			if (null != slowRequestLog) {
+				slowRequestLog.log(suggest ? "listings.suggest" : "listings.json", req, trace, status, meteredResp.getBytesWritten());
+			}
+		}
+	}
+
+	/**
+	 * Allows posting the ids of a multi-get as form parameters if they do not
+	 * fit into the URL.
+	 */
+	@Override
+	protected void doPost(final HttpServletRequest req, final HttpServletResponse resp) throws ServletException, IOException {
+		if (!IDS_PATH.equals(req.getPathInfo())) {
+			resp.sendError(HttpServletResponse.SC_METHOD_NOT_ALLOWED);
+			return;
 		}
+		doGet(req, resp);
+	}
+
+	/**
+	 * Streams all matching listings as newline delimited JSON.
+	 * <p>
+	 * The export is not limited by the row cap of the search and is neither
+	 * cached nor validated. The last line is a terminal record (see
+	 * {@link ListingExporter}); an export without it or with an error record
+	 * can be resumed by passing the id of the last received listing (or the
+	 * cursor of the error record) as <code>cursor</code>.
+	 * </p>
+	 * 
+	 * @param req
+	 * @param resp
+	 * @param listingService
+	 * @param query
+	 * @throws ServletException
+	 * @throws IOException
+	 */
+	private void doExport(final HttpServletRequest req, final HttpServletResponse resp, final IListingService listingService, final ListingQuery query) throws ServletException, IOException {
+		applySearchParameters(getParameters(req), query);
+		final ListingProjection projection = ListingProjection.resolve(getContext(), req.getParameter("fields"));
+		query.setResultDimension((null != projection) && (null != projection.getDimension()) ? projection.getDimension() : ResultDimension.FULL);
+		final PriceFormatter priceFormatter = priceFormatters.select(req);
+
+		final String cursor = StringUtils.trimToNull(req.getParameter("cursor"));
+
+		resp.setContentType("application/x-ndjson");
 		resp.setCharacterEncoding("UTF-8");
+		resp.setHeader("Cache-Control", "no-cache");
+
+		final ResponseWriter writer = compression.getWriter(req, resp);
+		try {
+			new ListingExporter(listingService, queryCoalescer, exportPageSize).export(query, cursor, new ListingJsonWriter(getBaseUrl(req).toString(), projection, priceFormatter), writer);
+		} catch (final ServerBusyException e) {
+			if (!resp.isCommitted()) {
+				writer.discard();
+				sendServerBusy(resp, e);
+				return;
+			}
+			// already streaming (not expected; later pages end with an error record)
+		} finally {
+			writer.close();
+		}
+	}
 
-		final PrintWriter writer = resp.getWriter();
-		final JsonGenerator json = new JsonFactory().createJsonGenerator(writer);
-		if (req.getParameter("text") != null) {
-			json.useDefaultPrettyPrinter();
+	/**
+	 * Writes the typeahead suggestions for a prefix.
+	 * <p>
+	 * The suggestions come from the in-memory {@link SuggestIndex}; neither
+	 * the listing service nor the index are queried. Until the suggest index
+	 * is built the response is empty and not cached.
+	 * </p>
+	 * 
+	 * @param req
+	 * @param resp
+	 * @throws ServletException
+	 * @throws IOException
+	 */
+	private void doSuggest(final HttpServletRequest req, final HttpServletResponse resp) throws ServletException, IOException {
+		if (null == suggestIndex) {
+			resp.sendError(404);
+			return;
+		}
+		final String prefix = StringUtils.defaultString(req.getParameter("q"));
+		int count = DEFAULT_SUGGEST_COUNT;
+		final String rows = req.getParameter("r");
+		if (null != rows) {
+			count = NumberUtils.toInt(rows);
+			if ((count <= 0) || (count > SuggestIndex.MAX_COUNT)) {
+				throw new ApplicationException(400, "rows must be greater than zero and less than or equal to " + SuggestIndex.MAX_COUNT);
+			}
 		}
 
-		if (isSingleListing) {
-			writeSingleProductResult(result, json, req);
-		} else {
-			writeProductsResult(result, json, req);
+		final RequestTrace trace = RequestTrace.of(req);
+		final long renderingStart = System.nanoTime();
+		final List<Suggestion> suggestions = suggestIndex.suggest(prefix, count);
+		trace.queried(SUGGEST_PATH + "?q=" + prefix, suggestions.size(), -1);
+		trace.shaped(SUGGEST_PATH);
+
+		final boolean text = req.getParameter("text") != null;
+		setContentHeaders(resp, text, false, null, -1, suggestIndex.isReady() ? searchMaxAge : -1);
+		final ResponseWriter writer = compression.getWriter(req, resp);
+		try {
+			final JsonGenerator json = ListingJsonWriter.createGenerator(writer, text);
+			json.writeStartObject();
+			json.writeFieldName("q");
+			json.writeString(prefix);
+			json.writeFieldName("suggestions");
+			json.writeStartArray();
+			for (final Suggestion suggestion : suggestions) {
+				json.writeStartObject();
+				json.writeFieldName("text");
+				json.writeString(suggestion.text);
+				json.writeFieldName("weight");
+				json.writeNumber(suggestion.weight);
+				json.writeEndObject();
+			}
+			json.writeEndArray();
+			json.writeEndObject();
+			json.close();
+		} finally {
+			writer.close();
+		}
+		trace.rendered(renderingStart);
+	}
+
+	/**
+	 * Applies the search parameters <code>q</code>, <code>f</code>,
+	 * <code>c</code> and <code>t</code> to a query.
+	 * <p>
+	 * The filters are {@link ListingFilters canonicalized}, so equal
+	 * selections produce equal filter queries.
+	 * </p>
+	 * 
+	 * @param parameters
+	 *            the request parameters
+	 * @param query
+	 *            the query
+	 */
+	static void applySearchParameters(final Map<String, String[]> parameters, final ListingQuery query) {
+		final String[] q = parameters.get("q");
+		if ((null != q) && (q.length > 0) && StringUtils.isNotBlank(q[0])) {
+			query.setQuery(q[0]);
 		}
 
-		json.close();
+		// ignore variations
+		final SortedSet<String> filters = new TreeSet<String>();
+		filters.add(ListingFilters.EXCLUDE_VARIATIONS);
+
+		// add filters
+		final String[] f = parameters.get("f");
+		if ((null != f) && (f.length > 0)) {
+			for (final String filter : f) {
+				ListingFilters.canonicalize(filter, filters);
+			}
+		}
+
+		// simple category selection
+		final String[] categories = parameters.get("c");
+		if ((null != categories) && (categories.length > 0)) {
+			for (final String cat : categories) {
+				if (StringUtils.isNotBlank(cat)) {
+					ListingFilters.canonicalize("category:" + ListingQuery.escapeQueryChars(cat), filters);
+				}
+			}
+		}
+
+		// simple tags selection
+		final String[] tags = parameters.get("t");
+		if ((null != tags) && (tags.length > 0)) {
+			for (final String tag : tags) {
+				if (StringUtils.isNotBlank(tag)) {
+					ListingFilters.canonicalize("tags:" + ListingQuery.escapeQueryChars(tag), filters);
+				}
+			}
+		}
+
+		for (final String filter : filters) {
+			query.addFilterQuery(filter);
+		}
+	}
+
+	/**
+	 * Creates an enhancer which adds the variations of a product or the master
+	 * of a variation.
+	 * 
+	 * @param product
+	 * @param relatedListings
+	 *            the listings loaded by
+	 *            {@link #loadRelatedListings(IListingService, IListing)}
+	 * @param listingWriter
+	 * @return the enhancer
+	 */
+	private Enhancer createVariationsEnhancer(final IListing product, final Map<String, IListing> relatedListings, final ListingJsonWriter listingWriter) {
+		return new Enhancer() {
+
+			@Override
+			public void enhanceWithinObject(final JsonGenerator json) throws IOException {
+				final String productType = getFirstValue(product, "type");
+				if ("variable-product".equals(productType)) {
+					final List<String> variationIds = getRelatedIds(product);
+					if (variationIds.isEmpty()) {
+						return;
+					}
+					json.writeFieldName("variations");
+					json.writeStartObject();
+					for (final String variationId : variationIds) {
+						final IListing variation = relatedListings.get(variationId);
+						if (null != variation) {
+							json.writeFieldName(variationId);
+							listingWriter.writeProduct(variation, json, null);
+						}
+					}
+					json.writeEndObject();
+				} else if ("variation".equals(productType)) {
+					final String masterId = getFirstValue(product, VariationLoader.PARENT_ID);
+					final IListing master = null != masterId ? relatedListings.get(masterId) : null;
+					if (null != master) {
+						json.writeFieldName("master");
+						listingWriter.writeProduct(master, json, null);
+					}
+				}
+			}
+		};
 	}
 
 	/**
@@ -231,6 +716,12 @@ public class JsonListingServlet extends HttpServlet {
 		writer.println(getBaseUrl(req).append("<uripath>"));
 		writer.print("                       or: ");
 		writer.println(getBaseUrl(req).append(ID_PATH_PREFIX.substring(1)).append("<id>"));
+		writer.print(" Retrieve multiple products: ");
+		writer.println(getBaseUrl(req).append(IDS_PATH.substring(1)).append("?id=<id>&id=<id>..."));
+		writer.print("   Export matching products: ");
+		writer.println(getBaseUrl(req).append(EXPORT_PATH.substring(1)));
+		writer.print("      Suggest search terms: ");
+		writer.println(getBaseUrl(req).append(SUGGEST_PATH.substring(1)).append("?q=<prefix>"));
 		writer.println();
 		writer.println();
 		writer.println("Search/Guided Navigation Parameters");
@@ -242,10 +733,53 @@ public class JsonListingServlet extends HttpServlet {
 		writer.println("      (eg. the facet 'filter' attribute from the result set)");
 		writer.println("c ... easy retrieval of a category (multiple possible, will be interpreted as AND; ..&c=shirts&c=underwear)");
 		writer.println("      (to filter for categories using OR use a filter \"..&f=+category:(shirts underwear)\")");
-		writer.println("s ... start index (zero-based, used for paging)");
+		writer.println("s ... start index (zero-based, used for paging; limited, use a cursor for deep paging)");
 		writer.println("r ... rows to return (defaults to 10, used for paging)");
 		writer.println("t ... easy retrieval of a tag (multiple possible, will be interpreted as AND; ..&t=shirts&t=cool)");
 		writer.println("      (to filter for tags using OR use a filter \"..&f=+tags:(shirts cool)\")");
+		writer.println("o ... sort field, prefixed with '-' for descending order (multiple possible; ..&o=-price&o=name)");
+		writer.println("fields ... a projection profile (eg. 'tile', 'detail', 'feed') or a comma separated list of");
+		writer.println("           product fields and attribute names to return ('attributes' for all attributes)");
+		writer.println("locale ... the locale for formatting prices (defaults to the Accept-Language header if several are configured)");
+		writer.println("currency ... the currency of the prices (eg. USD; must be configured for the shop)");
+		writer.println("facets ... 'all', 'none' (default) or a comma separated list of facet ids to include");
+		writer.println("cursor ... search-after paging; pass '*' for the first page and the 'nextCursor' of");
+		writer.println("           the response for the next one (requires sort fields set on all products or sorts by id)");
+		writer.println();
+		writer.println();
+		writer.println("Export");
+		writer.println("------");
+		writer.println();
+		writer.println("The export accepts the q, f, c, t and fields parameters and streams all matching products");
+		writer.println("as newline delimited JSON (one product per line, ordered by id). There is no row limit.");
+		writer.println("Every line has the product id. The last line is {\"complete\":true,\"count\":<n>} or, if the");
+		writer.println("export failed, {\"complete\":false,...,\"cursor\":\"<id>\",\"error\":\"<message>\"}.");
+		writer.println("cursor ... resume an interrupted export after the product with this id");
+		writer.println("           (ie. the id of the last received line or the cursor of the error record)");
+		writer.println();
+		writer.println();
+		writer.println("Suggestions");
+		writer.println("-----------");
+		writer.println();
+		writer.println("Suggestions are product titles, names, categories and tags with a word starting with the");
+		writer.println("typed prefix, heaviest first. They are answered from memory without searching.");
+		writer.println("q ... the prefix (case and accents are ignored)");
+		writer.println("r ... number of suggestions (defaults to " + DEFAULT_SUGGEST_COUNT + ", at most " + SuggestIndex.MAX_COUNT + ")");
+		if (null != suggestIndex) {
+			final int size = suggestIndex.getSize();
+			final long memorySize = suggestIndex.getMemorySize();
+			writer.println("The index holds " + size + " keys in " + (memorySize / 1024) + " KB" + (size > 0 ? " (" + ((memorySize * 1000000L) / size / (1024 * 1024)) + " MB per million keys)." : "."));
+		} else {
+			writer.println("The suggest index is disabled.");
+		}
+		writer.println();
+		writer.println();
+		writer.println("Binary Encoding");
+		writer.println("---------------");
+		writer.println();
+		writer.println("Clients sending \"Accept: " + BinaryJsonGenerator.CONTENT_TYPE + "\" receive the same documents");
+		writer.println("in a compact binary encoding (field names and short strings are sent once and referenced");
+		writer.println("afterwards). The export is always JSON.");
 		writer.println();
 		writer.println();
 		writer.println("Variations");
@@ -264,244 +798,226 @@ public class JsonListingServlet extends HttpServlet {
 	}
 
 	/**
-	 * Returns the context.
+	 * Computes the facets of a search which is not on its first page.
 	 * 
-	 * @return the context
+	 * @param req
+	 * @param listingService
+	 * @param facetKey
+	 * @return the facets
+	 * @throws ServerBusyException
+	 * @throws ApplicationException
 	 */
-	public IRuntimeContext getContext() {
-		return context;
+	private IListingResultFacet[] loadFacets(final HttpServletRequest req, final IListingService listingService, final ListingQueryKey facetKey) throws ServerBusyException, ApplicationException {
+		final ListingQuery facetQuery = new ListingQuery();
+		applySearchParameters(getParameters(req), facetQuery);
+		facetQuery.setMaxResults(1);
+		final IListingResult result = queryCoalescer.execute(ListingQueryKey.of(facetQuery), new Callable<IListingResult>() {
+			@Override
+			public IListingResult call() throws Exception {
+				final long version = facetCache.getVersion();
+				final IListingResult found = listingService.findListings(facetQuery);
+				if (null != found) {
+					facetCache.put(facetKey, found.getFacets(), version);
+				}
+				return found;
+			}
+		});
+		return null != result ? result.getFacets() : null;
 	}
 
-	private void writeFacet(final IListingResultFacet facet, final JsonGenerator json) throws IOException {
-		if (null == facet) {
-			return;
-		}
-		json.writeStartObject();
-
-		json.writeFieldName("label");
-		json.writeString(facet.getLabel());
-
-		json.writeFieldName("id");
-		json.writeString(facet.getId());
-
-		json.writeFieldName("values");
-		json.writeStartArray();
-		final IListingResultFacetValue[] values = facet.getValues();
-		for (final IListingResultFacetValue value : values) {
-			json.writeStartObject();
-			writeValue("value", value.getValue(), json);
-			writeValue("count", value.getCount(), json);
-			writeValue("filter", value.toFilterQuery(), json);
-			json.writeEndObject();
-		}
-		json.writeEndArray();
-
-		json.writeEndObject();
+	/**
+	 * Executes a query which missed the result cache and caches its result.
+	 * <p>
+	 * Identical concurrent requests share a single execution. The cache
+	 * versions are read by that execution before querying so that a result
+	 * which was found during a commit is not cached.
+	 * </p>
+	 * 
+	 * @param listingService
+	 * @param query
+	 * @param queryKey
+	 * @param facetKey
+	 *            the key to cache the facets of the result under (maybe
+	 *            <code>null</code> if they do not cover the whole search)
+	 * @return the result (maybe <code>null</code>)
+	 * @throws ServerBusyException
+	 * @throws ApplicationException
+	 */
+	private IListingResult findListings(final IListingService listingService, final ListingQuery query, final ListingQueryKey queryKey, final ListingQueryKey facetKey) throws ServerBusyException, ApplicationException {
+		return queryCoalescer.execute(queryKey, new Callable<IListingResult>() {
+			@Override
+			public IListingResult call() throws Exception {
+				final long version = resultCache.getVersion();
+				final long facetVersion = facetCache.getVersion();
+				final IListingResult found = listingService.findListings(query);
+				if (null != found) {
+					resultCache.put(queryKey, found, version);
+					if (null != facetKey) {
+						facetCache.put(facetKey, found.getFacets(), facetVersion);
+					}
+				}
+				return found;
+			}
+		});
 	}
 
-	private void writeProduct(final IListing listing, final JsonGenerator json, final HttpServletRequest req, final Enhancer enhancer) throws IOException {
-		if (null == listing) {
-			return;
+	/**
+	 * Loads the variations of a product or the master of a variation.
+	 * <p>
+	 * All related listings are loaded with a single query which shares the
+	 * result cache and the execution of identical concurrent requests.
+	 * </p>
+	 * 
+	 * @param listingService
+	 * @param product
+	 * @return the related listings by id (never <code>null</code>)
+	 * @throws ServerBusyException
+	 * @throws ApplicationException
+	 */
+	private Map<String, IListing> loadRelatedListings(final IListingService listingService, final IListing product) throws ServerBusyException, ApplicationException {
+		final List<String> relatedIds = getRelatedIds(product);
+		if (relatedIds.isEmpty()) {
+			return Collections.emptyMap();
 		}
-		json.writeStartObject();
-
-		writeValue("id", listing.getId(), json);
-		writeValue("name", listing.getName(), json);
-		writeValue("title", listing.getTitle(), json);
-		writeValue("description", listing.getDescription(), json);
-		writeValue("uri", getBaseUrl(req).append(listing.getUriPath()).toString(), json);
-		writeValue("uripath", listing.getUriPath(), json);
-
-		final IListingAttribute categoryAttribute = listing.getAttribute("category");
-		if ((null != categoryAttribute) && (categoryAttribute.getValues().length > 0)) {
-			writeValue("category", categoryAttribute.getValues()[0].toString(), json);
+		final ListingQuery query = VariationLoader.setIdFilter(new ListingQuery(), relatedIds);
+		final ListingQueryKey queryKey = ListingQueryKey.of(query);
+		IListingResult result = resultCache.get(queryKey);
+		if (null == result) {
+			result = findListings(listingService, query, queryKey, null);
 		}
+		return VariationLoader.mapById(result);
+	}
 
-		final IListingAttribute priceAttribute = listing.getAttribute("price");
-		if ((null != priceAttribute) && (priceAttribute.getValues().length > 0)) {
-			// the first price the formated store price
-			writeValue("shopPrice", MeasureFormat.getCurrencyFormat(ULocale.GERMANY).format(new CurrencyAmount((Double) priceAttribute.getValues()[0], com.ibm.icu.util.Currency.getInstance("EUR"))), json);
-		}
+	/**
+	 * Indicates if a result is the single listing of a URI path.
+	 */
+	private static boolean isListing(final IListingResult result, final String uriPath) {
+		final IListing[] listings = null != result ? result.getListings() : null;
+		return (null != listings) && (listings.length == 1) && uriPath.equals(listings[0].getUriPath());
+	}
 
-		final IListingAttribute typeAttribute = listing.getAttribute("type");
-		if ((null != typeAttribute) && (typeAttribute.getValues().length > 0)) {
-			writeValue("type", typeAttribute.getValues()[0].toString(), json);
+	/**
+	 * Selects the requested facets.
+	 * 
+	 * @param facets
+	 * @param selection
+	 *            <code>all</code> or a comma separated list of facet ids
+	 * @return the selected facets (maybe <code>null</code>)
+	 */
+	private IListingResultFacet[] selectFacets(final IListingResultFacet[] facets, final String selection) {
+		if (null == facets) {
+			return null;
 		}
-
-		final IListingAttribute parentIdAttribute = listing.getAttribute("parentid");
-		if ((null != parentIdAttribute) && (parentIdAttribute.getValues().length > 0)) {
-			writeValue("parentid", parentIdAttribute.getValues()[0].toString(), json);
+		if ("all".equals(selection)) {
+			return facets;
 		}
-
-		final IListingAttribute[] attributes = listing.getAttributes();
-		if (attributes.length > 0) {
-			json.writeFieldName("attributes");
-			json.writeStartObject();
-			final ObjectMapper javaTypeMapper = new ObjectMapper();
-			for (final IListingAttribute attribute : attributes) {
-				json.writeFieldName(attribute.getName());
-				json.writeStartArray();
-				for (final Object object : attribute.getValues()) {
-					javaTypeMapper.writeValue(json, object);
-				}
-				json.writeEndArray();
+		final Set<String> ids = new HashSet<String>(Arrays.asList(StringUtils.split(selection, ", ")));
+		final List<IListingResultFacet> selected = new ArrayList<IListingResultFacet>(ids.size());
+		for (final IListingResultFacet facet : facets) {
+			if ((null != facet) && ids.contains(facet.getId())) {
+				selected.add(facet);
 			}
-			json.writeEndObject();
-		}
-
-		if (null != enhancer) {
-			enhancer.enhanceWithinObject(json);
-		}
-
-		json.writeEndObject();
-	}
-
-	private void writeProductsResult(final IListingResult result, final JsonGenerator json, final HttpServletRequest req) throws IOException {
-		json.writeStartObject();
-
-		writeValue("version", "1.0", json);
-		writeValue("type", "application/x-gyrex-fanshop-products-json", json);
-
-		json.writeFieldName("query");
-		writeQuery(result.getQuery(), json);
-
-		writeValue("queryTime", result.getQueryTime(), json);
-		writeValue("numFound", result.getNumFound(), json);
-		writeValue("startOffset", result.getStartOffset(), json);
-
-		json.writeFieldName("facets");
-		json.writeStartArray();
-		for (final IListingResultFacet facet : result.getFacets()) {
-			writeFacet(facet, json);
-		}
-		json.writeEndArray();
-
-		json.writeFieldName("products");
-		json.writeStartArray();
-		for (final IListing listing : result.getListings()) {
-			writeProduct(listing, json, req, null);
 		}
-		json.writeEndArray();
-
-		json.writeEndObject();
+		return selected.toArray(new IListingResultFacet[selected.size()]);
 	}
 
-	private void writeQuery(final ListingQuery query, final JsonGenerator json) throws IOException {
-		if (null == query) {
+	private void setContentHeaders(final HttpServletResponse resp, final boolean text, final boolean binary, final String etag, final long lastModified, final int maxAge) {
+		if (binary) {
+			resp.setContentType(BinaryJsonGenerator.CONTENT_TYPE);
+			ResponseValidators.setCacheHeaders(resp, etag, lastModified, maxAge);
 			return;
 		}
-		json.writeStartObject();
-
-		if (null != query.getAdvancedQuery()) {
-			writeValue("advancedQuery", query.getAdvancedQuery(), json);
+		if (text) {
+			resp.setContentType("text/plain");
 		} else {
-			writeValue("query", query.getQuery(), json);
+			resp.setContentType("application/json");
 		}
+		resp.setCharacterEncoding("UTF-8");
+		ResponseValidators.setCacheHeaders(resp, etag, lastModified, maxAge);
+	}
 
-		final List<String> filterQueries = query.getFilterQueries();
-		if (!filterQueries.isEmpty()) {
-			json.writeFieldName("filters");
-			json.writeStartArray();
-			for (final String filter : filterQueries) {
-				json.writeString(filter);
-			}
-			json.writeEndArray();
-		}
+	private void sendServerBusy(final HttpServletResponse resp, final ServerBusyException e) throws IOException {
+		resp.setIntHeader("Retry-After", queryCoalescer.getRetryAfter());
+		resp.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, e.getMessage());
+	}
 
-		final Map<String, SortDirection> sortFields = query.getSortFields();
-		if (!sortFields.isEmpty()) {
-			json.writeFieldName("sortFields");
-			json.writeStartObject();
-			for (final Entry<String, SortDirection> entry : sortFields.entrySet()) {
-				json.writeFieldName(entry.getKey());
-				switch (entry.getValue()) {
-					case DESCENDING:
-						json.writeString("desc");
-						break;
-					case ASCENDING:
-					default:
-						json.writeString("asc");
-						break;
+	@SuppressWarnings("unchecked")
+	private Map<String, String[]> getParameters(final HttpServletRequest req) {
+		return req.getParameterMap();
+	}
+
+	/**
+	 * Returns the ids of a multi-get request.
+	 * 
+	 * @param req
+	 * @return the unique ids in request order
+	 * @throws ApplicationException
+	 *             if there are no or too many ids
+	 */
+	private List<String> getIds(final HttpServletRequest req) throws ApplicationException {
+		final Set<String> ids = new LinkedHashSet<String>();
+		final String[] values = req.getParameterValues("id");
+		if (null != values) {
+			for (final String value : values) {
+				for (final String id : StringUtils.split(value, ", ")) {
+					ids.add(id);
 				}
 			}
-			json.writeEndObject();
 		}
-
-		json.writeFieldName("dimension");
-		switch (query.getResultDimension()) {
-			case FULL:
-				json.writeString("full");
-				break;
-
-			case COMPACT:
-			default:
-				json.writeString("compact");
-				break;
+		if (ids.isEmpty()) {
+			throw new ApplicationException(400, "at least one id is required");
 		}
-
-		json.writeEndObject();
+		if (ids.size() > maxIdsPerRequest) {
+			throw new ApplicationException(400, "at most " + maxIdsPerRequest + " ids are allowed");
+		}
+		return new ArrayList<String>(ids);
 	}
 
-	private void writeSingleProductResult(final IListingResult result, final JsonGenerator json, final HttpServletRequest req) throws IOException {
-		json.writeStartObject();
-
-		writeValue("version", "1.0", json);
-		writeValue("type", "application/x-gyrex-fanshop-product-json", json);
-
-		json.writeFieldName("query");
-		writeQuery(result.getQuery(), json);
-
-		writeValue("queryTime", result.getQueryTime(), json);
-		//writeValue("numFound", result.getNumFound(), json);
-		//writeValue("startOffset", result.getStartOffset(), json);
-
-		final IListing[] listings = result.getListings();
-		if (listings.length == 1) {
-			json.writeFieldName("product");
-			final IListing product = listings[0];
-			writeProduct(product, json, req, new Enhancer() {
-
-				@Override
-				public void enhanceWithinObject(final JsonGenerator json) throws IOException {
-					//					final String productType = (String) product.getAttribute("type").getValues()[0];
-					//					if ("variable-product".equals(productType)) {
-					//						final Object[] variationids = product.getAttribute("variationids").getValues();
-					//						json.writeFieldName("variations");
-					//						json.writeStartObject();
-					//						final IListingManager manager = ModelUtil.getManager(IListingManager.class, getContext());
-					//						for (final Object variationId : variationids) {
-					//							final IListing variation = manager.findById((String) variationId);
-					//							if (null != variation) {
-					//								json.writeFieldName((String) variationId);
-					//								writeProduct(variation, json, req, null);
-					//							}
-					//						}
-					//						json.writeEndObject();
-					//					} else if ("variation".equals(productType)) {
-					//						final String masterid = (String) product.getAttribute("parentid").getValues()[0];
-					//						final IListingManager manager = ModelUtil.getManager(IListingManager.class, getContext());
-					//						final IListing master = manager.findById(masterid);
-					//						if (null != master) {
-					//							json.writeFieldName("master");
-					//							writeProduct(master, json, req, null);
-					//						}
-					//					}
+	/**
+	 * Returns the ids of the variations of a product or the id of the master
+	 * of a variation.
+	 * 
+	 * @param product
+	 * @return the ids (at most {@link VariationLoader#getMaxPerProduct()})
+	 */
+	private List<String> getRelatedIds(final IListing product) {
+		final String productType = getFirstValue(product, "type");
+		if ("variable-product".equals(productType)) {
+			final IListingAttribute variationIdsAttribute = product.getAttribute("variationids");
+			if ((null == variationIdsAttribute) || (variationIdsAttribute.getValues().length == 0)) {
+				return Collections.emptyList();
+			}
+			final List<String> variationIds = new ArrayList<String>(Math.min(variationIdsAttribute.getValues().length, variationLoader.getMaxPerProduct()));
+			for (final Object variationId : variationIdsAttribute.getValues()) {
+				if (variationIds.size() == variationLoader.getMaxPerProduct()) {
+					break;
 				}
-			});
+				variationIds.add(variationId.toString());
+			}
+			return variationIds;
+		} else if ("variation".equals(productType)) {
+			final String masterId = getFirstValue(product, VariationLoader.PARENT_ID);
+			if (null != masterId) {
+				return Collections.singletonList(masterId);
+			}
 		}
-
-		json.writeEndObject();
+		return Collections.emptyList();
 	}
 
-	private void writeValue(final String name, final long value, final JsonGenerator json) throws IOException {
-		json.writeFieldName(name);
-		json.writeNumber(value);
+	private String getFirstValue(final IListing listing, final String attributeName) {
+		final IListingAttribute attribute = listing.getAttribute(attributeName);
+		if ((null == attribute) || (attribute.getValues().length == 0) || (null == attribute.getValues()[0])) {
+			return null;
+		}
+		return attribute.getValues()[0].toString();
 	}
 
-	private void writeValue(final String name, final String value, final JsonGenerator json) throws IOException, JsonGenerationException {
-		if (StringUtils.isNotBlank(value)) {
-			json.writeFieldName(name);
-			json.writeString(value);
-		}
+	/**
+	 * Returns the context.
+	 * 
+	 * @return the context
+	 */
+	public IRuntimeContext getContext() {
+		return context;
 	}
 }
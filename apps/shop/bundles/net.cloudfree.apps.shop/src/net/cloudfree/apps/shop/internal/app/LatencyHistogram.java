@@ -0,0 +1,116 @@
+/*******************************************************************************
+ * Copyright (c) 2010 Gunnar Wagenknecht and others.
+ * All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html.
+ *
+ * Contributors:
+ *     Gunnar Wagenknecht - initial API and implementation
+ *******************************************************************************/
+package net.cloudfree.apps.shop.internal.app;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free histogram of latencies for computing percentiles.
+ * <p>
+ * Values are counted in log-linear buckets: exact below 16, above that eight
+ * buckets per power of two (ie. a relative error of at most 12.5%). Recording
+ * is a single atomic increment, so any number of threads may record
+ * concurrently. Percentiles are computed from a (not necessarily consistent)
+ * snapshot of the counts.
+ * </p>
+ */
+final class LatencyHistogram {
+
+	private static final int SUB_BUCKET_BITS = 3;
+	private static final int LINEAR_LIMIT = 1 << (SUB_BUCKET_BITS + 1);
+	private static final int BUCKETS = LINEAR_LIMIT + ((63 - (SUB_BUCKET_BITS + 1)) << SUB_BUCKET_BITS);
+
+	private static int getBucket(final long value) {
+		if (value < LINEAR_LIMIT) {
+			return value > 0 ? (int) value : 0;
+		}
+		final int exponent = 63 - Long.numberOfLeadingZeros(value);
+		final int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & ((1 << SUB_BUCKET_BITS) - 1);
+		return LINEAR_LIMIT + ((exponent - (SUB_BUCKET_BITS + 1)) << SUB_BUCKET_BITS) + subBucket;
+	}
+
+	private static long getUpperBound(final int bucket) {
+		if (bucket < LINEAR_LIMIT) {
+			return bucket;
+		}
+		final int exponent = ((bucket - LINEAR_LIMIT) >> SUB_BUCKET_BITS) + SUB_BUCKET_BITS + 1;
+		final int subBucket = (bucket - LINEAR_LIMIT) & ((1 << SUB_BUCKET_BITS) - 1);
+		final int shift = exponent - SUB_BUCKET_BITS;
+		return (((long) ((1 << SUB_BUCKET_BITS) + subBucket + 1)) << shift) - 1;
+	}
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+	/**
+	 * Returns the number of recorded values.
+	 *
+	 * @return the count
+	 */
+	long getCount() {
+		long count = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			count += counts.get(i);
+		}
+		return count;
+	}
+
+	/**
+	 * Returns a percentile of the recorded values.
+	 *
+	 * @param percentile
+	 *            the percentile (eg. <code>0.99</code>)
+	 * @return the (upper bound of the) value at the percentile or
+	 *         <code>0</code> if nothing was recorded
+	 */
+	long getPercentile(final double percentile) {
+		final long[] snapshot = new long[BUCKETS];
+		long count = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			snapshot[i] = counts.get(i);
+			count += snapshot[i];
+		}
+		if (count == 0) {
+			return 0;
+		}
+		final long rank = Math.max(1, (long) Math.ceil(percentile * count));
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += snapshot[i];
+			if (seen >= rank) {
+				return getUpperBound(i);
+			}
+		}
+		return getUpperBound(BUCKETS - 1);
+	}
+
+	/**
+	 * Records a value.
+	 *
+	 * @param value
+	 *            the value (negative values are counted as zero)
+	 */
+	void record(final long value) {
+		counts.incrementAndGet(getBucket(value));
+	}
+
+	/**
+	 * Removes all recorded values.
+	 * <p>
+	 * Values recorded concurrently may or may not be removed.
+	 * </p>
+	 */
+	void reset() {
+		for (int i = 0; i < BUCKETS; i++) {
+			counts.set(i, 0);
+		}
+	}
+}
@@ -0,0 +1,249 @@
+/*******************************************************************************
+ * Copyright (c) 2010 Gunnar Wagenknecht and others.
+ * All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html.
+ *
+ * Contributors:
+ *     Gunnar Wagenknecht - initial API and implementation
+ *******************************************************************************/
+package net.cloudfree.apps.shop.internal.app;
+
+import java.io.UnsupportedEncodingException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.TimeZone;
+
+import org.eclipse.gyrex.cds.model.IListing;
+import org.eclipse.gyrex.cds.model.IListingAttribute;
+import org.eclipse.gyrex.cds.model.documents.Document;
+import org.eclipse.gyrex.cds.service.query.ListingQuery;
+import org.eclipse.gyrex.cds.service.query.ListingQuery.ResultDimension;
+import org.eclipse.gyrex.cds.service.query.ListingQuery.SortDirection;
+import org.eclipse.gyrex.cds.service.result.IListingResult;
+import org.eclipse.gyrex.http.application.ApplicationException;
+
+import org.apache.commons.lang.StringUtils;
+
+/**
+ * Search-after paging for listing queries.
+ * <p>
+ * A cursor is an opaque token encoding the sort values of the last hit of a
+ * page. The next page is selected with a clause matching only hits sorting
+ * after these values instead of skipping a start offset, so every page costs
+ * the same as the first. The listing id is always appended as the last sort
+ * field to make the order total.
+ * </p>
+ * <p>
+ * Sorting by relevance cannot be expressed as a range clause. Thus, cursors only
+ * work with explicit sort fields (or the id order if there are none). The
+ * full result dimension is loaded so that the sort values of the last hit are
+ * available.
+ * </p>
+ */
+final class ListingCursor {
+
+	/** the cursor requesting the first page */
+	static final String FIRST = "*";
+
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	/**
+	 * Prepares a query for cursor paging and restricts it to the hits after
+	 * the cursor.
+	 *
+	 * @param query
+	 *            the query (with all sort fields already set)
+	 * @param cursor
+	 *            the cursor ({@link #FIRST} for the first page)
+	 * @throws ApplicationException
+	 *             if the cursor is invalid or does not match the sort order
+	 */
+	static void apply(final ListingQuery query, final String cursor) throws ApplicationException {
+		if (!query.getSortFields().containsKey(Document.ID)) {
+			query.addSortField(Document.ID, SortDirection.ASCENDING);
+		}
+		query.setResultDimension(ResultDimension.FULL);
+		if (FIRST.equals(cursor)) {
+			return;
+		}
+
+		final List<String> values = decode(cursor);
+		final List<Entry<String, SortDirection>> sortFields = new ArrayList<Entry<String, SortDirection>>(query.getSortFields().entrySet());
+		if (values.size() != (sortFields.size() * 2)) {
+			throw new ApplicationException(400, "cursor does not match the sort order");
+		}
+		for (int i = 0; i < sortFields.size(); i++) {
+			final Entry<String, SortDirection> sortField = sortFields.get(i);
+			if (!values.get(i * 2).equals(getSortKey(sortField))) {
+				throw new ApplicationException(400, "cursor does not match the sort order");
+			}
+		}
+
+		// (f1 > v1) OR (f1 = v1 AND f2 > v2) OR ...
+		final StringBuilder clause = new StringBuilder();
+		for (int i = 0; i < sortFields.size(); i++) {
+			if (i > 0) {
+				clause.append(" OR ");
+			}
+			clause.append('(');
+			for (int j = 0; j < i; j++) {
+				clause.append('+').append(sortFields.get(j).getKey()).append(':').append(ListingFilters.quote(values.get((j * 2) + 1))).append(' ');
+			}
+			final String value = ListingFilters.quote(values.get((i * 2) + 1));
+			clause.append('+').append(sortFields.get(i).getKey()).append(':');
+			if (sortFields.get(i).getValue() == SortDirection.DESCENDING) {
+				clause.append("{* TO ").append(value).append('}');
+			} else {
+				clause.append('{').append(value).append(" TO *}");
+			}
+			clause.append(')');
+		}
+		restrict(query, clause.toString());
+	}
+
+	private static List<String> decode(final String cursor) throws ApplicationException {
+		final String encoded;
+		try {
+			if ((cursor.length() % 2) != 0) {
+				throw new IllegalArgumentException();
+			}
+			final byte[] bytes = new byte[cursor.length() / 2];
+			for (int i = 0; i < bytes.length; i++) {
+				bytes[i] = (byte) Integer.parseInt(cursor.substring(i * 2, (i * 2) + 2), 16);
+			}
+			encoded = new String(bytes, "UTF-8");
+		} catch (final IllegalArgumentException e) {
+			throw new ApplicationException(400, "invalid cursor");
+		} catch (final UnsupportedEncodingException e) {
+			throw new IllegalStateException("UTF-8 not available", e);
+		}
+
+		// length prefixed values
+		final List<String> values = new ArrayList<String>();
+		int pos = 0;
+		while (pos < encoded.length()) {
+			final int separator = encoded.indexOf(':', pos);
+			if (separator < 0) {
+				throw new ApplicationException(400, "invalid cursor");
+			}
+			try {
+				final int length = Integer.parseInt(encoded.substring(pos, separator));
+				pos = separator + 1 + length;
+				values.add(encoded.substring(separator + 1, pos));
+			} catch (final RuntimeException e) {
+				throw new ApplicationException(400, "invalid cursor");
+			}
+		}
+		return values;
+	}
+
+	private static String encode(final List<String> values) {
+		final StringBuilder encoded = new StringBuilder();
+		for (final String value : values) {
+			encoded.append(value.length()).append(':').append(value);
+		}
+		final byte[] bytes;
+		try {
+			bytes = encoded.toString().getBytes("UTF-8");
+		} catch (final UnsupportedEncodingException e) {
+			throw new IllegalStateException("UTF-8 not available", e);
+		}
+		final StringBuilder cursor = new StringBuilder(bytes.length * 2);
+		for (final byte b : bytes) {
+			cursor.append(HEX[(b >> 4) & 0xf]).append(HEX[b & 0xf]);
+		}
+		return cursor.toString();
+	}
+
+	private static String getSortKey(final Entry<String, SortDirection> sortField) {
+		return (sortField.getValue() == SortDirection.DESCENDING ? "-" : "+").concat(sortField.getKey());
+	}
+
+	private static String getSortValue(final IListing listing, final String field) {
+		if (Document.ID.equals(field)) {
+			return listing.getId();
+		}
+		final IListingAttribute attribute = listing.getAttribute(field);
+		if ((null == attribute) || (attribute.getValues().length == 0) || (null == attribute.getValues()[0])) {
+			return null;
+		}
+		final Object value = attribute.getValues()[0];
+		if (value instanceof Date) {
+			// Solr date syntax
+			final SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'", Locale.US);
+			format.setTimeZone(TimeZone.getTimeZone("UTC"));
+			return format.format((Date) value);
+		}
+		return value.toString();
+	}
+
+	/**
+	 * Creates the cursor for the page following a result.
+	 *
+	 * @param query
+	 *            the query prepared using {@link #apply(ListingQuery, String)}
+	 * @param result
+	 *            the result
+	 * @return the cursor or <code>null</code> if there is no next page
+	 * @throws ApplicationException
+	 *             if the last hit lacks a value of a sort field
+	 */
+	static String next(final ListingQuery query, final IListingResult result) throws ApplicationException {
+		final IListing[] listings = result.getListings();
+		if ((listings.length == 0) || (listings.length < query.getMaxResults())) {
+			return null;
+		}
+
+		final IListing last = listings[listings.length - 1];
+		final Map<String, SortDirection> sortFields = query.getSortFields();
+		final List<String> values = new ArrayList<String>(sortFields.size() * 2);
+		for (final Entry<String, SortDirection> sortField : sortFields.entrySet()) {
+			final String value = getSortValue(last, sortField.getKey());
+			if (null == value) {
+				throw new ApplicationException(400, "listing " + last.getId() + " has no value for sort field " + sortField.getKey() + "; cursors require sort fields set on all listings");
+			}
+			values.add(getSortKey(sortField));
+			values.add(value);
+		}
+		return encode(values);
+	}
+
+	/**
+	 * Restricts a query to the hits matching a search-after clause.
+	 * <p>
+	 * The clause is added to the main query (<code>+(q) +(clause)</code>)
+	 * instead of a filter query. The bound differs on every page and would
+	 * only evict the reusable filters from the filter cache of the index.
+	 * Simple (dismax) queries cannot be combined with a clause in one query
+	 * and keep it as a filter query.
+	 * </p>
+	 *
+	 * @param query
+	 *            the query
+	 * @param clause
+	 *            the clause (Lucene query syntax)
+	 */
+	static void restrict(final ListingQuery query, final String clause) {
+		final String advancedQuery = StringUtils.trimToNull(query.getAdvancedQuery());
+		if (null != advancedQuery) {
+			query.setAdvancedQuery("+(" + advancedQuery + ") +(" + clause + ")");
+		} else if (null == StringUtils.trimToNull(query.getQuery())) {
+			// the clause alone matches all listings after the bound
+			query.setAdvancedQuery("+(" + clause + ")");
+		} else {
+			query.addFilterQuery(clause);
+		}
+	}
+
+	private ListingCursor() {
+		// empty
+	}
+}
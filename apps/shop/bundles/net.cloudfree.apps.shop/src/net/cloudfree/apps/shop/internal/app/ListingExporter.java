@@ -0,0 +1,199 @@
+/*******************************************************************************
+ * Copyright (c) 2010 Gunnar Wagenknecht and others.
+ * All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html.
+ *
+ * Contributors:
+ *     Gunnar Wagenknecht - initial API and implementation
+ *******************************************************************************/
+package net.cloudfree.apps.shop.internal.app;
+
+import java.io.FilterWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.concurrent.Callable;
+
+import net.cloudfree.apps.shop.internal.app.ListingQueryExecutor.ServerBusyException;
+
+import org.eclipse.gyrex.cds.model.IListing;
+import org.eclipse.gyrex.cds.model.documents.Document;
+import org.eclipse.gyrex.cds.service.IListingService;
+import org.eclipse.gyrex.cds.service.query.ListingQuery;
+import org.eclipse.gyrex.cds.service.query.ListingQuery.SortDirection;
+import org.eclipse.gyrex.cds.service.result.IListingResult;
+import org.eclipse.gyrex.http.application.ApplicationException;
+
+import org.codehaus.jackson.JsonGenerator;
+
+/**
+ * Streams all listings matching a query as newline delimited JSON.
+ * <p>
+ * The index is traversed in id order using the id of the last written listing
+ * as the lower bound of the next page (instead of a start offset). Every page
+ * therefore costs the same and only one page is held in memory. The id of the
+ * last received listing is also the cursor for resuming an interrupted export;
+ * it is written on every line regardless of the field projection.
+ * </p>
+ * <p>
+ * The last line is a terminal record telling a complete export
+ * (<code>{"complete":true,"count":n}</code>) from one which failed after
+ * streaming had started (<code>{"complete":false,"count":n,"cursor":"id","error":"message"}</code>),
+ * in which case the cursor resumes the export. A connection closed without a
+ * terminal record was interrupted as well.
+ * </p>
+ */
+final class ListingExporter {
+
+	/**
+	 * Prevents the per-line JSON generators from closing or flushing the
+	 * response writer. The response is flushed once per page.
+	 */
+	private static final class UnclosableWriter extends FilterWriter {
+		UnclosableWriter(final Writer out) {
+			super(out);
+		}
+
+		@Override
+		public void close() throws IOException {
+			// empty
+		}
+
+		@Override
+		public void flush() throws IOException {
+			// empty
+		}
+	}
+
+	private static void writeEnd(final Writer lineWriter, final long written, final String cursor, final String error) throws IOException {
+		final JsonGenerator json = ListingJsonWriter.createGenerator(lineWriter, false);
+		json.writeStartObject();
+		json.writeFieldName("complete");
+		json.writeBoolean(null == error);
+		json.writeFieldName("count");
+		json.writeNumber(written);
+		if (null != error) {
+			json.writeFieldName("cursor");
+			json.writeString(cursor);
+			json.writeFieldName("error");
+			json.writeString(error);
+		}
+		json.writeEndObject();
+		json.close();
+		lineWriter.write('\n');
+	}
+
+	/** default number of listings fetched per index query */
+	static final int DEFAULT_PAGE_SIZE = 500;
+
+	private final IListingService listingService;
+	private final ListingQueryCoalescer queryCoalescer;
+	private final int pageSize;
+
+	/**
+	 * Creates a new instance.
+	 *
+	 * @param listingService
+	 *            the listing service
+	 * @param queryCoalescer
+	 *            for executing the page queries
+	 * @param pageSize
+	 *            the number of listings fetched per index query
+	 */
+	ListingExporter(final IListingService listingService, final ListingQueryCoalescer queryCoalescer, final int pageSize) {
+		this.listingService = listingService;
+		this.queryCoalescer = queryCoalescer;
+		this.pageSize = Math.max(1, pageSize);
+	}
+
+	/**
+	 * Exports all listings matching the query.
+	 *
+	 * @param query
+	 *            the query (will be modified)
+	 * @param cursor
+	 *            the id of the last listing already received (maybe
+	 *            <code>null</code> to start at the beginning)
+	 * @param listingWriter
+	 *            the listing writer
+	 * @param writer
+	 *            the response writer
+	 * @return the number of listings written
+	 * @throws IOException
+	 * @throws ServerBusyException
+	 *             if the first page could not be queried in time (nothing
+	 *             has been written); later failures end the export with an
+	 *             error record
+	 * @throws ApplicationException
+	 *             if the first page failed (nothing has been written)
+	 */
+	long export(final ListingQuery query, final String cursor, final ListingJsonWriter listingWriter, final Writer writer) throws IOException, ServerBusyException, ApplicationException {
+		final String userQuery = query.getQuery();
+		final String advancedQuery = query.getAdvancedQuery();
+		final String[] filters = query.getFilterQueries().toArray(new String[0]);
+		query.addSortField(Document.ID, SortDirection.ASCENDING);
+		query.setStartIndex(0);
+		query.setMaxResults(pageSize);
+
+		final Writer lineWriter = new UnclosableWriter(writer);
+
+		long written = 0;
+		String lastId = cursor;
+		while (true) {
+			query.setQuery(userQuery);
+			query.setAdvancedQuery(advancedQuery);
+			query.setFilterQueries(filters);
+			if (null != lastId) {
+				ListingCursor.restrict(query, Document.ID + ":{" + ListingFilters.quote(lastId) + " TO *}");
+			}
+
+			final IListingResult result;
+			try {
+				result = queryCoalescer.execute(ListingQueryKey.of(query), new Callable<IListingResult>() {
+					@Override
+					public IListingResult call() throws Exception {
+						return listingService.findListings(query);
+					}
+				});
+			} catch (final ServerBusyException e) {
+				if (written == 0) {
+					throw e;
+				}
+				writeEnd(lineWriter, written, lastId, e.getMessage());
+				writer.flush();
+				return written;
+			} catch (final ApplicationException e) {
+				if (written == 0) {
+					throw e;
+				}
+				writeEnd(lineWriter, written, lastId, e.getMessage());
+				writer.flush();
+				return written;
+			}
+			if (null == result) {
+				break;
+			}
+
+			final IListing[] listings = result.getListings();
+			for (final IListing listing : listings) {
+				final JsonGenerator json = ListingJsonWriter.createGenerator(lineWriter, false);
+				listingWriter.writeExportedProduct(listing, json);
+				json.close();
+				writer.write('\n');
+				lastId = listing.getId();
+				written++;
+			}
+			// one network flush per page
+			writer.flush();
+
+			if (listings.length < pageSize) {
+				break;
+			}
+		}
+		writeEnd(lineWriter, written, lastId, null);
+		writer.flush();
+		return written;
+	}
+}
@@ -0,0 +1,168 @@
+/*******************************************************************************
+ * Copyright (c) 2010 Gunnar Wagenknecht and others.
+ * All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html.
+ *
+ * Contributors:
+ *     Gunnar Wagenknecht - initial API and implementation
+ *******************************************************************************/
+package net.cloudfree.apps.shop.internal.app;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import net.cloudfree.apps.shop.internal.app.ListingIndexMonitor.IndexCommitListener;
+
+import org.eclipse.gyrex.cds.service.result.IListingResultFacet;
+
+/**
+ * A size bounded LRU cache of facet counts.
+ * <p>
+ * Facets are cached independently of the hit list using
+ * {@link ListingQueryKey#ofFacets(org.eclipse.gyrex.cds.service.query.ListingQuery)}
+ * so that all pages of a search share one entry. Entries expire after a
+ * configurable time-to-live and the whole cache is cleared whenever a commit
+ * of the listing index is detected.
+ * Every entry is tagged with the index version it was queried at so that a
+ * query which was still running during a commit cannot put its stale result
+ * back into the cache.
+ * </p>
+ */
+final class ListingFacetCache implements IndexCommitListener {
+
+	private static final class CacheEntry {
+		final IListingResultFacet[] facets;
+		final long expires;
+		final long version;
+
+		CacheEntry(final IListingResultFacet[] facets, final long expires, final long version) {
+			this.facets = facets;
+			this.expires = expires;
+			this.version = version;
+		}
+	}
+
+	/** default maximum number of entries */
+	static final int DEFAULT_MAX_ENTRIES = 500;
+
+	/** default time-to-live in milliseconds */
+	static final long DEFAULT_TTL = 300000L;
+
+	private final int maxEntries;
+	private final long ttl;
+	private final ShopMetrics metrics;
+	private final LinkedHashMap<ListingQueryKey, CacheEntry> entries;
+	private volatile long version = -1;
+
+	/**
+	 * Creates a new instance.
+	 *
+	 * @param maxEntries
+	 *            the maximum number of entries (zero disables the cache)
+	 * @param ttl
+	 *            the time-to-live of an entry in milliseconds
+	 * @param metrics
+	 *            the metrics to update
+	 */
+	ListingFacetCache(final int maxEntries, final long ttl, final ShopMetrics metrics) {
+		this.maxEntries = Math.max(0, maxEntries);
+		this.ttl = ttl;
+		this.metrics = metrics;
+		entries = new LinkedHashMap<ListingQueryKey, CacheEntry>(16, 0.75f, true) {
+			/** serialVersionUID */
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(final Map.Entry<ListingQueryKey, CacheEntry> eldest) {
+				return size() > ListingFacetCache.this.maxEntries;
+			}
+		};
+	}
+
+	/**
+	 * Returns cached facets.
+	 *
+	 * @param key
+	 *            the facet key
+	 * @return the facets or <code>null</code> if not cached or expired
+	 */
+	IListingResultFacet[] get(final ListingQueryKey key) {
+		if (maxEntries == 0) {
+			return null;
+		}
+		final long now = System.currentTimeMillis();
+		metrics.getFacetCacheMetric().requestStarted();
+		CacheEntry entry;
+		synchronized (entries) {
+			entry = entries.get(key);
+			if ((null != entry) && ((entry.expires < now) || (entry.version != version))) {
+				entries.remove(key);
+				entry = null;
+			}
+		}
+		if (null == entry) {
+			metrics.getFacetCacheMetric().requestFailed();
+			return null;
+		}
+		metrics.getFacetCacheMetric().requestFinished(0, System.currentTimeMillis() - now);
+		return entry.facets;
+	}
+
+	/**
+	 * Returns the index version of the cache.
+	 * <p>
+	 * Callers read the version before submitting a query and pass it to
+	 * {@link #put(ListingQueryKey, IListingResultFacet[], long)} afterwards.
+	 * </p>
+	 *
+	 * @return the version of the last detected commit, or <code>-1</code> if
+	 *         no commit was detected yet
+	 */
+	long getVersion() {
+		return version;
+	}
+
+	@Override
+	public void indexCommitted(final long version, final long lastModified) {
+		synchronized (entries) {
+			this.version = version;
+			entries.clear();
+		}
+	}
+
+	/**
+	 * Removes all entries from the cache.
+	 */
+	void invalidate() {
+		synchronized (entries) {
+			entries.clear();
+		}
+	}
+
+	/**
+	 * Adds facets to the cache.
+	 *
+	 * @param key
+	 *            the facet key
+	 * @param facets
+	 *            the facets
+	 * @param version
+	 *            the version returned by {@link #getVersion()} before the
+	 *            query was submitted; the facets are dropped if a commit was
+	 *            detected since then
+	 */
+	void put(final ListingQueryKey key, final IListingResultFacet[] facets, final long version) {
+		if ((maxEntries == 0) || (null == facets)) {
+			return;
+		}
+		final CacheEntry entry = new CacheEntry(facets, System.currentTimeMillis() + ttl, version);
+		synchronized (entries) {
+			if (version == this.version) {
+				entries.put(key, entry);
+			}
+		}
+	}
+}
@@ -0,0 +1,325 @@
+/*******************************************************************************
+ * Copyright (c) 2010 Gunnar Wagenknecht and others.
+ * All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html.
+ *
+ * Contributors:
+ *     Gunnar Wagenknecht - initial API and implementation
+ *******************************************************************************/
+package net.cloudfree.apps.shop.internal.app;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+/**
+ * Canonicalization of filter queries.
+ * <p>
+ * Solr caches every filter query string separately, thus semantically equal
+ * filters must be sent as equal strings. A filter is split into its top-level
+ * clauses. If all clauses are required (<code>+</code>, <code>AND</code>) or
+ * prohibited (<code>-</code>) the filter is a conjunction and every clause
+ * becomes a filter of its own (eg. <code>+category:a +tags:b</code> becomes
+ * <code>category:a</code> and <code>tags:b</code>), which can be cached and
+ * reused independently. Otherwise the filter is kept as a whole. Whitespace is
+ * collapsed and needless escapes are removed; quoted phrases are kept as is.
+ * Callers collect the filters in a sorted set, which removes duplicates and
+ * makes the order canonical, so the set is usable as a cache key.
+ * </p>
+ * <p>
+ * {@link #isStable(String) Stable} filters are added to (almost) every query
+ * and rarely change their result. They are re-warmed after every index
+ * commit.
+ * </p>
+ */
+final class ListingFilters {
+
+	/** the filter excluding variations from searches */
+	static final String EXCLUDE_VARIATIONS = "-type:variation";
+
+	/** filters which are cached long-term */
+	static final Set<String> STABLE_FILTERS = Collections.singleton(EXCLUDE_VARIATIONS);
+
+	/** characters which keep their escape */
+	private static final String SPECIAL_CHARS = "\\+-!():^[]\"{}~*?|&;/";
+
+	/** clauses which prevent splitting a filter */
+	private static final Set<String> NON_CONJUNCTIVE_OPERATORS = new HashSet<String>(Arrays.asList("OR", "||", "NOT", "!", "+", "-"));
+
+	/**
+	 * Adds the canonical form of a filter.
+	 *
+	 * @param filter
+	 *            the filter (may be <code>null</code> or blank)
+	 * @param filters
+	 *            the collection to add the canonical filters to
+	 */
+	static void canonicalize(final String filter, final Collection<String> filters) {
+		if (null == filter) {
+			return;
+		}
+		final List<String> clauses = split(filter);
+		if (null == clauses) {
+			// unbalanced; keep as is
+			final String trimmed = filter.trim();
+			if (trimmed.length() > 0) {
+				filters.add(trimmed);
+			}
+			return;
+		}
+		if (clauses.isEmpty()) {
+			return;
+		}
+		if ((clauses.size() == 1) && !NON_CONJUNCTIVE_OPERATORS.contains(clauses.get(0))) {
+			filters.add(canonicalizeClause(clauses.get(0)));
+			return;
+		}
+
+		// explicit AND makes both neighbors required
+		final List<String> conjunction = new ArrayList<String>(clauses.size());
+		boolean required = false;
+		for (int i = 0; i < clauses.size(); i++) {
+			final String clause = clauses.get(i);
+			if (NON_CONJUNCTIVE_OPERATORS.contains(clause)) {
+				filters.add(join(clauses));
+				return;
+			}
+			if ("AND".equals(clause) || "&&".equals(clause)) {
+				if (conjunction.isEmpty() || (i == (clauses.size() - 1))) {
+					filters.add(join(clauses));
+					return;
+				}
+				required = true;
+				continue;
+			}
+			final boolean nextIsAnd = (i < (clauses.size() - 1)) && ("AND".equals(clauses.get(i + 1)) || "&&".equals(clauses.get(i + 1)));
+			final char prefix = clause.charAt(0);
+			if ((prefix != '+') && (prefix != '-') && !required && !nextIsAnd) {
+				// optional clause; the filter is a disjunction
+				filters.add(join(clauses));
+				return;
+			}
+			conjunction.add(clause);
+			required = false;
+		}
+		for (final String clause : conjunction) {
+			filters.add(canonicalizeClause(clause));
+		}
+	}
+
+	/**
+	 * Returns the canonical form of a set of filters.
+	 *
+	 * @param filters
+	 *            the filters
+	 * @param canonicalFilters
+	 *            the collection to add the canonical filters to (a sorted set
+	 *            for a canonical order)
+	 */
+	static void canonicalize(final Collection<String> filters, final Collection<String> canonicalFilters) {
+		for (final String filter : filters) {
+			canonicalize(filter, canonicalFilters);
+		}
+	}
+
+	private static String canonicalizeClause(final String clause) {
+		// a required clause is just a filter
+		return normalize(clause.charAt(0) == '+' ? clause.substring(1) : clause);
+	}
+
+	/**
+	 * Indicates if a canonical filter is stable.
+	 *
+	 * @param filter
+	 *            the canonical filter
+	 * @return <code>true</code> if the filter should be cached long-term
+	 */
+	static boolean isStable(final String filter) {
+		return STABLE_FILTERS.contains(filter);
+	}
+
+	/**
+	 * Returns the shape of a canonical filter, ie. its fields without values
+	 * (eg. <code>-type</code> for <code>-type:variation</code> or
+	 * <code>category,tags</code> for <code>category:a OR tags:b</code>).
+	 *
+	 * @param filter
+	 *            the canonical filter
+	 * @return the shape
+	 */
+	static String shapeOf(final String filter) {
+		final SortedSet<String> fields = new TreeSet<String>();
+		boolean quoted = false;
+		for (int i = 0; i < filter.length(); i++) {
+			final char c = filter.charAt(i);
+			if (c == '\\') {
+				i++;
+			} else if (c == '"') {
+				quoted = !quoted;
+			} else if (!quoted && (c == ':')) {
+				int start = i;
+				while ((start > 0) && isFieldChar(filter.charAt(start - 1))) {
+					start--;
+				}
+				if (start < i) {
+					fields.add(filter.substring(start, i));
+				}
+			}
+		}
+		final StringBuilder shape = new StringBuilder();
+		if (filter.startsWith("-")) {
+			shape.append('-');
+		}
+		for (final String field : fields) {
+			if ((shape.length() > 0) && (shape.charAt(shape.length() - 1) != '-')) {
+				shape.append(',');
+			}
+			shape.append(field);
+		}
+		return fields.isEmpty() ? shape.append('*').toString() : shape.toString();
+	}
+
+	private static boolean isFieldChar(final char c) {
+		return Character.isLetterOrDigit(c) || (c == '_') || (c == '.');
+	}
+
+	/**
+	 * Quotes a value for use as a term or range bound.
+	 * <p>
+	 * Inside quotes only <code>"</code> and <code>\</code> must be escaped.
+	 * Unlike {@link org.eclipse.gyrex.cds.service.query.ListingQuery#escapeQueryChars(String)}
+	 * this keeps values containing whitespace or range syntax (eg. ids with
+	 * spaces or <code>TO</code>) a single bound.
+	 * </p>
+	 *
+	 * @param value
+	 *            the value
+	 * @return the quoted value
+	 */
+	static String quote(final String value) {
+		final StringBuilder quoted = new StringBuilder(value.length() + 2);
+		quoted.append('"');
+		for (int i = 0; i < value.length(); i++) {
+			final char c = value.charAt(i);
+			if ((c == '"') || (c == '\\')) {
+				quoted.append('\\');
+			}
+			quoted.append(c);
+		}
+		return quoted.append('"').toString();
+	}
+
+	private static String join(final List<String> clauses) {
+		final StringBuilder joined = new StringBuilder();
+		for (final String clause : clauses) {
+			if (joined.length() > 0) {
+				joined.append(' ');
+			}
+			joined.append(normalize(clause));
+		}
+		return joined.toString();
+	}
+
+	/**
+	 * Collapses whitespace and removes needless escapes.
+	 */
+	private static String normalize(final String body) {
+		final StringBuilder canonical = new StringBuilder(body.length());
+		boolean quoted = false;
+		boolean whitespace = false;
+		for (int i = 0; i < body.length(); i++) {
+			final char c = body.charAt(i);
+			if (c == '\\') {
+				if (++i < body.length()) {
+					final char escaped = body.charAt(i);
+					if (quoted || (SPECIAL_CHARS.indexOf(escaped) >= 0) || Character.isWhitespace(escaped)) {
+						canonical.append(c);
+					}
+					canonical.append(escaped);
+				}
+				whitespace = false;
+				continue;
+			}
+			if (quoted) {
+				canonical.append(c);
+				quoted = c != '"';
+				continue;
+			}
+			if (Character.isWhitespace(c)) {
+				whitespace = true;
+				continue;
+			}
+			if (whitespace) {
+				// single space between tokens, none inside brackets
+				final char last = canonical.length() > 0 ? canonical.charAt(canonical.length() - 1) : '(';
+				if ((last != '(') && (last != '[') && (last != '{') && (c != ')') && (c != ']') && (c != '}')) {
+					canonical.append(' ');
+				}
+				whitespace = false;
+			}
+			canonical.append(c);
+			quoted = c == '"';
+		}
+		return canonical.toString();
+	}
+
+	/**
+	 * Splits a filter into its top-level clauses.
+	 *
+	 * @return the clauses or <code>null</code> if the filter is not balanced
+	 */
+	private static List<String> split(final String filter) {
+		final List<String> clauses = new ArrayList<String>(4);
+		final StringBuilder clause = new StringBuilder(filter.length());
+		int depth = 0;
+		boolean quoted = false;
+		for (int i = 0; i < filter.length(); i++) {
+			final char c = filter.charAt(i);
+			if (c == '\\') {
+				clause.append(c);
+				if (++i < filter.length()) {
+					clause.append(filter.charAt(i));
+				}
+				continue;
+			}
+			if (quoted) {
+				quoted = c != '"';
+			} else if (c == '"') {
+				quoted = true;
+			} else if ((c == '(') || (c == '[') || (c == '{')) {
+				depth++;
+			} else if ((c == ')') || (c == ']') || (c == '}')) {
+				if (--depth < 0) {
+					return null;
+				}
+			} else if ((depth == 0) && Character.isWhitespace(c)) {
+				if (clause.length() > 0) {
+					clauses.add(clause.toString());
+					clause.setLength(0);
+				}
+				continue;
+			}
+			clause.append(c);
+		}
+		if (quoted || (depth != 0)) {
+			return null;
+		}
+		if (clause.length() > 0) {
+			clauses.add(clause.toString());
+		}
+		return clauses;
+	}
+
+	private ListingFilters() {
+		// empty
+	}
+}
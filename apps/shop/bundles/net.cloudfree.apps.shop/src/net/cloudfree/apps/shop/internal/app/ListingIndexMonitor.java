@@ -0,0 +1,179 @@
+/*******************************************************************************
+ * Copyright (c) 2010 Gunnar Wagenknecht and others.
+ * All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html.
+ *
+ * Contributors:
+ *     Gunnar Wagenknecht - initial API and implementation
+ *******************************************************************************/
+package net.cloudfree.apps.shop.internal.app;
+
+import java.util.Date;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.gyrex.cds.model.solr.ISolrQueryExecutor;
+import org.eclipse.gyrex.context.IRuntimeContext;
+
+import org.apache.solr.client.solrj.SolrQuery;
+import org.apache.solr.client.solrj.response.QueryResponse;
+import org.apache.solr.common.util.NamedList;
+
+/**
+ * Watches the listing index for commits.
+ * <p>
+ * The index version and last modification time are polled from the Solr Luke
+ * request handler. Registered listeners are notified whenever the version
+ * changes, i.e. whenever a commit made new data visible.
+ * </p>
+ */
+final class ListingIndexMonitor {
+
+	/**
+	 * Listener for index commits.
+	 */
+	static interface IndexCommitListener {
+		/**
+		 * Called after a commit was detected.
+		 *
+		 * @param version
+		 *            the new index version
+		 * @param lastModified
+		 *            the commit time (milliseconds since the epoch)
+		 */
+		void indexCommitted(long version, long lastModified);
+	}
+
+	/** default poll interval in milliseconds */
+	static final long DEFAULT_POLL_INTERVAL = 30000L;
+
+	private final IRuntimeContext context;
+	private final ListingServices services;
+	private final CopyOnWriteArrayList<IndexCommitListener> listeners = new CopyOnWriteArrayList<IndexCommitListener>();
+
+	private volatile long version = -1;
+	private volatile long lastModified = -1;
+	private volatile ScheduledExecutorService scheduler;
+
+	/**
+	 * Creates a new instance.
+	 *
+	 * @param context
+	 *            the context providing the configuration
+	 * @param services
+	 *            the services to obtain the index from
+	 */
+	ListingIndexMonitor(final IRuntimeContext context, final ListingServices services) {
+		this.context = context;
+		this.services = services;
+	}
+
+	void addListener(final IndexCommitListener listener) {
+		listeners.addIfAbsent(listener);
+	}
+
+	/**
+	 * Checks the index for a new version and notifies listeners if necessary.
+	 */
+	void checkIndex() {
+		final ISolrQueryExecutor queryExecutor = services.findQueryExecutor();
+		if (null == queryExecutor) {
+			return;
+		}
+
+		final SolrQuery query = new SolrQuery();
+		query.setQueryType("/admin/luke");
+		query.set("numTerms", 0);
+		final QueryResponse response = queryExecutor.query(query);
+		final NamedList<?> index = (NamedList<?>) response.getResponse().get("index");
+		if (null == index) {
+			return;
+		}
+
+		final Object newVersion = index.get("version");
+		final Object newLastModified = index.get("lastModified");
+		if (!(newVersion instanceof Number)) {
+			return;
+		}
+
+		final long currentVersion = ((Number) newVersion).longValue();
+		final long currentLastModified = newLastModified instanceof Date ? ((Date) newLastModified).getTime() : System.currentTimeMillis();
+		if ((version != -1) && (version != currentVersion)) {
+			// notify before publishing the new version so that nothing stale is tagged with it
+			for (final IndexCommitListener listener : listeners) {
+				listener.indexCommitted(currentVersion, currentLastModified);
+			}
+		}
+		lastModified = currentLastModified;
+		version = currentVersion;
+	}
+
+	/**
+	 * Returns the time of the last known commit.
+	 *
+	 * @return the commit time in milliseconds since the epoch, or
+	 *         <code>-1</code> if unknown
+	 */
+	long getLastModified() {
+		return lastModified;
+	}
+
+	/**
+	 * Returns the last known index version.
+	 *
+	 * @return the index version, or <code>-1</code> if unknown
+	 */
+	long getVersion() {
+		return version;
+	}
+
+	void removeListener(final IndexCommitListener listener) {
+		listeners.remove(listener);
+	}
+
+	/**
+	 * Starts polling the index.
+	 */
+	synchronized void start() {
+		if (null != scheduler) {
+			return;
+		}
+		final long pollInterval = Math.max(1000L, ShopPreferences.getLong(context, ShopPreferences.INDEX_POLL_INTERVAL, DEFAULT_POLL_INTERVAL));
+		scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(final Runnable r) {
+				final Thread thread = new Thread(r, "CloudFree Listing Index Monitor");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		scheduler.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					checkIndex();
+				} catch (final RuntimeException e) {
+					// index not available; keep the last known version and retry later
+				}
+			}
+		}, 0, pollInterval, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Stops polling the index.
+	 */
+	synchronized void stop() {
+		if (null == scheduler) {
+			return;
+		}
+		scheduler.shutdownNow();
+		scheduler = null;
+		listeners.clear();
+	}
+}
@@ -0,0 +1,497 @@
+/*******************************************************************************
+ * Copyright (c) 2010 Gunnar Wagenknecht and others.
+ * All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html.
+ *
+ * Contributors:
+ *     Gunnar Wagenknecht - initial API and implementation
+ *******************************************************************************/
+package net.cloudfree.apps.shop.internal.app;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import org.eclipse.gyrex.cds.model.IListing;
+import org.eclipse.gyrex.cds.model.IListingAttribute;
+import org.eclipse.gyrex.cds.service.query.ListingQuery;
+import org.eclipse.gyrex.cds.service.query.ListingQuery.SortDirection;
+import org.eclipse.gyrex.cds.service.result.IListingResult;
+import org.eclipse.gyrex.cds.service.result.IListingResultFacet;
+import org.eclipse.gyrex.cds.service.result.IListingResultFacetValue;
+
+import org.codehaus.jackson.JsonFactory;
+import org.codehaus.jackson.JsonGenerationException;
+import org.codehaus.jackson.JsonGenerator;
+import org.codehaus.jackson.map.ObjectMapper;
+
+import org.apache.commons.lang.StringUtils;
+
+/**
+ * Writes listing results as JSON.
+ * <p>
+ * The JSON factory and the object mapper are expensive to create but thread
+ * safe once configured. Thus, they are shared across all requests. Listing
+ * attribute values of the common types are written directly to the generator
+ * instead of going through the reflection based object mapper.
+ * </p>
+ * <p>
+ * Instances are cheap and bound to a single response (they capture the base
+ * URL used for building product URIs and the price format). They must not be
+ * shared across requests.
+ * </p>
+ */
+final class ListingJsonWriter {
+
+	/**
+	 * Allows to contribute additional fields to a product object.
+	 */
+	static interface Enhancer {
+		void enhanceWithinObject(JsonGenerator json) throws IOException;
+	}
+
+	/** shared factory (thread safe) */
+	private static final JsonFactory jsonFactory = new JsonFactory();
+
+	/** shared mapper for uncommon attribute values (thread safe) */
+	private static final ObjectMapper javaTypeMapper = new ObjectMapper();
+
+	/**
+	 * Creates a new JSON generator using the shared factory.
+	 *
+	 * @param writer
+	 *            the writer to write to
+	 * @param prettyPrint
+	 *            <code>true</code> if the output should be pretty printed
+	 * @return the generator
+	 * @throws IOException
+	 */
+	static JsonGenerator createGenerator(final Writer writer, final boolean prettyPrint) throws IOException {
+		final JsonGenerator json = jsonFactory.createJsonGenerator(writer);
+		if (prettyPrint) {
+			json.useDefaultPrettyPrinter();
+		}
+		return json;
+	}
+
+	/**
+	 * Writes a single listing attribute value.
+	 * <p>
+	 * The output is identical to what {@link ObjectMapper} produces for the
+	 * same value (eg. dates are written as timestamps).
+	 * </p>
+	 *
+	 * @param value
+	 *            the value (may be <code>null</code>)
+	 * @param json
+	 *            the generator
+	 * @throws IOException
+	 */
+	static void writeAttributeValue(final Object value, final JsonGenerator json) throws IOException {
+		if (value instanceof String) {
+			json.writeString((String) value);
+		} else if (value instanceof Double) {
+			json.writeNumber(((Double) value).doubleValue());
+		} else if (value instanceof Long) {
+			json.writeNumber(((Long) value).longValue());
+		} else if (value instanceof Integer) {
+			json.writeNumber(((Integer) value).intValue());
+		} else if (value instanceof Boolean) {
+			json.writeBoolean(((Boolean) value).booleanValue());
+		} else if (value instanceof Date) {
+			json.writeNumber(((Date) value).getTime());
+		} else if (value instanceof Object[]) {
+			json.writeStartArray();
+			for (final Object element : (Object[]) value) {
+				writeAttributeValue(element, json);
+			}
+			json.writeEndArray();
+		} else if (null == value) {
+			json.writeNull();
+		} else {
+			javaTypeMapper.writeValue(json, value);
+		}
+	}
+
+	private final String baseUrl;
+	private final ListingProjection projection;
+	private final PriceFormatter priceFormatter;
+
+	/**
+	 * Creates a new instance writing all fields using the default price
+	 * format.
+	 *
+	 * @param baseUrl
+	 *            the base URL for building product URIs
+	 */
+	ListingJsonWriter(final String baseUrl) {
+		this(baseUrl, null, PriceFormatter.DEFAULT);
+	}
+
+	/**
+	 * Creates a new instance.
+	 *
+	 * @param baseUrl
+	 *            the base URL for building product URIs
+	 * @param projection
+	 *            the fields to write (<code>null</code> for all fields)
+	 * @param priceFormatter
+	 *            the price formatter
+	 */
+	ListingJsonWriter(final String baseUrl, final ListingProjection projection, final PriceFormatter priceFormatter) {
+		this.baseUrl = baseUrl;
+		this.projection = projection;
+		this.priceFormatter = priceFormatter;
+	}
+
+	private boolean include(final String field) {
+		return (null == projection) || projection.includes(field);
+	}
+
+	void writeFacet(final IListingResultFacet facet, final JsonGenerator json) throws IOException {
+		if (null == facet) {
+			return;
+		}
+		json.writeStartObject();
+
+		json.writeFieldName("label");
+		json.writeString(facet.getLabel());
+
+		json.writeFieldName("id");
+		json.writeString(facet.getId());
+
+		json.writeFieldName("values");
+		json.writeStartArray();
+		final IListingResultFacetValue[] values = facet.getValues();
+		for (final IListingResultFacetValue value : values) {
+			json.writeStartObject();
+			writeValue("value", value.getValue(), json);
+			writeValue("count", value.getCount(), json);
+			writeValue("filter", value.toFilterQuery(), json);
+			json.writeEndObject();
+		}
+		json.writeEndArray();
+
+		json.writeEndObject();
+	}
+
+	/**
+	 * Writes a line of an export.
+	 * <p>
+	 * The id is always written since it is the cursor for resuming the
+	 * export.
+	 * </p>
+	 *
+	 * @param listing
+	 *            the listing
+	 * @param json
+	 *            the generator
+	 * @throws IOException
+	 */
+	void writeExportedProduct(final IListing listing, final JsonGenerator json) throws IOException {
+		writeProduct(listing, json, null, true);
+	}
+
+	void writeProduct(final IListing listing, final JsonGenerator json, final Enhancer enhancer) throws IOException {
+		writeProduct(listing, json, enhancer, false);
+	}
+
+	private void writeProduct(final IListing listing, final JsonGenerator json, final Enhancer enhancer, final boolean forceId) throws IOException {
+		if (null == listing) {
+			return;
+		}
+		json.writeStartObject();
+
+		if (forceId || include("id")) {
+			writeValue("id", listing.getId(), json);
+		}
+		if (include("name")) {
+			writeValue("name", listing.getName(), json);
+		}
+		if (include("title")) {
+			writeValue("title", listing.getTitle(), json);
+		}
+		if (include("description")) {
+			writeValue("description", listing.getDescription(), json);
+		}
+		if (include("uri")) {
+			writeValue("uri", baseUrl.concat(String.valueOf(listing.getUriPath())), json);
+		}
+		if (include("uripath")) {
+			writeValue("uripath", listing.getUriPath(), json);
+		}
+
+		final IListingAttribute categoryAttribute = include("category") ? listing.getAttribute("category") : null;
+		if ((null != categoryAttribute) && (categoryAttribute.getValues().length > 0)) {
+			writeValue("category", categoryAttribute.getValues()[0].toString(), json);
+		}
+
+		final IListingAttribute priceAttribute = include("shopPrice") ? listing.getAttribute(priceFormatter.getPriceAttribute()) : null;
+		if ((null != priceAttribute) && (priceAttribute.getValues().length > 0) && (priceAttribute.getValues()[0] instanceof Number)) {
+			// the first price the formated store price
+			writeValue("shopPrice", priceFormatter.format((Number) priceAttribute.getValues()[0]), json);
+		}
+
+		final IListingAttribute typeAttribute = include("type") ? listing.getAttribute("type") : null;
+		if ((null != typeAttribute) && (typeAttribute.getValues().length > 0)) {
+			writeValue("type", typeAttribute.getValues()[0].toString(), json);
+		}
+
+		final IListingAttribute parentIdAttribute = include("parentid") ? listing.getAttribute("parentid") : null;
+		if ((null != parentIdAttribute) && (parentIdAttribute.getValues().length > 0)) {
+			writeValue("parentid", parentIdAttribute.getValues()[0].toString(), json);
+		}
+
+		final IListingAttribute[] attributes = listing.getAttributes();
+		boolean attributesStarted = false;
+		for (final IListingAttribute attribute : attributes) {
+			if ((null != projection) && !projection.includesAttribute(attribute.getName())) {
+				continue;
+			}
+			if (!attributesStarted) {
+				json.writeFieldName("attributes");
+				json.writeStartObject();
+				attributesStarted = true;
+			}
+			json.writeFieldName(attribute.getName());
+			json.writeStartArray();
+			for (final Object object : attribute.getValues()) {
+				writeAttributeValue(object, json);
+			}
+			json.writeEndArray();
+		}
+		if (attributesStarted) {
+			json.writeEndObject();
+		}
+
+		if (null != enhancer) {
+			enhancer.enhanceWithinObject(json);
+		}
+
+		json.writeEndObject();
+	}
+
+	/**
+	 * Writes a search result.
+	 * <p>
+	 * Results are shared between equivalent queries (result cache, coalesced
+	 * queries). Thus, the query of the current request is written instead of
+	 * the one the result was found for.
+	 * </p>
+	 *
+	 * @param query
+	 *            the query of the current request
+	 * @param result
+	 *            the result
+	 * @param facets
+	 *            the facets to write (maybe <code>null</code>)
+	 * @param nextCursor
+	 *            the cursor of the next page (maybe <code>null</code>)
+	 * @param json
+	 *            the generator
+	 * @throws IOException
+	 */
+	void writeProductsResult(final ListingQuery query, final IListingResult result, final IListingResultFacet[] facets, final String nextCursor, final JsonGenerator json) throws IOException {
+		json.writeStartObject();
+
+		writeValue("version", "1.0", json);
+		writeValue("type", "application/x-gyrex-fanshop-products-json", json);
+
+		json.writeFieldName("query");
+		writeQuery(query, json);
+
+		writeValue("queryTime", result.getQueryTime(), json);
+		writeValue("numFound", result.getNumFound(), json);
+		writeValue("startOffset", result.getStartOffset(), json);
+		if (null != nextCursor) {
+			writeValue("nextCursor", nextCursor, json);
+		}
+
+		if (null != facets) {
+			json.writeFieldName("facets");
+			json.writeStartArray();
+			for (final IListingResultFacet facet : facets) {
+				writeFacet(facet, json);
+			}
+			json.writeEndArray();
+		}
+
+		json.writeFieldName("products");
+		json.writeStartArray();
+		for (final IListing listing : result.getListings()) {
+			writeProduct(listing, json, null);
+		}
+		json.writeEndArray();
+
+		json.writeEndObject();
+	}
+
+	void writeProductsResult(final IListingResult result, final JsonGenerator json) throws IOException {
+		writeProductsResult(result.getQuery(), result, result.getFacets(), null, json);
+	}
+
+	/**
+	 * Writes the result of a multi-get.
+	 * <p>
+	 * The products are written in the order of the requested ids. Ids which
+	 * were not found are reported separately.
+	 * </p>
+	 *
+	 * @param ids
+	 *            the requested ids
+	 * @param result
+	 *            the result
+	 * @param json
+	 *            the generator
+	 * @throws IOException
+	 */
+	void writeProductsById(final List<String> ids, final IListingResult result, final JsonGenerator json) throws IOException {
+		final IListing[] listings = result.getListings();
+		final Map<String, IListing> listingsById = new HashMap<String, IListing>(listings.length * 2);
+		for (final IListing listing : listings) {
+			listingsById.put(listing.getId(), listing);
+		}
+
+		json.writeStartObject();
+
+		writeValue("version", "1.0", json);
+		writeValue("type", "application/x-gyrex-fanshop-products-by-id-json", json);
+		writeValue("queryTime", result.getQueryTime(), json);
+
+		json.writeFieldName("products");
+		json.writeStartArray();
+		for (final String id : ids) {
+			final IListing listing = listingsById.get(id);
+			if (null != listing) {
+				writeProduct(listing, json, null);
+			}
+		}
+		json.writeEndArray();
+
+		json.writeFieldName("missing");
+		json.writeStartArray();
+		for (final String id : ids) {
+			if (!listingsById.containsKey(id)) {
+				json.writeString(id);
+			}
+		}
+		json.writeEndArray();
+
+		json.writeEndObject();
+	}
+
+	void writeQuery(final ListingQuery query, final JsonGenerator json) throws IOException {
+		if (null == query) {
+			return;
+		}
+		json.writeStartObject();
+
+		if (null != query.getAdvancedQuery()) {
+			writeValue("advancedQuery", query.getAdvancedQuery(), json);
+		} else {
+			writeValue("query", query.getQuery(), json);
+		}
+
+		final List<String> filterQueries = query.getFilterQueries();
+		if (!filterQueries.isEmpty()) {
+			json.writeFieldName("filters");
+			json.writeStartArray();
+			for (final String filter : filterQueries) {
+				json.writeString(filter);
+			}
+			json.writeEndArray();
+		}
+
+		final Map<String, SortDirection> sortFields = query.getSortFields();
+		if (!sortFields.isEmpty()) {
+			json.writeFieldName("sortFields");
+			json.writeStartObject();
+			for (final Entry<String, SortDirection> entry : sortFields.entrySet()) {
+				json.writeFieldName(entry.getKey());
+				switch (entry.getValue()) {
+					case DESCENDING:
+						json.writeString("desc");
+						break;
+					case ASCENDING:
+					default:
+						json.writeString("asc");
+						break;
+				}
+			}
+			json.writeEndObject();
+		}
+
+		json.writeFieldName("dimension");
+		switch (query.getResultDimension()) {
+			case FULL:
+				json.writeString("full");
+				break;
+
+			case COMPACT:
+			default:
+				json.writeString("compact");
+				break;
+		}
+
+		json.writeEndObject();
+	}
+
+	void writeSingleProductResult(final IListingResult result, final JsonGenerator json, final Enhancer enhancer) throws IOException {
+		writeSingleProductResult(result.getQuery(), result, json, enhancer);
+	}
+
+	/**
+	 * Writes the result of a single product request.
+	 *
+	 * @param query
+	 *            the query of the current request (written instead of the
+	 *            one of the possibly shared result)
+	 * @param result
+	 *            the result
+	 * @param json
+	 *            the generator
+	 * @param enhancer
+	 *            the enhancer of the product (maybe <code>null</code>)
+	 * @throws IOException
+	 */
+	void writeSingleProductResult(final ListingQuery query, final IListingResult result, final JsonGenerator json, final Enhancer enhancer) throws IOException {
+		json.writeStartObject();
+
+		writeValue("version", "1.0", json);
+		writeValue("type", "application/x-gyrex-fanshop-product-json", json);
+
+		json.writeFieldName("query");
+		writeQuery(query, json);
+
+		writeValue("queryTime", result.getQueryTime(), json);
+		//writeValue("numFound", result.getNumFound(), json);
+		//writeValue("startOffset", result.getStartOffset(), json);
+
+		final IListing[] listings = result.getListings();
+		if (listings.length == 1) {
+			json.writeFieldName("product");
+			writeProduct(listings[0], json, enhancer);
+		}
+
+		json.writeEndObject();
+	}
+
+	private void writeValue(final String name, final long value, final JsonGenerator json) throws IOException {
+		json.writeFieldName(name);
+		json.writeNumber(value);
+	}
+
+	private void writeValue(final String name, final String value, final JsonGenerator json) throws IOException, JsonGenerationException {
+		if (StringUtils.isNotBlank(value)) {
+			json.writeFieldName(name);
+			json.writeString(value);
+		}
+	}
+}
@@ -0,0 +1,160 @@
+/*******************************************************************************
+ * Copyright (c) 2010 Gunnar Wagenknecht and others.
+ * All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html.
+ *
+ * Contributors:
+ *     Gunnar Wagenknecht - initial API and implementation
+ *******************************************************************************/
+package net.cloudfree.apps.shop.internal.app;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.eclipse.gyrex.cds.service.query.ListingQuery.ResultDimension;
+import org.eclipse.gyrex.context.IRuntimeContext;
+
+import org.apache.commons.lang.StringUtils;
+
+/**
+ * The set of fields written for a listing.
+ * <p>
+ * A projection is specified as a comma separated list of field names, eg.
+ * <code>id,title,uri,shopPrice,img48</code>. Names are the keys of the JSON
+ * product object (<code>id</code>, <code>name</code>, <code>title</code>,
+ * <code>description</code>, <code>uri</code>, <code>uripath</code>,
+ * <code>category</code>, <code>shopPrice</code>, <code>type</code>,
+ * <code>parentid</code>) or names of listing attributes.
+ * <code>attributes</code> selects all attributes. The list may be prefixed
+ * with <code>compact:</code> to request only the compact result dimension from
+ * the index.
+ * </p>
+ * <p>
+ * Named profiles are configured per context using the preference
+ * <code>fields.profile.&lt;name&gt;</code>. The profiles <code>tile</code>,
+ * <code>detail</code> and <code>feed</code> have built-in defaults.
+ * </p>
+ */
+final class ListingProjection {
+
+	private static final String COMPACT_PREFIX = "compact:";
+
+	/** the fields selecting all attributes */
+	static final String ALL_ATTRIBUTES = "attributes";
+
+	private static final Map<String, String> DEFAULT_PROFILES;
+	static {
+		final Map<String, String> profiles = new HashMap<String, String>(4);
+		profiles.put("tile", "id,title,uri,shopPrice,img48");
+		profiles.put("detail", "id,name,title,description,uri,uripath,category,shopPrice,type,parentid,attributes");
+		profiles.put("feed", "id,name,title,description,uri,category,shopPrice,type");
+		DEFAULT_PROFILES = Collections.unmodifiableMap(profiles);
+	}
+
+	/**
+	 * Parses a projection.
+	 *
+	 * @param spec
+	 *            the projection specification
+	 * @return the projection (<code>null</code> if the specification is blank)
+	 */
+	static ListingProjection parse(final String spec) {
+		String fields = StringUtils.trimToNull(spec);
+		if (null == fields) {
+			return null;
+		}
+		ResultDimension dimension = null;
+		if (fields.startsWith(COMPACT_PREFIX)) {
+			dimension = ResultDimension.COMPACT;
+			fields = fields.substring(COMPACT_PREFIX.length());
+		}
+		final Set<String> names = new HashSet<String>();
+		for (final String field : StringUtils.split(fields, ", ")) {
+			names.add(field);
+		}
+		return new ListingProjection(fields, names, dimension);
+	}
+
+	/**
+	 * Resolves the projection requested by a client.
+	 *
+	 * @param context
+	 *            the context providing the profiles (maybe <code>null</code>)
+	 * @param fields
+	 *            a profile name or a projection specification (maybe
+	 *            <code>null</code>)
+	 * @return the projection (<code>null</code> for all fields)
+	 */
+	static ListingProjection resolve(final IRuntimeContext context, final String fields) {
+		final String name = StringUtils.trimToNull(fields);
+		if (null == name) {
+			return null;
+		}
+		if (StringUtils.isAlphanumeric(name)) {
+			final String profile = ShopPreferences.getString(context, ShopPreferences.FIELDS_PROFILE_PREFIX.concat(name), DEFAULT_PROFILES.get(name));
+			if (null != profile) {
+				return parse(profile);
+			}
+		}
+		return parse(name);
+	}
+
+	private final String spec;
+	private final Set<String> fields;
+	private final boolean allAttributes;
+	private final ResultDimension dimension;
+
+	private ListingProjection(final String spec, final Set<String> fields, final ResultDimension dimension) {
+		this.spec = spec;
+		this.fields = fields;
+		this.dimension = dimension;
+		allAttributes = fields.contains(ALL_ATTRIBUTES);
+	}
+
+	/**
+	 * Returns the result dimension to request from the index.
+	 *
+	 * @return the result dimension (<code>null</code> to keep the default)
+	 */
+	ResultDimension getDimension() {
+		return dimension;
+	}
+
+	/**
+	 * Indicates if a listing attribute is written.
+	 *
+	 * @param name
+	 *            the attribute name
+	 * @return <code>true</code> if the attribute is included
+	 */
+	boolean includesAttribute(final String name) {
+		return allAttributes || fields.contains(name);
+	}
+
+	/**
+	 * Indicates if a product field is written.
+	 *
+	 * @param field
+	 *            the field name
+	 * @return <code>true</code> if the field is included
+	 */
+	boolean includes(final String field) {
+		return fields.contains(field);
+	}
+
+	/**
+	 * Returns the normalized specification.
+	 *
+	 * @return the specification
+	 */
+	@Override
+	public String toString() {
+		return null != dimension ? COMPACT_PREFIX.concat(spec) : spec;
+	}
+}
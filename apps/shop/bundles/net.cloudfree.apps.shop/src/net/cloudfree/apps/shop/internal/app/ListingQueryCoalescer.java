@@ -0,0 +1,183 @@
+/*******************************************************************************
+ * Copyright (c) 2010 Gunnar Wagenknecht and others.
+ * All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html.
+ *
+ * Contributors:
+ *     Gunnar Wagenknecht - initial API and implementation
+ *******************************************************************************/
+package net.cloudfree.apps.shop.internal.app;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.cloudfree.apps.shop.internal.app.ListingQueryExecutor.ServerBusyException;
+
+import org.eclipse.gyrex.cds.service.result.IListingResult;
+import org.eclipse.gyrex.http.application.ApplicationException;
+
+/**
+ * Coalesces concurrent executions of identical listing queries.
+ * <p>
+ * The first request for a query submits it to the executor. Requests for the
+ * same normalized query arriving while it is in flight wait for that execution
+ * and share its result (or failure). Every waiter has its own deadline. The
+ * shared execution is only cancelled when all waiters gave up on it.
+ * </p>
+ */
+final class ListingQueryCoalescer {
+
+	private final class InFlightQuery extends FutureTask<IListingResult> {
+
+		private final ListingQueryKey key;
+		private int waiters = 1;
+
+		InFlightQuery(final ListingQueryKey key, final Callable<IListingResult> query) {
+			super(query);
+			this.key = key;
+		}
+
+		@Override
+		protected void done() {
+			inFlight.remove(key, this);
+		}
+
+		/**
+		 * Registers an additional waiter.
+		 *
+		 * @return <code>false</code> if the query was already abandoned
+		 */
+		synchronized boolean join() {
+			if ((waiters == 0) || isCancelled()) {
+				return false;
+			}
+			waiters++;
+			return true;
+		}
+
+		/**
+		 * Unregisters a waiter and cancels the query if it was the last one.
+		 */
+		synchronized void leave() {
+			waiters--;
+			if ((waiters == 0) && !isDone()) {
+				cancel(true);
+			}
+		}
+	}
+
+	private final ListingQueryExecutor executor;
+	private final ShopMetrics metrics;
+	private final ConcurrentMap<ListingQueryKey, InFlightQuery> inFlight = new ConcurrentHashMap<ListingQueryKey, InFlightQuery>();
+	private final AtomicLong coalesced = new AtomicLong();
+
+	/**
+	 * Creates a new instance.
+	 *
+	 * @param executor
+	 *            the executor for running queries
+	 * @param metrics
+	 *            the metrics to update
+	 */
+	ListingQueryCoalescer(final ListingQueryExecutor executor, final ShopMetrics metrics) {
+		this.executor = executor;
+		this.metrics = metrics;
+	}
+
+	private IListingResult await(final InFlightQuery query, final long deadline) throws ServerBusyException, ApplicationException {
+		try {
+			return executor.await(query, deadline);
+		} finally {
+			query.leave();
+		}
+	}
+
+	/**
+	 * Executes a query or joins an identical query which is already in flight.
+	 *
+	 * @param key
+	 *            the normalized query
+	 * @param query
+	 *            the query to execute if none is in flight
+	 * @param deadline
+	 *            the deadline of the caller (milliseconds since the epoch)
+	 * @return the query result
+	 * @throws ServerBusyException
+	 *             if the query was rejected or did not finish before the
+	 *             deadline
+	 * @throws ApplicationException
+	 *             if the query failed
+	 */
+	IListingResult execute(final ListingQueryKey key, final Callable<IListingResult> query, final long deadline) throws ServerBusyException, ApplicationException {
+		while (true) {
+			final InFlightQuery existing = inFlight.get(key);
+			if (null != existing) {
+				if (existing.join()) {
+					coalesced.incrementAndGet();
+					ShopMetrics.count(metrics.getCoalescedQueriesMetric());
+					return await(existing, deadline);
+				}
+				// abandoned by all its waiters; replace
+				inFlight.remove(key, existing);
+				continue;
+			}
+
+			final InFlightQuery newQuery = new InFlightQuery(key, query);
+			if (null != inFlight.putIfAbsent(key, newQuery)) {
+				// lost the race; join the winner
+				continue;
+			}
+			try {
+				executor.submit(newQuery);
+			} catch (final ServerBusyException e) {
+				// release requests which joined in the meantime
+				newQuery.cancel(false);
+				inFlight.remove(key, newQuery);
+				throw e;
+			}
+			return await(newQuery, deadline);
+		}
+	}
+
+	/**
+	 * Executes a query using the default deadline of the executor.
+	 *
+	 * @param key
+	 *            the normalized query
+	 * @param query
+	 *            the query to execute if none is in flight
+	 * @return the query result
+	 * @throws ServerBusyException
+	 *             if the query was rejected or did not finish in time
+	 * @throws ApplicationException
+	 *             if the query failed
+	 * @see #execute(ListingQueryKey, Callable, long)
+	 */
+	IListingResult execute(final ListingQueryKey key, final Callable<IListingResult> query) throws ServerBusyException, ApplicationException {
+		return execute(key, query, System.currentTimeMillis() + executor.getTimeout());
+	}
+
+	/**
+	 * Returns the number of seconds clients should wait before retrying.
+	 *
+	 * @return the retry delay in seconds
+	 */
+	int getRetryAfter() {
+		return executor.getRetryAfter();
+	}
+
+	/**
+	 * Returns the number of requests which joined an in-flight query.
+	 *
+	 * @return the number of coalesced requests
+	 */
+	long getCoalesced() {
+		return coalesced.get();
+	}
+}
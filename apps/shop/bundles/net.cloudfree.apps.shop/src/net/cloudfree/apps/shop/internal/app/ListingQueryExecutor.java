@@ -0,0 +1,213 @@
+/*******************************************************************************
+ * Copyright (c) 2010 Gunnar Wagenknecht and others.
+ * All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html.
+ *
+ * Contributors:
+ *     Gunnar Wagenknecht - initial API and implementation
+ *******************************************************************************/
+package net.cloudfree.apps.shop.internal.app;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.eclipse.gyrex.cds.service.result.IListingResult;
+import org.eclipse.gyrex.http.application.ApplicationException;
+
+/**
+ * Executes listing queries on a bounded pool with a deadline per request.
+ * <p>
+ * Requests fail fast instead of piling up when the index is slow: a query is
+ * rejected if all threads are busy and the queue is full, and it is abandoned
+ * when its deadline passes while it is waiting or running.
+ * </p>
+ */
+final class ListingQueryExecutor {
+
+	/**
+	 * Thrown when a query was rejected or did not complete in time.
+	 */
+	static final class ServerBusyException extends Exception {
+
+		/** serialVersionUID */
+		private static final long serialVersionUID = 1L;
+
+		ServerBusyException(final String message) {
+			super(message);
+		}
+	}
+
+	/** default number of query threads */
+	static final int DEFAULT_THREADS = 16;
+
+	/** default number of waiting queries */
+	static final int DEFAULT_QUEUE_SIZE = 64;
+
+	/** default deadline in milliseconds */
+	static final long DEFAULT_TIMEOUT = 8000L;
+
+	/** default <code>Retry-After</code> in seconds */
+	static final int DEFAULT_RETRY_AFTER = 5;
+
+	private final ThreadPoolExecutor executor;
+	private final long timeout;
+	private final int retryAfter;
+
+	/**
+	 * Creates a new instance.
+	 *
+	 * @param threads
+	 *            the number of query threads
+	 * @param queueSize
+	 *            the maximum number of waiting queries
+	 * @param timeout
+	 *            the deadline for a query in milliseconds
+	 * @param retryAfter
+	 *            the number of seconds clients should wait before retrying a
+	 *            rejected request
+	 */
+	ListingQueryExecutor(final int threads, final int queueSize, final long timeout, final int retryAfter) {
+		this.timeout = timeout;
+		this.retryAfter = retryAfter;
+		final int poolSize = Math.max(1, threads);
+		executor = new ThreadPoolExecutor(poolSize, poolSize, 60L, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(Math.max(1, queueSize)), new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+
+			@Override
+			public Thread newThread(final Runnable r) {
+				final Thread thread = new Thread(r, "CloudFree Listing Query #" + count.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		}, new ThreadPoolExecutor.AbortPolicy());
+		executor.allowCoreThreadTimeOut(true);
+	}
+
+	/**
+	 * Executes a query.
+	 *
+	 * @param query
+	 *            the query
+	 * @return the query result
+	 * @throws ServerBusyException
+	 *             if the query was rejected or did not finish in time
+	 * @throws ApplicationException
+	 *             if the query failed
+	 */
+	IListingResult execute(final Callable<IListingResult> query) throws ServerBusyException, ApplicationException {
+		return execute(query, System.currentTimeMillis() + timeout);
+	}
+
+	/**
+	 * Waits for the result of a submitted query.
+	 * <p>
+	 * The query is <em>not</em> cancelled if the deadline passes; this is up
+	 * to the caller.
+	 * </p>
+	 *
+	 * @param future
+	 *            the submitted query
+	 * @param deadline
+	 *            the deadline (milliseconds since the epoch)
+	 * @return the query result
+	 * @throws ServerBusyException
+	 *             if the query did not finish in time or was cancelled
+	 * @throws ApplicationException
+	 *             if the query failed
+	 */
+	IListingResult await(final Future<IListingResult> future, final long deadline) throws ServerBusyException, ApplicationException {
+		try {
+			return future.get(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new ServerBusyException("Server Too Busy");
+		} catch (final TimeoutException e) {
+			throw new ServerBusyException("Server Too Busy");
+		} catch (final CancellationException e) {
+			throw new ServerBusyException("Server Too Busy");
+		} catch (final ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw new ApplicationException(e.getCause());
+		}
+	}
+
+	/**
+	 * Executes a query with a specific deadline.
+	 *
+	 * @param query
+	 *            the query
+	 * @param deadline
+	 *            the deadline (milliseconds since the epoch)
+	 * @return the query result
+	 * @throws ServerBusyException
+	 *             if the query was rejected or did not finish in time
+	 * @throws ApplicationException
+	 *             if the query failed
+	 */
+	IListingResult execute(final Callable<IListingResult> query, final long deadline) throws ServerBusyException, ApplicationException {
+		final FutureTask<IListingResult> future = new FutureTask<IListingResult>(query);
+		submit(future);
+		try {
+			return await(future, deadline);
+		} finally {
+			// no-op if already done
+			future.cancel(true);
+		}
+	}
+
+	/**
+	 * Returns the number of seconds clients should wait before retrying.
+	 *
+	 * @return the retry delay in seconds
+	 */
+	int getRetryAfter() {
+		return retryAfter;
+	}
+
+	/**
+	 * Returns the deadline for a query in milliseconds.
+	 *
+	 * @return the timeout
+	 */
+	long getTimeout() {
+		return timeout;
+	}
+
+	/**
+	 * Submits a query for execution.
+	 *
+	 * @param query
+	 *            the query
+	 * @throws ServerBusyException
+	 *             if the query was rejected because the queue is full
+	 */
+	void submit(final FutureTask<IListingResult> query) throws ServerBusyException {
+		try {
+			executor.execute(query);
+		} catch (final RejectedExecutionException e) {
+			throw new ServerBusyException("Server Too Busy");
+		}
+	}
+
+	/**
+	 * Shuts the executor down, abandoning pending queries.
+	 */
+	void shutdown() {
+		executor.shutdownNow();
+	}
+}
@@ -0,0 +1,166 @@
+/*******************************************************************************
+ * Copyright (c) 2010 Gunnar Wagenknecht and others.
+ * All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html.
+ *
+ * Contributors:
+ *     Gunnar Wagenknecht - initial API and implementation
+ *******************************************************************************/
+package net.cloudfree.apps.shop.internal.app;
+
+import java.util.Map.Entry;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+import org.eclipse.gyrex.cds.service.query.ListingQuery;
+import org.eclipse.gyrex.cds.service.query.ListingQuery.SortDirection;
+
+import org.apache.commons.lang.StringUtils;
+
+/**
+ * A normalized, immutable representation of a {@link ListingQuery} suitable
+ * as a cache key.
+ * <p>
+ * Two queries which only differ in the order, duplication or
+ * {@link ListingFilters canonical form} of filter queries or in surrounding
+ * whitespace produce equal keys. The sort field order is
+ * significant and therefore preserved.
+ * </p>
+ */
+final class ListingQueryKey {
+
+	private static void append(final StringBuilder key, final char name, final String value) {
+		key.append(name);
+		if (null == value) {
+			key.append('-');
+		} else {
+			// length prefixed to keep the key unambiguous
+			key.append(value.length()).append(':').append(value);
+		}
+	}
+
+	private static void appendSelection(final StringBuilder key, final ListingQuery query) {
+		if (null != query.getAdvancedQuery()) {
+			append(key, 'a', StringUtils.trimToNull(query.getAdvancedQuery()));
+		} else {
+			append(key, 'q', StringUtils.trimToNull(query.getQuery()));
+		}
+
+		// filters are combined using AND, thus order and duplicates do not matter
+		final SortedSet<String> filters = new TreeSet<String>();
+		ListingFilters.canonicalize(query.getFilterQueries(), filters);
+		for (final String filter : filters) {
+			append(key, 'f', filter);
+		}
+	}
+
+	/**
+	 * Creates the key for the specified query.
+	 *
+	 * @param query
+	 *            the query
+	 * @return the key
+	 */
+	static ListingQueryKey of(final ListingQuery query) {
+		final StringBuilder key = new StringBuilder(128);
+		appendSelection(key, query);
+
+		for (final Entry<String, SortDirection> sortField : query.getSortFields().entrySet()) {
+			append(key, sortField.getValue() == SortDirection.DESCENDING ? 'd' : 'o', sortField.getKey());
+		}
+
+		key.append('s').append(query.getStartIndex());
+		key.append('r').append(query.getMaxResults());
+		key.append('x').append(query.getResultDimension().ordinal());
+		return new ListingQueryKey(key.toString());
+	}
+
+	/**
+	 * Creates the key for the facets of the specified query.
+	 * <p>
+	 * Facet counts only depend on the query and the filters. Thus, paging,
+	 * sort order and result dimension are not part of the key.
+	 * </p>
+	 *
+	 * @param query
+	 *            the query
+	 * @return the key
+	 */
+	static ListingQueryKey ofFacets(final ListingQuery query) {
+		final StringBuilder key = new StringBuilder(128);
+		appendSelection(key, query);
+		return new ListingQueryKey(key.toString());
+	}
+
+	/**
+	 * Returns the shape of the specified query for aggregating statistics.
+	 * <p>
+	 * The shape only keeps the structure of the query: whether it has a
+	 * (advanced) query, the fields of the filters and the sort order. Values,
+	 * paging and result dimension are dropped, thus for example all searches
+	 * in any category share a shape. Cursor filters must be applied after
+	 * taking the shape.
+	 * </p>
+	 *
+	 * @param query
+	 *            the query
+	 * @return the shape
+	 */
+	static String shapeOf(final ListingQuery query) {
+		final StringBuilder shape = new StringBuilder(64);
+		shape.append(null != query.getAdvancedQuery() ? "a" : (null != StringUtils.trimToNull(query.getQuery()) ? "q" : "-"));
+
+		final SortedSet<String> filters = new TreeSet<String>();
+		ListingFilters.canonicalize(query.getFilterQueries(), filters);
+		final SortedSet<String> filterShapes = new TreeSet<String>();
+		for (final String filter : filters) {
+			filterShapes.add(ListingFilters.shapeOf(filter));
+		}
+		for (final String filterShape : filterShapes) {
+			shape.append(" fq=").append(filterShape);
+		}
+
+		for (final Entry<String, SortDirection> sortField : query.getSortFields().entrySet()) {
+			shape.append(" o=").append(sortField.getValue() == SortDirection.DESCENDING ? "-" : "").append(sortField.getKey());
+		}
+		return shape.toString();
+	}
+
+	private final String key;
+	private final int hash;
+
+	private ListingQueryKey(final String key) {
+		this.key = key;
+		hash = key.hashCode();
+	}
+
+	@Override
+	public boolean equals(final Object obj) {
+		if (this == obj) {
+			return true;
+		}
+		if (!(obj instanceof ListingQueryKey)) {
+			return false;
+		}
+		final ListingQueryKey other = (ListingQueryKey) obj;
+		return (hash == other.hash) && key.equals(other.key);
+	}
+
+	@Override
+	public int hashCode() {
+		return hash;
+	}
+
+	/**
+	 * Returns the normalized query string.
+	 *
+	 * @return the normalized query string
+	 */
+	@Override
+	public String toString() {
+		return key;
+	}
+}
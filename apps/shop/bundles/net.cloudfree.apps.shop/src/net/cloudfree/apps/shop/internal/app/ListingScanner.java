@@ -0,0 +1,102 @@
+/*******************************************************************************
+ * Copyright (c) 2010 Gunnar Wagenknecht and others.
+ * All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html.
+ *
+ * Contributors:
+ *     Gunnar Wagenknecht - initial API and implementation
+ *******************************************************************************/
+package net.cloudfree.apps.shop.internal.app;
+
+import org.eclipse.gyrex.cds.model.documents.Document;
+import org.eclipse.gyrex.cds.model.solr.ISolrQueryExecutor;
+
+import org.apache.solr.client.solrj.SolrQuery;
+import org.apache.solr.common.SolrDocument;
+import org.apache.solr.common.SolrDocumentList;
+
+/**
+ * Reads all (matching) listings of the index in id order for building
+ * in-memory indexes.
+ * <p>
+ * The index is traversed page by page using the id of the last read listing
+ * as the lower bound of the next page (instead of a start offset), so every
+ * page costs the same. The bound is the main query and only the constant
+ * filters are passed as filter queries. The scan checks for interruption before every page and
+ * stops with an {@link InterruptedException}, so that an index being stopped
+ * does not keep scanning millions of listings.
+ * </p>
+ */
+final class ListingScanner {
+
+	/**
+	 * Receives the scanned listings.
+	 */
+	interface ListingHandler {
+
+		/**
+		 * Called for every listing.
+		 *
+		 * @param id
+		 *            the listing id
+		 * @param document
+		 *            the document with the requested fields
+		 */
+		void handle(String id, SolrDocument document);
+	}
+
+	/**
+	 * Scans the index.
+	 *
+	 * @param queryExecutor
+	 *            the query executor
+	 * @param fields
+	 *            the fields to read in addition to the id
+	 * @param filters
+	 *            additional filters (maybe empty)
+	 * @param batchSize
+	 *            the number of listings read per query
+	 * @param handler
+	 *            the handler receiving the listings
+	 * @throws InterruptedException
+	 *             if the current thread has been interrupted
+	 */
+	static void scan(final ISolrQueryExecutor queryExecutor, final String[] fields, final String[] filters, final int batchSize, final ListingHandler handler) throws InterruptedException {
+		final String[] queryFields = new String[fields.length + 1];
+		queryFields[0] = Document.ID;
+		System.arraycopy(fields, 0, queryFields, 1, fields.length);
+		String lastId = null;
+		while (true) {
+			if (Thread.currentThread().isInterrupted()) {
+				throw new InterruptedException("listing scan interrupted");
+			}
+			// the bound differs on every page; as a filter it would only evict reusable filters from the filter cache
+			final SolrQuery query = new SolrQuery(null != lastId ? Document.ID + ":{" + ListingFilters.quote(lastId) + " TO *}" : "*:*");
+			query.setFields(queryFields);
+			query.setSortField(Document.ID, SolrQuery.ORDER.asc);
+			query.setRows(batchSize);
+			for (final String filter : filters) {
+				query.addFilterQuery(filter);
+			}
+			final SolrDocumentList documents = queryExecutor.query(query).getResults();
+			for (final SolrDocument document : documents) {
+				final Object id = document.getFirstValue(Document.ID);
+				if (null == id) {
+					continue;
+				}
+				lastId = id.toString();
+				handler.handle(lastId, document);
+			}
+			if (documents.size() < batchSize) {
+				return;
+			}
+		}
+	}
+
+	private ListingScanner() {
+		// empty
+	}
+}
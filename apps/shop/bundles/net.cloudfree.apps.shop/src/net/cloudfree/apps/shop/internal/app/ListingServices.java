@@ -0,0 +1,209 @@
+/*******************************************************************************
+ * Copyright (c) 2010 Gunnar Wagenknecht and others.
+ * All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html.
+ *
+ * Contributors:
+ *     Gunnar Wagenknecht - initial API and implementation
+ *******************************************************************************/
+package net.cloudfree.apps.shop.internal.app;
+
+import javax.servlet.http.HttpServletResponse;
+
+import net.cloudfree.apps.shop.internal.ShopActivator;
+
+import org.eclipse.gyrex.cds.model.IListingManager;
+import org.eclipse.gyrex.cds.model.solr.ISolrQueryExecutor;
+import org.eclipse.gyrex.cds.service.IListingService;
+import org.eclipse.gyrex.context.IRuntimeContext;
+import org.eclipse.gyrex.http.application.ApplicationException;
+import org.eclipse.gyrex.model.common.ModelUtil;
+import org.eclipse.gyrex.model.common.provider.ModelProvider;
+import org.eclipse.gyrex.services.common.ServiceUtil;
+import org.eclipse.gyrex.services.common.provider.ServiceProvider;
+
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.InvalidSyntaxException;
+import org.osgi.framework.ServiceEvent;
+import org.osgi.framework.ServiceListener;
+
+/**
+ * The listing service and query executor of a shop application.
+ * <p>
+ * Both are resolved from the context once and then served from volatile
+ * fields. The references are dropped (and resolved again on the next access)
+ * whenever a service or model provider comes or goes, because the context
+ * may then hand out different implementations.
+ * </p>
+ * <p>
+ * A failed lookup is not repeated until a provider changes or
+ * {@link #MISS_BACKOFF} passed. Requests arriving in between fail fast
+ * without taking the lock.
+ * </p>
+ */
+final class ListingServices implements ServiceListener {
+
+	/** the providers backing the context services and models */
+	private static final String PROVIDER_FILTER = "(|(objectClass=" + ServiceProvider.class.getName() + ")(objectClass=" + ModelProvider.class.getName() + "))";
+
+	private final IRuntimeContext context;
+	private final ShopMetrics metrics;
+
+	/** the time in milliseconds a failed lookup is not repeated */
+	static final long MISS_BACKOFF = 1000L;
+
+	private volatile IListingService listingService;
+	private volatile ISolrQueryExecutor queryExecutor;
+	private volatile long listingServiceRetry;
+	private volatile long queryExecutorRetry;
+	private BundleContext bundleContext;
+
+	/**
+	 * Creates a new instance.
+	 *
+	 * @param context
+	 *            the context to resolve the services from
+	 * @param metrics
+	 *            the metrics to update
+	 */
+	ListingServices(final IRuntimeContext context, final ShopMetrics metrics) {
+		this.context = context;
+		this.metrics = metrics;
+	}
+
+	/**
+	 * Stops tracking and releases the services.
+	 */
+	synchronized void close() {
+		if (null != bundleContext) {
+			bundleContext.removeServiceListener(this);
+			bundleContext = null;
+		}
+		listingService = null;
+		queryExecutor = null;
+		listingServiceRetry = 0;
+		queryExecutorRetry = 0;
+	}
+
+	/**
+	 * Returns the query executor if available.
+	 *
+	 * @return the query executor (maybe <code>null</code>)
+	 */
+	ISolrQueryExecutor findQueryExecutor() {
+		final ISolrQueryExecutor executor = queryExecutor;
+		if (null != executor) {
+			return executor;
+		}
+		if (System.currentTimeMillis() < queryExecutorRetry) {
+			// failed recently
+			return null;
+		}
+		return resolveQueryExecutor();
+	}
+
+	/**
+	 * Returns the listing service.
+	 *
+	 * @return the listing service
+	 * @throws ApplicationException
+	 *             (503) if the service is not available
+	 */
+	IListingService getListingService() throws ApplicationException {
+		IListingService service = listingService;
+		if (null == service) {
+			if (System.currentTimeMillis() >= listingServiceRetry) {
+				service = resolveListingService();
+			}
+			if (null == service) {
+				throw new ApplicationException(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "Listing Service Not Available");
+			}
+		}
+		return service;
+	}
+
+	/**
+	 * Returns the query executor.
+	 *
+	 * @return the query executor
+	 * @throws ApplicationException
+	 *             (503) if the executor is not available
+	 */
+	ISolrQueryExecutor getQueryExecutor() throws ApplicationException {
+		final ISolrQueryExecutor executor = findQueryExecutor();
+		if (null == executor) {
+			throw new ApplicationException(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "Listing Index Not Available");
+		}
+		return executor;
+	}
+
+	/**
+	 * Starts tracking the providers.
+	 */
+	synchronized void open() {
+		if (null != bundleContext) {
+			return;
+		}
+		bundleContext = ShopActivator.getInstance().getBundleContext();
+		try {
+			bundleContext.addServiceListener(this, PROVIDER_FILTER);
+		} catch (final InvalidSyntaxException e) {
+			throw new IllegalStateException("invalid filter: " + PROVIDER_FILTER, e);
+		}
+	}
+
+	private synchronized IListingService resolveListingService() {
+		if (null != listingService) {
+			return listingService;
+		}
+		if (System.currentTimeMillis() < listingServiceRetry) {
+			// failed while waiting for the lock
+			return null;
+		}
+		final long start = System.currentTimeMillis();
+		metrics.getServiceLookupMetric().requestStarted();
+		final IListingService service = ServiceUtil.getService(IListingService.class, context);
+		if (null == service) {
+			metrics.getServiceLookupMetric().requestFailed();
+			listingServiceRetry = System.currentTimeMillis() + MISS_BACKOFF;
+			return null;
+		}
+		metrics.getServiceLookupMetric().requestFinished(0, System.currentTimeMillis() - start);
+		listingService = service;
+		return service;
+	}
+
+	private synchronized ISolrQueryExecutor resolveQueryExecutor() {
+		if (null != queryExecutor) {
+			return queryExecutor;
+		}
+		if (System.currentTimeMillis() < queryExecutorRetry) {
+			// failed while waiting for the lock
+			return null;
+		}
+		final long start = System.currentTimeMillis();
+		metrics.getServiceLookupMetric().requestStarted();
+		final IListingManager manager = ModelUtil.getManager(IListingManager.class, context);
+		final ISolrQueryExecutor executor = null != manager ? (ISolrQueryExecutor) manager.getAdapter(ISolrQueryExecutor.class) : null;
+		if (null == executor) {
+			metrics.getServiceLookupMetric().requestFailed();
+			queryExecutorRetry = System.currentTimeMillis() + MISS_BACKOFF;
+			return null;
+		}
+		metrics.getServiceLookupMetric().requestFinished(0, System.currentTimeMillis() - start);
+		queryExecutor = executor;
+		return executor;
+	}
+
+	@Override
+	public synchronized void serviceChanged(final ServiceEvent event) {
+		// resolve again on next access
+		listingService = null;
+		queryExecutor = null;
+		listingServiceRetry = 0;
+		queryExecutorRetry = 0;
+	}
+}
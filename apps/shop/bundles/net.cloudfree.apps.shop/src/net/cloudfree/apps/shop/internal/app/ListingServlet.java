@@ -12,19 +12,21 @@
 package net.cloudfree.apps.shop.internal.app;
 
 import java.io.IOException;
-import java.io.PrintWriter;
-import java.text.NumberFormat;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
-import java.util.Locale;
 import java.util.Map;
+import java.util.SortedSet;
+import java.util.TreeSet;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
+import net.cloudfree.apps.shop.internal.app.EndpointMetrics.MeteredResponse;
+
 import org.apache.commons.lang.StringUtils;
 import org.apache.solr.client.solrj.SolrQuery;
 import org.apache.solr.client.solrj.response.FacetField;
@@ -32,122 +34,126 @@ import org.apache.solr.client.solrj.response.QueryResponse;
 import org.apache.solr.client.solrj.response.FacetField.Count;
 import org.apache.solr.common.SolrDocument;
 import org.apache.solr.common.SolrDocumentList;
-import org.eclipse.gyrex.cds.model.IListingManager;
+import org.eclipse.core.runtime.preferences.IEclipsePreferences.IPreferenceChangeListener;
+import org.eclipse.core.runtime.preferences.IEclipsePreferences.PreferenceChangeEvent;
 import org.eclipse.gyrex.cds.model.documents.Document;
 import org.eclipse.gyrex.cds.model.solr.ISolrQueryExecutor;
 import org.eclipse.gyrex.context.IRuntimeContext;
-import org.eclipse.gyrex.model.common.ModelUtil;
+import org.eclipse.gyrex.http.application.ApplicationException;
 
 public class ListingServlet extends HttpServlet {
 
-	static class FacetExpressionFilter extends FacetFilter {
-
-		private final String[] expressions;
-
-		FacetExpressionFilter(final String name, final String... expressions) {
-			super(name);
-			this.expressions = expressions;
-		}
-
-		@Override
-		boolean addFilter(final SolrQuery query, final String value) {
-			for (final String expression : expressions) {
-				if (expression.equals(value)) {
-					query.addFilterQuery(name + ":" + expression);
-					return true;
-				}
-			}
-			return false;
-		}
-
-		@Override
-		void defineFilter(final SolrQuery query) {
-			for (final String expression : expressions) {
-				query.addFacetQuery(name + ":" + expression);
-			}
-		}
-	}
-
-	static class FacetFilter {
-		String name;
-
-		FacetFilter(final String name) {
-			this.name = name;
-		}
-
-		boolean addFilter(final SolrQuery query, final String value) {
-			query.addFilterQuery(name + ":" + value);
-			return true;
-		}
-
-		void defineFilter(final SolrQuery query) {
-			query.addFacetField(name);
-		}
-	}
-
 	/** serialVersionUID */
 	private static final long serialVersionUID = 1L;
 
 	private final IRuntimeContext context;
-	private final Map<String, FacetFilter> facetFilters = new HashMap<String, FacetFilter>();
+	private final IPreferenceChangeListener facetSchemaListener = new IPreferenceChangeListener() {
+		@Override
+		public void preferenceChange(final PreferenceChangeEvent event) {
+			if (ShopPreferences.FACETS.equals(event.getKey())) {
+				facetSchema = compileFacetSchema((String) event.getNewValue());
+			}
+		}
+	};
+	private volatile FacetSchema facetSchema;
+	private final VariationLoader variationLoader;
+	private final ListingServices services;
+	private final ResponseCompression compression;
+	private final PriceFormatter.Selector priceFormatters;
+	private final EndpointMetrics requestMetrics;
+	private final SlowRequestLog slowRequestLog;
 
 	/**
 	 * Creates a new instance.
 	 * 
 	 * @param context
+	 * @param services
+	 * @param compression
+	 *            the response compression (maybe <code>null</code>)
+	 * @param requestMetrics
+	 *            the request metrics (maybe <code>null</code>)
+	 * @param slowRequestLog
+	 *            the slow request log (maybe <code>null</code>)
 	 */
-	public ListingServlet(final IRuntimeContext context) {
+	public ListingServlet(final IRuntimeContext context, final ListingServices services, final ResponseCompression compression, final EndpointMetrics requestMetrics, final SlowRequestLog slowRequestLog) {
 		this.context = context;
+		this.services = services;
+		this.compression = compression;
+		this.requestMetrics = requestMetrics;
+		this.slowRequestLog = slowRequestLog;
+		variationLoader = new VariationLoader(ShopPreferences.getInt(context, ShopPreferences.VARIATIONS_MAX_PER_PRODUCT, VariationLoader.DEFAULT_MAX_PER_PRODUCT));
+		priceFormatters = new PriceFormatter.Selector(context);
+
+		// compile facet schema (and re-compile on changes)
+		facetSchema = compileFacetSchema(ShopPreferences.getString(context, ShopPreferences.FACETS, null));
+		if (null != context) {
+			context.getPreferences().addPreferenceChangeListener(ShopPreferences.QUALIFIER, facetSchemaListener);
+		}
+	}
+
+	/**
+	 * Compiles the facet schema.
+	 * 
+	 * @param definition
+	 *            the definition (maybe <code>null</code> for the default)
+	 * @return the compiled schema (the current one if the definition is
+	 *         invalid)
+	 */
+	private FacetSchema compileFacetSchema(final String definition) {
+		if (StringUtils.isBlank(definition)) {
+			return FacetSchema.DEFAULT;
+		}
+		try {
+			return FacetSchema.compile(definition);
+		} catch (final IllegalArgumentException e) {
+			// keep the current schema
+			return null != facetSchema ? facetSchema : FacetSchema.DEFAULT;
+		}
+	}
 
-		// initialize facet filters
-		facetFilters.put("style_n", new FacetFilter("style_n"));
-		facetFilters.put("color_n", new FacetFilter("color_n"));
-		facetFilters.put("source_n", new FacetFilter("source_n"));
-		facetFilters.put("size_n", new FacetFilter("size_n"));
-		facetFilters.put("category", new FacetFilter("category"));
-		facetFilters.put("thickness", new FacetFilter("thickness"));
-		facetFilters.put("fit", new FacetFilter("fit"));
-		facetFilters.put("paper", new FacetFilter("paper"));
-		facetFilters.put("finish", new FacetFilter("finish"));
-		facetFilters.put("price", new FacetExpressionFilter("price", "[* TO 10]", "[10 TO 20]", "[20 TO 30]", "[30 TO 50]", "[50 TO *]"));
+	@Override
+	public void destroy() {
+		if (null != context) {
+			context.getPreferences().removePreferenceChangeListener(ShopPreferences.QUALIFIER, facetSchemaListener);
+		}
+		super.destroy();
 	}
 
 	@Override
 	protected void doGet(final HttpServletRequest req, final HttpServletResponse resp) throws ServletException, IOException {
-		final IListingManager manager = ModelUtil.getManager(IListingManager.class, getContext());
-
-		final ISolrQueryExecutor queryExecutor = (ISolrQueryExecutor) manager.getAdapter(ISolrQueryExecutor.class);
-		if (null == queryExecutor) {
-			resp.sendError(404);
-			return;
-		}
+		final ISolrQueryExecutor queryExecutor = services.getQueryExecutor();
 
 		final List<String> selectedFacets = new ArrayList<String>();
 
-		final SolrQuery query = new SolrQuery();
-		boolean facet = true;
-		boolean checkVariations = false;
+		final PriceFormatter priceFormatter = priceFormatters.select(req);
 
+		// the schema may be replaced concurrently
+		final FacetSchema schema = facetSchema;
 		final String path = req.getPathInfo();
-		if ((null != path) && (path.length() > 1)) {
+		final boolean checkVariations = (null != path) && (path.length() > 1);
+		final SolrQuery query = schema.createQuery(!checkVariations);
+
+		if (checkVariations) {
 			query.setFilterQueries(Document.URI_PATH + ":" + path.substring(1));
-			query.setFields("id", "title", "price", "name", "score", "img480", "uripath", "description");
-			facet = false;
-			checkVariations = true;
+			query.setFields("id", "title", priceFormatter.getPriceAttribute(), "name", "score", "img480", "uripath", "description");
 		} else {
 			final String q = req.getParameter("q");
 			if (StringUtils.isNotBlank(q)) {
 				query.setQuery(q);
 			}
 
-			query.setFields("id", "title", "price", "name", "score", "img48", "uripath");
+			query.setFields("id", "title", priceFormatter.getPriceAttribute(), "name", "score", "img48", "uripath");
 
 			// ignore variations
 			final String f = req.getParameter("f");
 			if (StringUtils.isNotBlank(f)) {
-				query.addFilterQuery(f);
+				final SortedSet<String> filters = new TreeSet<String>();
+				ListingFilters.canonicalize(f, filters);
+				for (final String filter : filters) {
+					query.addFilterQuery(filter);
+				}
 			} else {
-				query.addFilterQuery("-type:variation");
+				query.addFilterQuery(ListingFilters.EXCLUDE_VARIATIONS);
 			}
 
 			// facet narrowing?
@@ -166,115 +172,170 @@ public class ListingServlet extends HttpServlet {
 					if (StringUtils.isBlank(name) || StringUtils.isBlank(value)) {
 						continue;
 					}
-					final FacetFilter filter = facetFilters.get(name);
-					if (null != filter) {
-						if (filter.addFilter(query, value)) {
-							selectedFacets.add(name + ":" + value);
-						}
+					if (schema.addFilter(query, name, value)) {
+						selectedFacets.add(name + ":" + value);
 					}
 				}
 			}
 		}
 
-		query.setQueryType("dismax");
-		query.set("debug", true);
-
-		// facet fields
-		if (facet) {
-			query.setFacet(true);
-			for (final FacetFilter filter : facetFilters.values()) {
-				filter.defineFilter(query);
-			}
+		// debug output is expensive; only on request
+		if (null != req.getParameter("debug")) {
+			query.set("debug", true);
 		}
 
 		final QueryResponse response = queryExecutor.query(query);
 		final SolrDocumentList results = response.getResults();
+		final long renderingStart = System.nanoTime();
+		final RequestTrace trace = RequestTrace.of(req);
+		trace.queried(query.toString(), results.getNumFound(), response.getQTime());
+		trace.shaped(getShape(query));
 
 		resp.setContentType("text/html");
 		resp.setCharacterEncoding("UTF-8");
 
-		final PrintWriter writer = resp.getWriter();
+		final ResponseWriter writer = null != compression ? compression.getWriter(req, resp) : new ResponseWriter(new ResponseOutputStream(resp.getOutputStream(), resp, null));
 
-		writer.println("<html><head>");
-		writer.println("<title>");
-		writer.println(path);
-		writer.println(" - Shop Listings</title>");
-		writer.println("</head><body>");
+		try {
+			writer.println("<html><head>");
+			writer.println("<title>");
+			writer.println(path);
+			writer.println(" - Shop Listings</title>");
+			writer.println("</head><body>");
 
-		writer.println("<h1>Found Listings</h1>");
-		writer.println("<p>");
-		writer.println("CloudFree found <strong>" + results.getNumFound() + "</strong> products in " + (response.getQTime() < 1000 ? "less than a second." : (response.getQTime() + "ms.")));
-		if (results.size() < results.getNumFound()) {
-			writer.println("<br/>");
-			if (results.getStart() == 0) {
-				writer.println("Only the first " + results.size() + " products are shown.");
+			writer.println("<h1>Found Listings</h1>");
+			writer.println("<p>");
+			writer.println("CloudFree found <strong>" + results.getNumFound() + "</strong> products in " + (response.getQTime() < 1000 ? "less than a second." : (response.getQTime() + "ms.")));
+			if (results.size() < results.getNumFound()) {
+				writer.println("<br/>");
+				if (results.getStart() == 0) {
+					writer.println("Only the first " + results.size() + " products are shown.");
+				} else {
+					writer.println("Only products " + results.getStart() + " till " + (results.getStart() + results.size()) + " will be shown.");
+				}
+			}
+			writer.println("</p>");
+
+			final List<FacetField> facetFields = response.getFacetFields();
+			if ((null != facetFields) && !facetFields.isEmpty()) {
+				writer.println("<p>");
+				writer.println("You can filter the results by: </br>");
+				for (final FacetField facetField : facetFields) {
+					final List<Count> values = facetField.getValues();
+					if ((null != values) && !values.isEmpty()) {
+						writer.println("<div style=\"float:left;\">");
+						writer.print("<em>");
+						writer.print(facetField.getName());
+						writer.print("</em>");
+						writer.println("<ul style=\"margin:0;\">");
+						int filters = 0;
+						for (final Count count : values) {
+							if (count.getCount() == 0) {
+								continue;
+							}
+							writer.print("<li>");
+							writer.print(count.getName());
+							writer.print(" (");
+							writer.print(count.getCount());
+							writer.print(")");
+							writer.print("</li>");
+							filters++;
+						}
+						if (filters == 0) {
+							writer.print("<li>none</li>");
+						}
+						writer.println("</ul>");
+						writer.println("</div>");
+					}
+				}
+				writer.println("<div style=\"clear:both;\">&nbsp;</div>");
+				writer.println("</p>");
+			}
+
+			// load all variations at once
+			final Map<String, List<SolrDocument>> variations;
+			if (checkVariations && !results.isEmpty()) {
+				variations = variationLoader.loadVariations(queryExecutor, results, "id", "title", priceFormatter.getPriceAttribute(), "name", "score", "img48", "uripath", "color", "size");
 			} else {
-				writer.println("Only products " + results.getStart() + " till " + (results.getStart() + results.size()) + " will be shown.");
+				variations = Collections.emptyMap();
 			}
-		}
-		writer.println("</p>");
 
-		final List<FacetField> facetFields = response.getFacetFields();
-		if ((null != facetFields) && !facetFields.isEmpty()) {
 			writer.println("<p>");
-			writer.println("You can filter the results by: </br>");
-			for (final FacetField facetField : facetFields) {
-				final List<Count> values = facetField.getValues();
-				if ((null != values) && !values.isEmpty()) {
-					writer.println("<div style=\"float:left;\">");
-					writer.print("<em>");
-					writer.print(facetField.getName());
-					writer.print("</em>");
-					writer.println("<ul style=\"margin:0;\">");
-					int filters = 0;
-					for (final Count count : values) {
-						if (count.getCount() == 0) {
-							continue;
+			if (!results.isEmpty()) {
+				for (final SolrDocument listing : results) {
+					writeListing(listing, writer, req, priceFormatter);
+
+					if (checkVariations) {
+						final List<SolrDocument> results2 = variations.get(String.valueOf(listing.getFirstValue("id")));
+						if ((null != results2) && !results2.isEmpty()) {
+							writer.println("There are " + results2.size() + " variations available.");
+							for (final SolrDocument variation : results2) {
+								writeListing(variation, writer, req, priceFormatter);
+							}
 						}
-						writer.print("<li>");
-						writer.print(count.getName());
-						writer.print(" (");
-						writer.print(count.getCount());
-						writer.print(")");
-						writer.print("</li>");
-						filters++;
 					}
-					if (filters == 0) {
-						writer.print("<li>none</li>");
-					}
-					writer.println("</ul>");
-					writer.println("</div>");
 				}
+			} else {
+				writer.println("No listings found!");
 			}
-			writer.println("<div style=\"clear:both;\">&nbsp;</div>");
 			writer.println("</p>");
+			writer.println("</body>");
+		} finally {
+			writer.close();
 		}
+		trace.rendered(renderingStart);
+	}
 
-		writer.println("<p>");
-		if (!results.isEmpty()) {
-			for (final SolrDocument listing : results) {
-				writeListing(listing, writer, req);
-
-				if (checkVariations) {
-					final SolrQuery query2 = new SolrQuery();
-					query2.setQuery("parentid:" + listing.getFirstValue("id"));
-					query2.setFields("id", "title", "price", "name", "score", "img48", "uripath", "color", "size");
-					final QueryResponse response2 = queryExecutor.query(query2);
-					final SolrDocumentList results2 = response2.getResults();
-					if ((null != results2) && !results2.isEmpty()) {
-						writer.println("There are " + results2.size() + " variations available.");
-						for (final SolrDocument variation : results2) {
-							writeListing(variation, writer, req);
-						}
-					}
-				}
+	/**
+	 * Records the request metrics.
+	 */
+	@Override
+	protected void service(final HttpServletRequest req, final HttpServletResponse resp) throws ServletException, IOException {
+		if (null == requestMetrics) {
+			super.service(req, resp);
+			return;
+		}
+		final RequestTrace trace = RequestTrace.start(req);
+		final MeteredResponse meteredResp = new MeteredResponse(resp);
+		int status = HttpServletResponse.SC_INTERNAL_SERVER_ERROR;
+		try {
+			super.service(req, meteredResp);
+			status = meteredResp.getStatus();
+		} catch (final ApplicationException e) {
+			status = e.getStatus();
+			throw e;
+		} finally {
+			requestMetrics.requestFinished(trace, status, meteredResp.getBytesWritten());
+			if (null != slowRequestLog) {
+				slowRequestLog.log("listings.html", req, trace, status, meteredResp.getBytesWritten());
 			}
-		} else {
-			writer.println("No listings found!");
 		}
-		writer.println("</p>");
-		writer.println("</body>");
+	}
 
+	/**
+	 * Returns the shape of a query for the slow request log, ie. the parameter
+	 * names, the fields of the filters, the sort order and the facet fields
+	 * without values and paging.
+	 */
+	private static String getShape(final SolrQuery query) {
+		final SortedSet<String> shape = new TreeSet<String>();
+		for (final Iterator<String> names = query.getParameterNamesIterator(); names.hasNext();) {
+			final String name = names.next();
+			if ("start".equals(name) || "rows".equals(name)) {
+				continue;
+			}
+			final String[] values = query.getParams(name);
+			if ("fq".equals(name) && (null != values)) {
+				for (final String filter : values) {
+					shape.add("fq=" + ListingFilters.shapeOf(filter));
+				}
+			} else if (("sort".equals(name) || "facet.field".equals(name)) && (null != values)) {
+				shape.add(name + "=" + StringUtils.join(values, ","));
+			} else {
+				shape.add(name);
+			}
+		}
+		return StringUtils.join(shape.toArray(new String[shape.size()]), " ");
 	}
 
 	private StringBuilder getBaseUrl(final HttpServletRequest req) {
@@ -301,7 +362,7 @@ public class ListingServlet extends HttpServlet {
 		return context;
 	}
 
-	private void writeListing(final SolrDocument listing, final PrintWriter writer, final HttpServletRequest req) {
+	void writeListing(final SolrDocument listing, final ResponseWriter writer, final HttpServletRequest req, final PriceFormatter priceFormatter) throws IOException {
 		writer.println("<div style=\"float:left;\">");
 		final Object uripath = listing.getFirstValue("uripath");
 		if (null != uripath) {
@@ -342,7 +403,10 @@ public class ListingServlet extends HttpServlet {
 		}
 		writer.print("</small>");
 		writer.print("<span style=\"font-size: 2em;\">");
-		NumberFormat.getCurrencyInstance(Locale.GERMAN).format((Double) listing.getFirstValue("price"));
+		final Object price = listing.getFirstValue(priceFormatter.getPriceAttribute());
+		if (price instanceof Number) {
+			writer.print(priceFormatter.format((Number) price));
+		}
 		writer.print("</span><br/>");
 		final Object desc = listing.getFirstValue("description");
 		if (null != desc) {
@@ -0,0 +1,271 @@
+/*******************************************************************************
+ * Copyright (c) 2010 Gunnar Wagenknecht and others.
+ * All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html.
+ *
+ * Contributors:
+ *     Gunnar Wagenknecht - initial API and implementation
+ *******************************************************************************/
+package net.cloudfree.apps.shop.internal.app;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import net.cloudfree.apps.shop.internal.app.ListingIndexMonitor.IndexCommitListener;
+
+import org.eclipse.gyrex.cds.model.documents.Document;
+import org.eclipse.gyrex.cds.model.solr.ISolrQueryExecutor;
+import org.eclipse.gyrex.cds.service.IListingService;
+import org.eclipse.gyrex.cds.service.query.ListingQuery;
+import org.eclipse.gyrex.cds.service.query.ListingQuery.ResultDimension;
+import org.eclipse.gyrex.cds.service.result.IListingResult;
+import org.eclipse.gyrex.http.application.ApplicationException;
+
+import org.codehaus.jackson.JsonGenerator;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.commons.lang.math.NumberUtils;
+import org.apache.solr.client.solrj.SolrQuery;
+
+/**
+ * Warms up a shop application before it reports to be ready.
+ * <p>
+ * A configured set of top queries is replayed through the listing service
+ * and the JSON rendering (which also loads the ICU price formats and
+ * initializes Jackson), warming the index caches and the JIT. The results
+ * are put into the result cache. Queries are specified like the query string
+ * of a search request (eg. <code>q=shirt&amp;c=tops&amp;r=20</code>) or as the
+ * path of a single product (eg. <code>/_id/4711</code> or
+ * <code>/some-product</code>), separated by whitespace.
+ * </p>
+ * <p>
+ * The application is {@link #isReady() ready} once all rounds were replayed
+ * or the timeout elapsed.
+ * </p>
+ * <p>
+ * After every index commit the {@link ListingFilters#STABLE_FILTERS stable
+ * filters} are queried once, so the new searcher has them cached before
+ * requests need them.
+ * </p>
+ */
+final class ListingWarmUp implements IndexCommitListener {
+
+	/** default number of times the queries are replayed */
+	static final int DEFAULT_ROUNDS = 5;
+
+	/** default maximum duration of the warm-up in milliseconds */
+	static final long DEFAULT_TIMEOUT = 60000L;
+
+	/** the time to wait for the listing service in milliseconds */
+	private static final long RETRY_DELAY = 1000L;
+
+	private static final Writer DISCARD = new Writer() {
+		@Override
+		public void close() {
+			// empty
+		}
+
+		@Override
+		public void flush() {
+			// empty
+		}
+
+		@Override
+		public void write(final char[] cbuf, final int off, final int len) {
+			// empty
+		}
+	};
+
+	private static ListingQuery createQuery(final String spec) throws UnsupportedEncodingException {
+		final ListingQuery query = new ListingQuery();
+		if (spec.startsWith("/")) {
+			if (spec.startsWith("/_id/")) {
+				query.setFilterQueries(Document.ID + ":" + spec.substring(5));
+			} else {
+				query.setFilterQueries(Document.URI_PATH + ":" + ListingQuery.escapeQueryChars(spec.substring(1)));
+			}
+			query.setResultDimension(ResultDimension.FULL);
+			query.setMaxResults(1);
+			return query;
+		}
+
+		final Map<String, List<String>> values = new HashMap<String, List<String>>();
+		for (final String parameter : StringUtils.split(spec, '&')) {
+			final int separator = parameter.indexOf('=');
+			if (separator <= 0) {
+				continue;
+			}
+			final String name = URLDecoder.decode(parameter.substring(0, separator), "UTF-8");
+			List<String> list = values.get(name);
+			if (null == list) {
+				list = new ArrayList<String>(1);
+				values.put(name, list);
+			}
+			list.add(URLDecoder.decode(parameter.substring(separator + 1), "UTF-8"));
+		}
+		final Map<String, String[]> parameters = new HashMap<String, String[]>(values.size());
+		for (final Map.Entry<String, List<String>> entry : values.entrySet()) {
+			parameters.put(entry.getKey(), entry.getValue().toArray(new String[entry.getValue().size()]));
+		}
+		JsonListingServlet.applySearchParameters(parameters, query);
+		final String[] rows = parameters.get("r");
+		if ((null != rows) && (NumberUtils.toInt(rows[0]) > 0)) {
+			query.setMaxResults(Math.min(100, NumberUtils.toInt(rows[0])));
+		}
+		return query;
+	}
+
+	private final ListingServices services;
+	private final ListingResultCache resultCache;
+	private final PriceFormatter priceFormatter;
+	private final String[] queries;
+	private final int rounds;
+	private final long timeout;
+
+	private volatile boolean ready;
+	private Thread thread;
+
+	/**
+	 * Creates a new instance.
+	 *
+	 * @param services
+	 *            the services providing the listing service
+	 * @param resultCache
+	 *            the cache to put the results into
+	 * @param priceFormatter
+	 *            the price formatter to render with
+	 * @param queries
+	 *            the whitespace separated queries (maybe <code>null</code>)
+	 * @param rounds
+	 *            the number of times the queries are replayed
+	 * @param timeout
+	 *            the maximum duration of the warm-up in milliseconds
+	 */
+	ListingWarmUp(final ListingServices services, final ListingResultCache resultCache, final PriceFormatter priceFormatter, final String queries, final int rounds, final long timeout) {
+		this.services = services;
+		this.resultCache = resultCache;
+		this.priceFormatter = priceFormatter;
+		this.queries = StringUtils.split(StringUtils.trimToEmpty(queries));
+		this.rounds = rounds;
+		this.timeout = timeout;
+		ready = this.queries.length == 0;
+	}
+
+	@Override
+	public void indexCommitted(final long version, final long lastModified) {
+		final ISolrQueryExecutor queryExecutor = services.findQueryExecutor();
+		if (null == queryExecutor) {
+			return;
+		}
+		final SolrQuery query = new SolrQuery("*:*");
+		query.setRows(0);
+		for (final String filter : ListingFilters.STABLE_FILTERS) {
+			query.addFilterQuery(filter);
+		}
+		try {
+			queryExecutor.query(query);
+		} catch (final Exception e) {
+			// the filters are cached by the next search instead
+		}
+	}
+
+	/**
+	 * Indicates if the warm-up finished.
+	 *
+	 * @return <code>true</code> if the application is ready
+	 */
+	boolean isReady() {
+		return ready;
+	}
+
+	private void replay(final IListingService listingService, final String spec) throws IOException {
+		final ListingQuery query = createQuery(spec);
+		final long version = resultCache.getVersion();
+		final IListingResult result = listingService.findListings(query);
+		if (null == result) {
+			return;
+		}
+		resultCache.put(ListingQueryKey.of(query), result, version);
+
+		final JsonGenerator json = ListingJsonWriter.createGenerator(DISCARD, false);
+		final ListingJsonWriter listingWriter = new ListingJsonWriter("http://localhost/listings/", null, priceFormatter);
+		if (query.getMaxResults() == 1) {
+			listingWriter.writeSingleProductResult(result, json, null);
+		} else {
+			listingWriter.writeProductsResult(result, json);
+		}
+		json.close();
+	}
+
+	private void run() throws InterruptedException {
+		final long deadline = System.currentTimeMillis() + timeout;
+
+		IListingService listingService = null;
+		while (null == listingService) {
+			try {
+				listingService = services.getListingService();
+			} catch (final ApplicationException e) {
+				if ((System.currentTimeMillis() + RETRY_DELAY) > deadline) {
+					return;
+				}
+				Thread.sleep(RETRY_DELAY);
+			}
+		}
+
+		for (int round = 0; round < rounds; round++) {
+			for (final String spec : queries) {
+				if (System.currentTimeMillis() > deadline) {
+					return;
+				}
+				try {
+					replay(listingService, spec);
+				} catch (final Exception e) {
+					// a broken query must not delay readiness
+				}
+			}
+		}
+	}
+
+	/**
+	 * Starts the warm-up in the background.
+	 */
+	synchronized void start() {
+		if (ready || (null != thread)) {
+			return;
+		}
+		thread = new Thread("CloudFree Listing Warm-Up") {
+			@Override
+			public void run() {
+				try {
+					ListingWarmUp.this.run();
+				} catch (final InterruptedException e) {
+					// stopped
+				} finally {
+					ready = true;
+				}
+			}
+		};
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Aborts a running warm-up.
+	 */
+	synchronized void stop() {
+		if (null == thread) {
+			return;
+		}
+		thread.interrupt();
+		thread = null;
+	}
+}
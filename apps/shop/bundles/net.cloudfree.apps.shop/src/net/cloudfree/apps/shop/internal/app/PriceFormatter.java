@@ -0,0 +1,232 @@
+/*******************************************************************************
+ * Copyright (c) 2010 Gunnar Wagenknecht and others.
+ * All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html.
+ *
+ * Contributors:
+ *     Gunnar Wagenknecht - initial API and implementation
+ *******************************************************************************/
+package net.cloudfree.apps.shop.internal.app;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.eclipse.gyrex.context.IRuntimeContext;
+import org.eclipse.gyrex.http.application.ApplicationException;
+
+import org.apache.commons.lang.StringUtils;
+
+import com.ibm.icu.text.MeasureFormat;
+import com.ibm.icu.util.Currency;
+import com.ibm.icu.util.CurrencyAmount;
+import com.ibm.icu.util.ULocale;
+
+/**
+ * Formats shop prices for a locale and currency.
+ * <p>
+ * ICU formats are expensive to create and not thread safe. Thus, one format
+ * per locale (the currency is part of the formatted amount) is kept in a
+ * bounded cache and cloned for every price, which is much cheaper than
+ * creating it and keeps no state in the (pooled) request threads. Instances
+ * are immutable and cheap; they are obtained per request from a
+ * {@link Selector}.
+ * </p>
+ * <p>
+ * Prices in the default currency are read from the <code>price</code>
+ * attribute. Prices in other currencies are read from
+ * <code>price_&lt;currency code in lower case&gt;</code> (eg.
+ * <code>price_usd</code>).
+ * </p>
+ */
+final class PriceFormatter {
+
+	/**
+	 * Selects the price formatter for a request.
+	 * <p>
+	 * The locale is taken from the <code>locale</code> parameter or the
+	 * <code>Accept-Language</code> header and the currency from the
+	 * <code>currency</code> parameter. The defaults as well as the supported
+	 * locales and currencies are configured per context. Only the default
+	 * locale is supported unless more are configured; the header is ignored
+	 * then so that responses do not vary by language.
+	 * </p>
+	 */
+	static final class Selector {
+
+		private final PriceFormatter defaultFormatter;
+		private final ULocale[] locales;
+		private final Map<String, Currency> currencies = new HashMap<String, Currency>(4);
+
+		/**
+		 * Creates a new instance.
+		 *
+		 * @param context
+		 *            the context providing the configuration (maybe
+		 *            <code>null</code>)
+		 */
+		Selector(final IRuntimeContext context) {
+			final Currency defaultCurrency = Currency.getInstance(ShopPreferences.getString(context, ShopPreferences.PRICE_CURRENCY, DEFAULT_CURRENCY));
+			defaultFormatter = new PriceFormatter(new ULocale(ShopPreferences.getString(context, ShopPreferences.PRICE_LOCALE, DEFAULT_LOCALE)), defaultCurrency, PRICE);
+			currencies.put(defaultCurrency.getCurrencyCode(), defaultCurrency);
+			for (final String code : StringUtils.split(ShopPreferences.getString(context, ShopPreferences.PRICE_CURRENCIES, ""), ", ")) {
+				final Currency currency = Currency.getInstance(code.toUpperCase());
+				currencies.put(currency.getCurrencyCode(), currency);
+			}
+			final String[] supportedLocales = StringUtils.split(ShopPreferences.getString(context, ShopPreferences.PRICE_LOCALES, ""), ", ");
+			if (supportedLocales.length > 0) {
+				locales = new ULocale[supportedLocales.length];
+				for (int i = 0; i < supportedLocales.length; i++) {
+					locales[i] = new ULocale(supportedLocales[i]);
+				}
+			} else {
+				locales = new ULocale[] { defaultFormatter.locale };
+			}
+		}
+
+		/**
+		 * Returns the formatter for the defaults of the context.
+		 *
+		 * @return the default formatter
+		 */
+		PriceFormatter getDefault() {
+			return defaultFormatter;
+		}
+
+		/**
+		 * Indicates if the formatter selected for a request depends on its
+		 * <code>Accept-Language</code> header.
+		 *
+		 * @param req
+		 *            the request
+		 * @return <code>true</code> if more than one locale is supported and
+		 *         the request does not specify one
+		 */
+		boolean isNegotiated(final HttpServletRequest req) {
+			return (locales.length > 1) && (null == StringUtils.trimToNull(req.getParameter("locale")));
+		}
+
+		/**
+		 * Selects the formatter requested by a client.
+		 *
+		 * @param req
+		 *            the request
+		 * @return the formatter
+		 * @throws ApplicationException
+		 *             if an unsupported locale or currency was requested
+		 */
+		PriceFormatter select(final HttpServletRequest req) throws ApplicationException {
+			ULocale locale = defaultFormatter.locale;
+			final String localeParameter = StringUtils.trimToNull(req.getParameter("locale"));
+			if (null != localeParameter) {
+				locale = ULocale.acceptLanguage(localeParameter, locales, null);
+				if (null == locale) {
+					throw new ApplicationException(400, "unsupported locale: " + localeParameter);
+				}
+			} else if (isNegotiated(req)) {
+				final String acceptLanguage = StringUtils.trimToNull(req.getHeader("Accept-Language"));
+				if (null != acceptLanguage) {
+					final ULocale accepted = ULocale.acceptLanguage(acceptLanguage, locales, null);
+					if (null != accepted) {
+						locale = accepted;
+					}
+				}
+			}
+
+			Currency currency = defaultFormatter.currency;
+			final String currencyParameter = StringUtils.trimToNull(req.getParameter("currency"));
+			if (null != currencyParameter) {
+				currency = currencies.get(currencyParameter.toUpperCase());
+				if (null == currency) {
+					throw new ApplicationException(400, "unsupported currency: " + currencyParameter);
+				}
+			}
+
+			if (locale.equals(defaultFormatter.locale) && (currency == defaultFormatter.currency)) {
+				return defaultFormatter;
+			}
+			return new PriceFormatter(locale, currency, currency == defaultFormatter.currency ? PRICE : PRICE + "_" + currency.getCurrencyCode().toLowerCase());
+		}
+	}
+
+	/** default locale */
+	static final String DEFAULT_LOCALE = "de_DE";
+
+	/** default currency */
+	static final String DEFAULT_CURRENCY = "EUR";
+
+	/** the attribute holding the price in the default currency */
+	static final String PRICE = "price";
+
+	/** formatter for the built-in defaults */
+	static final PriceFormatter DEFAULT = new PriceFormatter(new ULocale(DEFAULT_LOCALE), Currency.getInstance(DEFAULT_CURRENCY), PRICE);
+
+	/** maximum number of cached formats */
+	private static final int MAX_FORMATS = 64;
+
+	/** the format prototypes by locale (never used directly) */
+	private static final ConcurrentMap<ULocale, MeasureFormat> formats = new ConcurrentHashMap<ULocale, MeasureFormat>();
+
+	private static MeasureFormat getFormat(final ULocale locale) {
+		MeasureFormat prototype = formats.get(locale);
+		if (null == prototype) {
+			prototype = MeasureFormat.getCurrencyFormat(locale);
+			if (formats.size() >= MAX_FORMATS) {
+				// not cached; used by the caller only
+				return prototype;
+			}
+			final MeasureFormat existing = formats.putIfAbsent(locale, prototype);
+			if (null != existing) {
+				prototype = existing;
+			}
+		}
+		return (MeasureFormat) prototype.clone();
+	}
+
+	private final ULocale locale;
+	private final Currency currency;
+	private final String priceAttribute;
+
+	private PriceFormatter(final ULocale locale, final Currency currency, final String priceAttribute) {
+		this.locale = locale;
+		this.currency = currency;
+		this.priceAttribute = priceAttribute;
+	}
+
+	/**
+	 * Formats a price.
+	 *
+	 * @param amount
+	 *            the amount
+	 * @return the formatted price
+	 */
+	String format(final Number amount) {
+		return getFormat(locale).format(new CurrencyAmount(amount, currency));
+	}
+
+	/**
+	 * Returns the name of the attribute holding the price.
+	 *
+	 * @return the price attribute name
+	 */
+	String getPriceAttribute() {
+		return priceAttribute;
+	}
+
+	/**
+	 * Returns a string which identifies locale and currency (eg. for entity
+	 * tags).
+	 *
+	 * @return the identifying string
+	 */
+	@Override
+	public String toString() {
+		return locale.getName() + "|" + currency.getCurrencyCode();
+	}
+}
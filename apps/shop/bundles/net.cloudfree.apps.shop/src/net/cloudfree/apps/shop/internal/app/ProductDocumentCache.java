@@ -0,0 +1,215 @@
+/*******************************************************************************
+ * Copyright (c) 2010 Gunnar Wagenknecht and others.
+ * All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html.
+ *
+ * Contributors:
+ *     Gunnar Wagenknecht - initial API and implementation
+ *******************************************************************************/
+package net.cloudfree.apps.shop.internal.app;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+import net.cloudfree.apps.shop.internal.app.ListingIndexMonitor.IndexCommitListener;
+
+/**
+ * A size bounded LRU near-cache of serialized single product documents.
+ * <p>
+ * Documents are cached per listing id and response variant (base URL,
+ * projection, price locale and currency) together with the index version they
+ * were rendered from; a document of an older version is never returned. The
+ * cache is bounded by the total number of document bytes. Documents are stored
+ * either on the heap or in direct buffers outside of the heap (the native
+ * memory of evicted documents is released when their buffers are collected).
+ * </p>
+ */
+final class ProductDocumentCache implements IndexCommitListener {
+
+	/**
+	 * A cached document.
+	 */
+	static final class CachedDocument {
+		final String id;
+		final String uriPath;
+		final long version;
+		private final byte[] bytes;
+		private final ByteBuffer buffer;
+
+		CachedDocument(final String id, final String uriPath, final long version, final byte[] bytes, final boolean offHeap) {
+			this.id = id;
+			this.uriPath = uriPath;
+			this.version = version;
+			if (offHeap) {
+				buffer = ByteBuffer.allocateDirect(bytes.length);
+				buffer.put(bytes);
+				buffer.flip();
+				this.bytes = null;
+			} else {
+				buffer = null;
+				this.bytes = bytes;
+			}
+		}
+
+		/**
+		 * Returns the size of the document.
+		 *
+		 * @return the size in bytes
+		 */
+		int getLength() {
+			return null != bytes ? bytes.length : buffer.limit();
+		}
+
+		/**
+		 * Writes the document.
+		 *
+		 * @param out
+		 *            the stream to write to
+		 * @throws IOException
+		 */
+		void writeTo(final OutputStream out) throws IOException {
+			if (null != bytes) {
+				out.write(bytes);
+				return;
+			}
+			final ByteBuffer source = buffer.duplicate();
+			final byte[] chunk = new byte[Math.min(8192, source.remaining())];
+			while (source.hasRemaining()) {
+				final int length = Math.min(chunk.length, source.remaining());
+				source.get(chunk, 0, length);
+				out.write(chunk, 0, length);
+			}
+		}
+	}
+
+	/** default maximum size of all cached documents in bytes */
+	static final long DEFAULT_MAX_SIZE = 16L * 1024 * 1024;
+
+	private final long maxSize;
+	private final long maxDocumentSize;
+	private final boolean offHeap;
+	private final ShopMetrics metrics;
+	private final LinkedHashMap<String, CachedDocument> documents = new LinkedHashMap<String, CachedDocument>(16, 0.75f, true);
+	private long size;
+
+	/**
+	 * Creates a new instance.
+	 *
+	 * @param maxSize
+	 *            the maximum size of all cached documents in bytes (zero
+	 *            disables the cache)
+	 * @param offHeap
+	 *            <code>true</code> to store documents outside of the heap
+	 * @param metrics
+	 *            the metrics to update
+	 */
+	ProductDocumentCache(final long maxSize, final boolean offHeap, final ShopMetrics metrics) {
+		this.maxSize = Math.max(0, maxSize);
+		this.offHeap = offHeap;
+		this.metrics = metrics;
+		// don't let a single huge document flush the cache
+		maxDocumentSize = this.maxSize / 16;
+	}
+
+	private static String getKey(final String id, final String variant) {
+		return id.concat("\n").concat(variant);
+	}
+
+	/**
+	 * Returns a cached document.
+	 *
+	 * @param id
+	 *            the listing id
+	 * @param variant
+	 *            the response variant
+	 * @param version
+	 *            the current index version
+	 * @return the document or <code>null</code> if not cached or outdated
+	 */
+	CachedDocument get(final String id, final String variant, final long version) {
+		if (maxSize == 0) {
+			return null;
+		}
+		final long start = System.currentTimeMillis();
+		metrics.getProductCacheMetric().requestStarted();
+		final String key = getKey(id, variant);
+		CachedDocument document;
+		synchronized (documents) {
+			document = documents.get(key);
+			if ((null != document) && (document.version != version)) {
+				size -= documents.remove(key).getLength();
+				document = null;
+			}
+		}
+		if (null == document) {
+			metrics.getProductCacheMetric().requestFailed();
+			return null;
+		}
+		metrics.getProductCacheMetric().requestFinished(document.getLength(), System.currentTimeMillis() - start);
+		return document;
+	}
+
+	/**
+	 * Indicates if the cache accepts documents.
+	 *
+	 * @return <code>false</code> if the cache is disabled
+	 */
+	boolean isEnabled() {
+		return maxSize > 0;
+	}
+
+	@Override
+	public void indexCommitted(final long version, final long lastModified) {
+		// documents of older versions are never returned; free their memory
+		synchronized (documents) {
+			for (final Iterator<CachedDocument> iterator = documents.values().iterator(); iterator.hasNext();) {
+				final CachedDocument document = iterator.next();
+				if (document.version != version) {
+					size -= document.getLength();
+					iterator.remove();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Adds a document to the cache.
+	 *
+	 * @param id
+	 *            the listing id
+	 * @param uriPath
+	 *            the URI path of the listing (maybe <code>null</code>)
+	 * @param variant
+	 *            the response variant
+	 * @param version
+	 *            the index version the document was rendered from
+	 * @param bytes
+	 *            the serialized document
+	 * @return the cached document (<code>null</code> if not cached)
+	 */
+	CachedDocument put(final String id, final String uriPath, final String variant, final long version, final byte[] bytes) {
+		if ((maxSize == 0) || (bytes.length > maxDocumentSize)) {
+			return null;
+		}
+		final CachedDocument document = new CachedDocument(id, uriPath, version, bytes, offHeap);
+		synchronized (documents) {
+			final CachedDocument replaced = documents.put(getKey(id, variant), document);
+			if (null != replaced) {
+				size -= replaced.getLength();
+			}
+			size += document.getLength();
+			for (final Iterator<CachedDocument> iterator = documents.values().iterator(); (size > maxSize) && iterator.hasNext();) {
+				size -= iterator.next().getLength();
+				iterator.remove();
+				ShopMetrics.count(metrics.getProductCacheEvictionMetric());
+			}
+		}
+		return document;
+	}
+}
@@ -0,0 +1,62 @@
+/*******************************************************************************
+ * Copyright (c) 2010 Gunnar Wagenknecht and others.
+ * All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html.
+ *
+ * Contributors:
+ *     Gunnar Wagenknecht - initial API and implementation
+ *******************************************************************************/
+package net.cloudfree.apps.shop.internal.app;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Readiness check for load balancers.
+ * <p>
+ * Answers <code>200</code> once the application is warmed up and
+ * <code>503</code> before.
+ * </p>
+ */
+public class ReadinessServlet extends HttpServlet {
+
+	/** serialVersionUID */
+	private static final long serialVersionUID = 1L;
+
+	/** seconds to wait before checking again */
+	private static final int RETRY_AFTER = 5;
+
+	private final ListingWarmUp warmUp;
+
+	/**
+	 * Creates a new instance.
+	 * 
+	 * @param warmUp
+	 */
+	public ReadinessServlet(final ListingWarmUp warmUp) {
+		this.warmUp = warmUp;
+	}
+
+	@Override
+	protected void doGet(final HttpServletRequest req, final HttpServletResponse resp) throws ServletException, IOException {
+		resp.setContentType("text/plain");
+		resp.setCharacterEncoding("UTF-8");
+		resp.setHeader("Cache-Control", "no-cache");
+		final boolean ready = warmUp.isReady();
+		if (!ready) {
+			resp.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+			resp.setIntHeader("Retry-After", RETRY_AFTER);
+		}
+		final PrintWriter writer = resp.getWriter();
+		writer.println(ready ? "ready" : "warming up");
+		writer.close();
+	}
+}
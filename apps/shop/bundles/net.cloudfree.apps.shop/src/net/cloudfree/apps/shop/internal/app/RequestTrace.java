@@ -0,0 +1,100 @@
+/*******************************************************************************
+ * Copyright (c) 2010 Gunnar Wagenknecht and others.
+ * All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html.
+ *
+ * Contributors:
+ *     Gunnar Wagenknecht - initial API and implementation
+ *******************************************************************************/
+package net.cloudfree.apps.shop.internal.app;
+
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * The timing breakdown of a single request.
+ * <p>
+ * A trace is attached to the request when it enters a servlet and filled in
+ * while the request is processed. It feeds the {@link EndpointMetrics endpoint
+ * metrics} and the {@link SlowRequestLog slow request log}.
+ * </p>
+ */
+final class RequestTrace {
+
+	private static final String ATTRIBUTE = RequestTrace.class.getName();
+
+	/**
+	 * Attaches a new trace to a request.
+	 *
+	 * @param req
+	 *            the request
+	 * @return the trace
+	 */
+	static RequestTrace start(final HttpServletRequest req) {
+		final RequestTrace trace = new RequestTrace();
+		req.setAttribute(ATTRIBUTE, trace);
+		return trace;
+	}
+
+	/**
+	 * Returns the trace of a request.
+	 *
+	 * @param req
+	 *            the request
+	 * @return the trace (a detached one if the request is not traced)
+	 */
+	static RequestTrace of(final HttpServletRequest req) {
+		final Object trace = req.getAttribute(ATTRIBUTE);
+		return trace instanceof RequestTrace ? (RequestTrace) trace : new RequestTrace();
+	}
+
+	final long start = System.nanoTime();
+	String query;
+	String shape;
+	long numFound = -1;
+	long queryTime = -1;
+	long renderingTime = -1;
+
+	private RequestTrace() {
+		// empty
+	}
+
+	/**
+	 * Records the query of the request.
+	 *
+	 * @param query
+	 *            the normalized query
+	 * @param numFound
+	 *            the number of matching listings
+	 * @param queryTime
+	 *            the index query time in milliseconds (negative if the result
+	 *            was not queried)
+	 */
+	void queried(final String query, final long numFound, final long queryTime) {
+		this.query = query;
+		this.numFound = numFound;
+		this.queryTime = queryTime;
+	}
+
+	/**
+	 * Records the shape of the query of the request.
+	 *
+	 * @param shape
+	 *            the query without values, paging and cursor
+	 */
+	void shaped(final String shape) {
+		this.shape = shape;
+	}
+
+	/**
+	 * Records the rendering time of the response.
+	 *
+	 * @param renderingStart
+	 *            the start of rendering as returned by {@link System#nanoTime()}
+	 */
+	void rendered(final long renderingStart) {
+		renderingTime = System.nanoTime() - renderingStart;
+	}
+}
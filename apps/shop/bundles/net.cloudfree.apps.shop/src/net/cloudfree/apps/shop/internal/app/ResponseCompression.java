@@ -0,0 +1,332 @@
+/*******************************************************************************
+ * Copyright (c) 2010 Gunnar Wagenknecht and others.
+ * All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html.
+ *
+ * Contributors:
+ *     Gunnar Wagenknecht - initial API and implementation
+ *******************************************************************************/
+package net.cloudfree.apps.shop.internal.app;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.Deflater;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.commons.lang.math.NumberUtils;
+
+/**
+ * Negotiated <code>gzip</code>/<code>deflate</code> response compression.
+ * <p>
+ * Responses are compressed while they are written (nothing is buffered
+ * besides the first {@link #getMinSize() minimum size} bytes, which decide
+ * whether compression is worth it). {@link Deflater} instances hold native
+ * zlib state and are therefore pooled instead of being created per request.
+ * </p>
+ * <p>
+ * All response bodies are written through pooled
+ * {@link ResponseOutputStream buffers}, so small bodies are sent with a
+ * <code>Content-Length</code> in a single write and large ones in large
+ * chunks.
+ * </p>
+ */
+final class ResponseCompression {
+
+	/**
+	 * A pooled deflater together with its output buffer.
+	 */
+	static final class PooledDeflater {
+		final Deflater deflater;
+		final byte[] buffer = new byte[8192];
+		final boolean nowrap;
+
+		PooledDeflater(final int level, final boolean nowrap) {
+			deflater = new Deflater(level, nowrap);
+			this.nowrap = nowrap;
+		}
+	}
+
+	/** content encoding gzip */
+	static final String GZIP = "gzip";
+
+	/** content encoding deflate */
+	static final String DEFLATE = "deflate";
+
+	/** default compression level */
+	static final int DEFAULT_LEVEL = 6;
+
+	/** default minimum response size in bytes */
+	static final int DEFAULT_MIN_SIZE = 1024;
+
+	/** default number of pooled deflaters per encoding */
+	static final int DEFAULT_POOL_SIZE = 32;
+
+	/** default number of pooled response buffers */
+	static final int DEFAULT_BUFFER_POOL_SIZE = 64;
+
+	private static float getQuality(final String acceptEncoding, final String encoding) {
+		float quality = 0f;
+		for (final String element : StringUtils.split(acceptEncoding, ',')) {
+			final String[] params = StringUtils.split(element, ';');
+			if (params.length == 0) {
+				continue;
+			}
+			final String name = params[0].trim();
+			if (!name.equalsIgnoreCase(encoding) && !"*".equals(name)) {
+				continue;
+			}
+			float q = 1f;
+			for (int i = 1; i < params.length; i++) {
+				final String param = params[i].trim();
+				if (param.startsWith("q=")) {
+					q = (float) NumberUtils.toDouble(param.substring(2).trim(), 0d);
+				}
+			}
+			if (name.equalsIgnoreCase(encoding)) {
+				// an explicit entry always wins over the wildcard
+				return q;
+			}
+			quality = q;
+		}
+		return quality;
+	}
+
+	/**
+	 * Returns the preferred supported content encoding of the request.
+	 *
+	 * @param req
+	 *            the request
+	 * @return {@link #GZIP}, {@link #DEFLATE} or <code>null</code> if the
+	 *         response should not be compressed
+	 */
+	static String negotiate(final HttpServletRequest req) {
+		final String acceptEncoding = req.getHeader("Accept-Encoding");
+		if (StringUtils.isBlank(acceptEncoding)) {
+			return null;
+		}
+		final float gzip = getQuality(acceptEncoding, GZIP);
+		final float deflate = getQuality(acceptEncoding, DEFLATE);
+		if ((gzip > 0f) && (gzip >= deflate)) {
+			return GZIP;
+		}
+		if (deflate > 0f) {
+			return DEFLATE;
+		}
+		return null;
+	}
+
+	private final boolean enabled;
+	private final int level;
+	private final int minSize;
+	private final BlockingQueue<PooledDeflater> gzipPool;
+	private final BlockingQueue<PooledDeflater> deflatePool;
+	private final int bufferSize;
+	private final BlockingQueue<byte[]> bufferPool;
+
+	/**
+	 * Creates a new instance.
+	 *
+	 * @param enabled
+	 *            <code>true</code> if compression is enabled
+	 * @param level
+	 *            the compression level (0-9)
+	 * @param minSize
+	 *            the minimum response size in bytes for compressing a response
+	 * @param poolSize
+	 *            the maximum number of idle deflaters kept per encoding
+	 * @param bufferSize
+	 *            the size of the response buffers in bytes
+	 * @param bufferPoolSize
+	 *            the maximum number of idle response buffers kept
+	 */
+	ResponseCompression(final boolean enabled, final int level, final int minSize, final int poolSize, final int bufferSize, final int bufferPoolSize) {
+		this.enabled = enabled;
+		this.level = Math.max(Deflater.NO_COMPRESSION, Math.min(Deflater.BEST_COMPRESSION, level));
+		this.minSize = Math.max(0, minSize);
+		gzipPool = new ArrayBlockingQueue<PooledDeflater>(Math.max(1, poolSize));
+		deflatePool = new ArrayBlockingQueue<PooledDeflater>(Math.max(1, poolSize));
+		this.bufferSize = Math.max(1024, bufferSize);
+		bufferPool = new ArrayBlockingQueue<byte[]>(Math.max(1, bufferPoolSize));
+	}
+
+	/**
+	 * Releases all pooled deflaters.
+	 */
+	void dispose() {
+		bufferPool.clear();
+		PooledDeflater deflater;
+		while (null != (deflater = gzipPool.poll())) {
+			deflater.deflater.end();
+		}
+		while (null != (deflater = deflatePool.poll())) {
+			deflater.deflater.end();
+		}
+	}
+
+	/**
+	 * Returns the minimum response size for compressing a response.
+	 *
+	 * @return the minimum size in bytes
+	 */
+	int getMinSize() {
+		return minSize;
+	}
+
+	/**
+	 * Returns an output stream for writing the response body.
+	 * <p>
+	 * The stream must be closed in order to complete the response.
+	 * </p>
+	 *
+	 * @param req
+	 *            the request
+	 * @param resp
+	 *            the response
+	 * @return the output stream
+	 * @throws IOException
+	 */
+	ResponseOutputStream getOutputStream(final HttpServletRequest req, final HttpServletResponse resp) throws IOException {
+		return getOutputStream(resp, negotiateEncoding(req, resp));
+	}
+
+	/**
+	 * Returns an output stream for writing the response body with a
+	 * {@link #negotiateEncoding(HttpServletRequest, HttpServletResponse)
+	 * negotiated} content encoding.
+	 * <p>
+	 * The stream must be closed in order to complete the response.
+	 * </p>
+	 *
+	 * @param resp
+	 *            the response
+	 * @param encoding
+	 *            the negotiated content encoding (maybe <code>null</code>)
+	 * @return the output stream
+	 * @throws IOException
+	 */
+	ResponseOutputStream getOutputStream(final HttpServletResponse resp, final String encoding) throws IOException {
+		if (null == encoding) {
+			return new ResponseOutputStream(resp.getOutputStream(), resp, this);
+		}
+		return new ResponseOutputStream(new CompressingOutputStream(resp, encoding, this), null, this);
+	}
+
+	/**
+	 * Returns a writer for writing the response body in UTF-8.
+	 * <p>
+	 * The writer must be closed in order to complete the response. The
+	 * response character encoding must be set to UTF-8.
+	 * </p>
+	 *
+	 * @param req
+	 *            the request
+	 * @param resp
+	 *            the response
+	 * @return the writer
+	 * @throws IOException
+	 */
+	ResponseWriter getWriter(final HttpServletRequest req, final HttpServletResponse resp) throws IOException {
+		return new ResponseWriter(getOutputStream(req, resp));
+	}
+
+	/**
+	 * Returns a writer for writing the response body in UTF-8 with a
+	 * {@link #negotiateEncoding(HttpServletRequest, HttpServletResponse)
+	 * negotiated} content encoding.
+	 *
+	 * @param resp
+	 *            the response
+	 * @param encoding
+	 *            the negotiated content encoding (maybe <code>null</code>)
+	 * @return the writer
+	 * @throws IOException
+	 */
+	ResponseWriter getWriter(final HttpServletResponse resp, final String encoding) throws IOException {
+		return new ResponseWriter(getOutputStream(resp, encoding));
+	}
+
+	/**
+	 * Negotiates the content encoding of a response.
+	 * <p>
+	 * Adds <code>Vary: Accept-Encoding</code> if compression is enabled.
+	 * Servlets answering conditional requests must negotiate before the
+	 * conditional check (so that a <code>304</code> varies as well) and
+	 * include the encoding in their entity tags.
+	 * </p>
+	 *
+	 * @param req
+	 *            the request
+	 * @param resp
+	 *            the response
+	 * @return {@link #GZIP}, {@link #DEFLATE} or <code>null</code> if the
+	 *         response is not compressed
+	 */
+	String negotiateEncoding(final HttpServletRequest req, final HttpServletResponse resp) {
+		if (!enabled) {
+			return null;
+		}
+		resp.addHeader("Vary", "Accept-Encoding");
+		return negotiate(req);
+	}
+
+	/**
+	 * Borrows a response buffer from the pool.
+	 *
+	 * @return the buffer
+	 */
+	byte[] obtainBuffer() {
+		final byte[] buffer = bufferPool.poll();
+		if (null != buffer) {
+			return buffer;
+		}
+		return new byte[bufferSize];
+	}
+
+	/**
+	 * Borrows a deflater from the pool.
+	 *
+	 * @param gzip
+	 *            <code>true</code> for a deflater producing raw deflate data
+	 *            for a gzip stream, <code>false</code> for zlib data
+	 * @return the deflater
+	 */
+	PooledDeflater obtainDeflater(final boolean gzip) {
+		final PooledDeflater deflater = (gzip ? gzipPool : deflatePool).poll();
+		if (null != deflater) {
+			return deflater;
+		}
+		return new PooledDeflater(level, gzip);
+	}
+
+	/**
+	 * Returns a response buffer to the pool.
+	 *
+	 * @param buffer
+	 *            the buffer
+	 */
+	void releaseBuffer(final byte[] buffer) {
+		bufferPool.offer(buffer);
+	}
+
+	/**
+	 * Returns a deflater to the pool.
+	 *
+	 * @param deflater
+	 *            the deflater
+	 */
+	void releaseDeflater(final PooledDeflater deflater) {
+		deflater.deflater.reset();
+		if (!(deflater.nowrap ? gzipPool : deflatePool).offer(deflater)) {
+			// pool is full; free native memory immediately
+			deflater.deflater.end();
+		}
+	}
+}
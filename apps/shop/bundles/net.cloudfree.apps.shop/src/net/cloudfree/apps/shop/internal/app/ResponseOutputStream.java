@@ -0,0 +1,176 @@
+/*******************************************************************************
+ * Copyright (c) 2010 Gunnar Wagenknecht and others.
+ * All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html.
+ *
+ * Contributors:
+ *     Gunnar Wagenknecht - initial API and implementation
+ *******************************************************************************/
+package net.cloudfree.apps.shop.internal.app;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * A response body stream writing through a pooled buffer.
+ * <p>
+ * The body is collected in a buffer borrowed from the
+ * {@link ResponseCompression#obtainBuffer() pool}. A body which fits into the
+ * buffer is written with a single call and a <code>Content-Length</code>
+ * header (if the target is the uncompressed response). Larger bodies are
+ * streamed in chunks of the buffer size. The buffer is returned to the pool
+ * when the stream is closed.
+ * </p>
+ * <p>
+ * {@link ResponseWriter} encodes characters directly into the buffer.
+ * </p>
+ */
+final class ResponseOutputStream extends OutputStream {
+
+	/** default buffer size in bytes */
+	static final int DEFAULT_BUFFER_SIZE = 32768;
+
+	private final OutputStream out;
+	private final HttpServletResponse resp;
+	private final ResponseCompression pool;
+
+	byte[] buffer;
+	int position;
+
+	private boolean streaming;
+	private boolean closed;
+
+	/**
+	 * Creates a new instance.
+	 *
+	 * @param out
+	 *            the target stream
+	 * @param resp
+	 *            the response receiving the <code>Content-Length</code> header
+	 *            (<code>null</code> if the target changes the length, eg. when
+	 *            it compresses)
+	 * @param pool
+	 *            the buffer pool (maybe <code>null</code> for a private
+	 *            buffer)
+	 */
+	ResponseOutputStream(final OutputStream out, final HttpServletResponse resp, final ResponseCompression pool) {
+		this.out = out;
+		this.resp = resp;
+		this.pool = pool;
+		buffer = null != pool ? pool.obtainBuffer() : new byte[DEFAULT_BUFFER_SIZE];
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		try {
+			try {
+				if (!streaming && (null != resp)) {
+					resp.setContentLength(position);
+				}
+				writeBuffer();
+			} finally {
+				if (null != pool) {
+					pool.releaseBuffer(buffer);
+				}
+				buffer = null;
+			}
+		} finally {
+			// always close the target (releases a pooled deflater)
+			out.close();
+		}
+	}
+
+	/**
+	 * Closes the stream without writing the buffered bytes (eg. because an
+	 * error is sent instead) and releases the buffer.
+	 */
+	void discard() {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		position = 0;
+		if (null != pool) {
+			pool.releaseBuffer(buffer);
+		}
+		buffer = null;
+		if (out instanceof CompressingOutputStream) {
+			((CompressingOutputStream) out).discard();
+		}
+	}
+
+	/**
+	 * Makes room for the specified number of bytes by writing the buffer if
+	 * necessary.
+	 *
+	 * @param length
+	 *            the number of bytes (not more than the buffer size)
+	 * @throws IOException
+	 */
+	void ensureCapacity(final int length) throws IOException {
+		if (closed) {
+			throw new IOException("stream closed");
+		}
+		if ((position + length) > buffer.length) {
+			streaming = true;
+			writeBuffer();
+		}
+	}
+
+	/**
+	 * Writes the buffered bytes and flushes the target.
+	 * <p>
+	 * Note, a flushed response is streamed (ie. sent without a
+	 * <code>Content-Length</code>).
+	 * </p>
+	 */
+	@Override
+	public void flush() throws IOException {
+		if (closed) {
+			return;
+		}
+		streaming = true;
+		writeBuffer();
+		out.flush();
+	}
+
+	@Override
+	public void write(final byte[] b, final int off, final int len) throws IOException {
+		if (closed) {
+			throw new IOException("stream closed");
+		}
+		if (len > (buffer.length - position)) {
+			streaming = true;
+			writeBuffer();
+			if (len >= buffer.length) {
+				// large chunks bypass the buffer
+				out.write(b, off, len);
+				return;
+			}
+		}
+		System.arraycopy(b, off, buffer, position, len);
+		position += len;
+	}
+
+	@Override
+	public void write(final int b) throws IOException {
+		ensureCapacity(1);
+		buffer[position++] = (byte) b;
+	}
+
+	private void writeBuffer() throws IOException {
+		if (position > 0) {
+			out.write(buffer, 0, position);
+			position = 0;
+		}
+	}
+}
@@ -0,0 +1,152 @@
+/*******************************************************************************
+ * Copyright (c) 2010 Gunnar Wagenknecht and others.
+ * All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html.
+ *
+ * Contributors:
+ *     Gunnar Wagenknecht - initial API and implementation
+ *******************************************************************************/
+package net.cloudfree.apps.shop.internal.app;
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.commons.lang.StringUtils;
+
+/**
+ * HTTP cache validators (<code>ETag</code>, <code>Last-Modified</code>) and
+ * conditional request handling.
+ * <p>
+ * Listing responses only change when the index changes. Thus, a strong entity
+ * tag is derived from the index version and the normalized query (plus
+ * everything else influencing the output) without rendering the response.
+ * </p>
+ */
+final class ResponseValidators {
+
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	/**
+	 * Creates a strong entity tag.
+	 *
+	 * @param indexVersion
+	 *            the index version (must be known)
+	 * @param key
+	 *            the normalized query
+	 * @param variant
+	 *            additional information which influences the response (eg.
+	 *            base URL, output format)
+	 * @return the entity tag (including quotes)
+	 */
+	static String createETag(final long indexVersion, final ListingQueryKey key, final String variant) {
+		final MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("MD5");
+			digest.update(key.toString().getBytes("UTF-8"));
+			digest.update((byte) 0);
+			digest.update(variant.getBytes("UTF-8"));
+		} catch (final NoSuchAlgorithmException e) {
+			throw new IllegalStateException("MD5 not available", e);
+		} catch (final UnsupportedEncodingException e) {
+			throw new IllegalStateException("UTF-8 not available", e);
+		}
+
+		final byte[] hash = digest.digest();
+		final StringBuilder etag = new StringBuilder(2 + 16 + 1 + (hash.length * 2));
+		etag.append('"').append(Long.toHexString(indexVersion)).append('-');
+		for (final byte b : hash) {
+			etag.append(HEX[(b >> 4) & 0xf]).append(HEX[b & 0xf]);
+		}
+		etag.append('"');
+		return etag.toString();
+	}
+
+	/**
+	 * Evaluates the conditional request headers.
+	 * <p>
+	 * <code>If-None-Match</code> takes precedence over
+	 * <code>If-Modified-Since</code> as mandated by RFC 2616. The validators
+	 * are evaluated before querying, i.e. before it is known whether the
+	 * resource exists. Thus, <code>If-None-Match: *</code> never matches;
+	 * the request is answered with the full response (or a <code>404</code>).
+	 * </p>
+	 *
+	 * @param req
+	 *            the request
+	 * @param etag
+	 *            the current entity tag (may be <code>null</code>)
+	 * @param lastModified
+	 *            the last modification time (or <code>-1</code> if unknown)
+	 * @return <code>true</code> if the client representation is current and a
+	 *         <code>304</code> may be sent
+	 */
+	static boolean isNotModified(final HttpServletRequest req, final String etag, final long lastModified) {
+		final String ifNoneMatch = req.getHeader("If-None-Match");
+		if (null != ifNoneMatch) {
+			if (null == etag) {
+				return false;
+			}
+			for (String candidate : StringUtils.split(ifNoneMatch, ',')) {
+				candidate = candidate.trim();
+				if (candidate.startsWith("W/")) {
+					// weak comparison is allowed for GET
+					candidate = candidate.substring(2);
+				}
+				if (etag.equals(candidate)) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		if (lastModified < 0) {
+			return false;
+		}
+		final long ifModifiedSince;
+		try {
+			ifModifiedSince = req.getDateHeader("If-Modified-Since");
+		} catch (final IllegalArgumentException e) {
+			// unparsable date
+			return false;
+		}
+		// HTTP dates have a resolution of one second
+		return (ifModifiedSince >= 0) && ((lastModified / 1000) <= (ifModifiedSince / 1000));
+	}
+
+	/**
+	 * Sets the caching related response headers.
+	 *
+	 * @param resp
+	 *            the response
+	 * @param etag
+	 *            the entity tag (may be <code>null</code>)
+	 * @param lastModified
+	 *            the last modification time (or <code>-1</code> if unknown)
+	 * @param maxAge
+	 *            the max age in seconds (a negative value disables caching)
+	 */
+	static void setCacheHeaders(final HttpServletResponse resp, final String etag, final long lastModified, final int maxAge) {
+		if (null != etag) {
+			resp.setHeader("ETag", etag);
+		}
+		if (lastModified >= 0) {
+			resp.setDateHeader("Last-Modified", lastModified);
+		}
+		if (maxAge >= 0) {
+			resp.setHeader("Cache-Control", "public, max-age=" + maxAge);
+		} else {
+			resp.setHeader("Cache-Control", "no-cache");
+		}
+	}
+
+	private ResponseValidators() {
+		// empty
+	}
+}
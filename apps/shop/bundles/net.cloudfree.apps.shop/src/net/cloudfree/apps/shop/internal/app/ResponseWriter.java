@@ -0,0 +1,247 @@
+/*******************************************************************************
+ * Copyright (c) 2010 Gunnar Wagenknecht and others.
+ * All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html.
+ *
+ * Contributors:
+ *     Gunnar Wagenknecht - initial API and implementation
+ *******************************************************************************/
+package net.cloudfree.apps.shop.internal.app;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * A response writer encoding UTF-8 directly into the pooled buffer of a
+ * {@link ResponseOutputStream}.
+ * <p>
+ * Unlike a {@link java.io.PrintWriter} on top of an
+ * {@link java.io.OutputStreamWriter} there is no intermediate character
+ * buffer, no encoder state and no locking. ASCII runs are copied in a tight
+ * loop and numbers are printed without creating strings. Unpaired surrogates
+ * are written as <code>?</code> (like the JDK encoder). Lines are terminated
+ * by <code>\n</code>.
+ * </p>
+ * <p>
+ * Errors are thrown (and not swallowed like a {@link java.io.PrintWriter}
+ * does).
+ * </p>
+ */
+final class ResponseWriter extends Writer {
+
+	private final ResponseOutputStream out;
+	private final char[] digits = new char[20];
+	private char highSurrogate;
+
+	/**
+	 * Creates a new instance.
+	 *
+	 * @param out
+	 *            the stream to write to
+	 */
+	ResponseWriter(final ResponseOutputStream out) {
+		this.out = out;
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (0 != highSurrogate) {
+			highSurrogate = 0;
+			writeCodePoint('?');
+		}
+		out.close();
+	}
+
+	/**
+	 * Closes the writer without writing the buffered bytes.
+	 *
+	 * @see ResponseOutputStream#discard()
+	 */
+	void discard() {
+		highSurrogate = 0;
+		out.discard();
+	}
+
+	@Override
+	public void flush() throws IOException {
+		out.flush();
+	}
+
+	/**
+	 * Prints a number.
+	 *
+	 * @param value
+	 *            the number
+	 * @throws IOException
+	 */
+	void print(long value) throws IOException {
+		if (value == Long.MIN_VALUE) {
+			write(Long.toString(value));
+			return;
+		}
+		final boolean negative = value < 0;
+		if (negative) {
+			value = -value;
+		}
+		int start = digits.length;
+		do {
+			digits[--start] = (char) ('0' + (value % 10));
+			value /= 10;
+		} while (value != 0);
+		if (negative) {
+			digits[--start] = '-';
+		}
+		write(digits, start, digits.length - start);
+	}
+
+	/**
+	 * Prints an object.
+	 *
+	 * @param value
+	 *            the object (maybe <code>null</code>)
+	 * @throws IOException
+	 */
+	void print(final Object value) throws IOException {
+		write(String.valueOf(value));
+	}
+
+	/**
+	 * Prints a string.
+	 *
+	 * @param value
+	 *            the string (maybe <code>null</code>)
+	 * @throws IOException
+	 */
+	void print(final String value) throws IOException {
+		write(null != value ? value : "null");
+	}
+
+	/**
+	 * Terminates the current line.
+	 *
+	 * @throws IOException
+	 */
+	void println() throws IOException {
+		write('\n');
+	}
+
+	/**
+	 * Prints an object and terminates the line.
+	 *
+	 * @param value
+	 *            the object (maybe <code>null</code>)
+	 * @throws IOException
+	 */
+	void println(final Object value) throws IOException {
+		print(value);
+		write('\n');
+	}
+
+	/**
+	 * Prints a string and terminates the line.
+	 *
+	 * @param value
+	 *            the string (maybe <code>null</code>)
+	 * @throws IOException
+	 */
+	void println(final String value) throws IOException {
+		print(value);
+		write('\n');
+	}
+
+	@Override
+	public void write(final char[] cbuf, final int off, final int len) throws IOException {
+		final int end = off + len;
+		int i = off;
+		while (i < end) {
+			if (0 == highSurrogate) {
+				// copy ASCII runs
+				out.ensureCapacity(1);
+				final byte[] buffer = out.buffer;
+				int position = out.position;
+				final int limit = Math.min(end, i + (buffer.length - position));
+				while ((i < limit) && (cbuf[i] < 0x80)) {
+					buffer[position++] = (byte) cbuf[i++];
+				}
+				out.position = position;
+				if (i == limit) {
+					continue;
+				}
+			}
+			writeChar(cbuf[i++]);
+		}
+	}
+
+	@Override
+	public void write(final int c) throws IOException {
+		writeChar((char) c);
+	}
+
+	@Override
+	public void write(final String str, final int off, final int len) throws IOException {
+		final int end = off + len;
+		int i = off;
+		while (i < end) {
+			if (0 == highSurrogate) {
+				// copy ASCII runs
+				out.ensureCapacity(1);
+				final byte[] buffer = out.buffer;
+				int position = out.position;
+				final int limit = Math.min(end, i + (buffer.length - position));
+				char c;
+				while ((i < limit) && ((c = str.charAt(i)) < 0x80)) {
+					buffer[position++] = (byte) c;
+					i++;
+				}
+				out.position = position;
+				if (i == limit) {
+					continue;
+				}
+			}
+			writeChar(str.charAt(i++));
+		}
+	}
+
+	private void writeChar(final char c) throws IOException {
+		if (0 != highSurrogate) {
+			final char high = highSurrogate;
+			highSurrogate = 0;
+			if (Character.isLowSurrogate(c)) {
+				writeCodePoint(Character.toCodePoint(high, c));
+				return;
+			}
+			writeCodePoint('?');
+		}
+		if (Character.isHighSurrogate(c)) {
+			// wait for the low surrogate
+			highSurrogate = c;
+		} else if (Character.isLowSurrogate(c)) {
+			writeCodePoint('?');
+		} else {
+			writeCodePoint(c);
+		}
+	}
+
+	private void writeCodePoint(final int c) throws IOException {
+		out.ensureCapacity(4);
+		final byte[] buffer = out.buffer;
+		if (c < 0x80) {
+			buffer[out.position++] = (byte) c;
+		} else if (c < 0x800) {
+			buffer[out.position++] = (byte) (0xC0 | (c >> 6));
+			buffer[out.position++] = (byte) (0x80 | (c & 0x3F));
+		} else if (c < 0x10000) {
+			buffer[out.position++] = (byte) (0xE0 | (c >> 12));
+			buffer[out.position++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+			buffer[out.position++] = (byte) (0x80 | (c & 0x3F));
+		} else {
+			buffer[out.position++] = (byte) (0xF0 | (c >> 18));
+			buffer[out.position++] = (byte) (0x80 | ((c >> 12) & 0x3F));
+			buffer[out.position++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+			buffer[out.position++] = (byte) (0x80 | (c & 0x3F));
+		}
+	}
+}
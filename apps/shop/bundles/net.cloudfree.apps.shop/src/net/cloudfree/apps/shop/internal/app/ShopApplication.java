@@ -24,20 +24,125 @@ import org.eclipse.gyrex.http.application.Application;
  */
 public class ShopApplication extends Application {
 
+	private ShopMetrics metrics;
+	private ListingServices services;
+	private UriPathIndex uriPathIndex;
+	private SuggestIndex suggestIndex;
+	private ListingIndexMonitor indexMonitor;
+	private ResponseCompression compression;
+	private ListingQueryExecutor queryExecutor;
+	private SlowRequestLog slowRequestLog;
+	private ListingWarmUp warmUp;
+
 	ShopApplication(final String id, final IRuntimeContext context) {
 		super(id, context);
 	}
 
 	@Override
 	protected void doDestroy() {
-		// empty
+		if (null != warmUp) {
+			warmUp.stop();
+			warmUp = null;
+		}
+		if (null != indexMonitor) {
+			indexMonitor.stop();
+			indexMonitor = null;
+		}
+		if (null != uriPathIndex) {
+			uriPathIndex.stop();
+			uriPathIndex = null;
+		}
+		if (null != suggestIndex) {
+			suggestIndex.stop();
+			suggestIndex = null;
+		}
+		if (null != services) {
+			services.close();
+			services = null;
+		}
+		if (null != queryExecutor) {
+			queryExecutor.shutdown();
+			queryExecutor = null;
+		}
+		if (null != slowRequestLog) {
+			slowRequestLog.stop();
+			slowRequestLog = null;
+		}
+		if (null != compression) {
+			compression.dispose();
+			compression = null;
+		}
+		if (null != metrics) {
+			metrics.unregister();
+			metrics = null;
+		}
 	}
 
 	@Override
 	protected void doInit() throws CoreException {
+		final IRuntimeContext context = getContext();
+
+		// publish metrics
+		metrics = new ShopMetrics(getId());
+		metrics.register();
+
+		// tracked listing service and index
+		services = new ListingServices(context, metrics);
+		services.open();
+
+		// result, facet and product caches (invalidated on index commits)
+		final ListingResultCache resultCache = new ListingResultCache(ShopPreferences.getInt(context, ShopPreferences.RESULT_CACHE_MAX_ENTRIES, ListingResultCache.DEFAULT_MAX_ENTRIES), ShopPreferences.getLong(context, ShopPreferences.RESULT_CACHE_TTL, ListingResultCache.DEFAULT_TTL), metrics);
+		final ListingFacetCache facetCache = new ListingFacetCache(ShopPreferences.getInt(context, ShopPreferences.FACET_CACHE_MAX_ENTRIES, ListingFacetCache.DEFAULT_MAX_ENTRIES), ShopPreferences.getLong(context, ShopPreferences.FACET_CACHE_TTL, ListingFacetCache.DEFAULT_TTL), metrics);
+		final ProductDocumentCache productCache = new ProductDocumentCache(ShopPreferences.getLong(context, ShopPreferences.PRODUCT_CACHE_MAX_SIZE, ProductDocumentCache.DEFAULT_MAX_SIZE), ShopPreferences.getBoolean(context, ShopPreferences.PRODUCT_CACHE_OFF_HEAP, false), metrics);
+		indexMonitor = new ListingIndexMonitor(context, services);
+		indexMonitor.addListener(resultCache);
+		indexMonitor.addListener(facetCache);
+		indexMonitor.addListener(productCache);
+
+		// URI path lookups without a query (built in the background)
+		if (ShopPreferences.getBoolean(context, ShopPreferences.URIPATH_INDEX_ENABLED, true)) {
+			uriPathIndex = new UriPathIndex(services, ShopPreferences.getInt(context, ShopPreferences.URIPATH_INDEX_BATCH_SIZE, UriPathIndex.DEFAULT_BATCH_SIZE), ShopPreferences.getLong(context, ShopPreferences.URIPATH_INDEX_REBUILD_INTERVAL, UriPathIndex.DEFAULT_REBUILD_INTERVAL), ShopPreferences.getString(context, ShopPreferences.URIPATH_INDEX_MODIFIED_FIELD, null));
+			uriPathIndex.start();
+			indexMonitor.addListener(uriPathIndex);
+		}
+
+		// typeahead suggestions without a query (built in the background)
+		if (ShopPreferences.getBoolean(context, ShopPreferences.SUGGEST_ENABLED, true)) {
+			suggestIndex = new SuggestIndex(services, ShopPreferences.getString(context, ShopPreferences.SUGGEST_FIELDS, SuggestIndex.DEFAULT_FIELDS), ShopPreferences.getString(context, ShopPreferences.SUGGEST_WEIGHT_FIELD, null), ShopPreferences.getInt(context, ShopPreferences.SUGGEST_BATCH_SIZE, SuggestIndex.DEFAULT_BATCH_SIZE), ShopPreferences.getLong(context, ShopPreferences.SUGGEST_REBUILD_INTERVAL, SuggestIndex.DEFAULT_REBUILD_INTERVAL), ShopPreferences.getString(context, ShopPreferences.SUGGEST_MODIFIED_FIELD, null));
+			suggestIndex.start();
+			indexMonitor.addListener(suggestIndex);
+		}
+		indexMonitor.start();
+
+		// bounded query execution
+		queryExecutor = new ListingQueryExecutor(ShopPreferences.getInt(context, ShopPreferences.QUERY_THREADS, ListingQueryExecutor.DEFAULT_THREADS), ShopPreferences.getInt(context, ShopPreferences.QUERY_QUEUE_SIZE, ListingQueryExecutor.DEFAULT_QUEUE_SIZE), ShopPreferences.getLong(context, ShopPreferences.QUERY_TIMEOUT, ListingQueryExecutor.DEFAULT_TIMEOUT), ShopPreferences.getInt(context, ShopPreferences.QUERY_RETRY_AFTER, ListingQueryExecutor.DEFAULT_RETRY_AFTER));
+
+		// response compression
+		compression = new ResponseCompression(ShopPreferences.getBoolean(context, ShopPreferences.COMPRESSION_ENABLED, true), ShopPreferences.getInt(context, ShopPreferences.COMPRESSION_LEVEL, ResponseCompression.DEFAULT_LEVEL), ShopPreferences.getInt(context, ShopPreferences.COMPRESSION_MIN_SIZE, ResponseCompression.DEFAULT_MIN_SIZE), ShopPreferences.getInt(context, ShopPreferences.COMPRESSION_POOL_SIZE, ResponseCompression.DEFAULT_POOL_SIZE), ShopPreferences.getInt(context, ShopPreferences.RESPONSE_BUFFER_SIZE, ResponseOutputStream.DEFAULT_BUFFER_SIZE), ShopPreferences.getInt(context, ShopPreferences.RESPONSE_BUFFER_POOL_SIZE, ResponseCompression.DEFAULT_BUFFER_POOL_SIZE));
+
+		// sampled log of slow requests
+		final long slowRequestThreshold = ShopPreferences.getLong(context, ShopPreferences.SLOW_LOG_THRESHOLD, SlowRequestLog.DEFAULT_THRESHOLD);
+		if (slowRequestThreshold >= 0) {
+			slowRequestLog = new SlowRequestLog(ShopActivator.getInstance().getBundleContext().getDataFile("slow-requests-" + getId() + ".log"), slowRequestThreshold, ShopPreferences.getInt(context, ShopPreferences.SLOW_LOG_SAMPLE_PERCENT, SlowRequestLog.DEFAULT_SAMPLE_PERCENT), ShopPreferences.getInt(context, ShopPreferences.SLOW_LOG_BUFFER_SIZE, SlowRequestLog.DEFAULT_BUFFER_SIZE));
+			slowRequestLog.start();
+		}
+
+		// replay top queries before reporting ready
+		warmUp = new ListingWarmUp(services, resultCache, new PriceFormatter.Selector(context).getDefault(), ShopPreferences.getString(context, ShopPreferences.WARMUP_QUERIES, null), ShopPreferences.getInt(context, ShopPreferences.WARMUP_ROUNDS, ListingWarmUp.DEFAULT_ROUNDS), ShopPreferences.getLong(context, ShopPreferences.WARMUP_TIMEOUT, ListingWarmUp.DEFAULT_TIMEOUT));
+		warmUp.start();
+		indexMonitor.addListener(warmUp);
+
 		try {
 			// register the  listing servlet
-			getApplicationServiceSupport().registerServlet("/listings", new JsonListingServlet(getContext()), null);
+			getApplicationServiceSupport().registerServlet("/listings", new JsonListingServlet(context, services, resultCache, facetCache, indexMonitor, uriPathIndex, suggestIndex, productCache, compression, new ListingQueryCoalescer(queryExecutor, metrics), metrics.getJsonListingsMetrics(), metrics.getSuggestMetrics(), slowRequestLog), null);
+
+			// readiness check for load balancers
+			getApplicationServiceSupport().registerServlet("/ready", new ReadinessServlet(warmUp), null);
+
+			// admin view of the slowest queries
+			if ((null != slowRequestLog) && ShopPreferences.getBoolean(context, ShopPreferences.SLOW_LOG_VIEW_ENABLED, false)) {
+				getApplicationServiceSupport().registerServlet("/admin/slowrequests", new SlowRequestServlet(slowRequestLog), null);
+			}
 		} catch (final ServletException e) {
 			throw new CoreException(ShopActivator.getInstance().getStatusUtil().createError(0, e.getMessage(), e));
 		}
@@ -0,0 +1,168 @@
+/*******************************************************************************
+ * Copyright (c) 2010 Gunnar Wagenknecht and others.
+ * All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html.
+ *
+ * Contributors:
+ *     Gunnar Wagenknecht - initial API and implementation
+ *******************************************************************************/
+package net.cloudfree.apps.shop.internal.app;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import net.cloudfree.apps.shop.internal.ShopActivator;
+
+import org.eclipse.gyrex.monitoring.metrics.BaseMetric;
+import org.eclipse.gyrex.monitoring.metrics.MetricSet;
+import org.eclipse.gyrex.monitoring.metrics.ThroughputMetric;
+
+import org.osgi.framework.ServiceRegistration;
+
+/**
+ * The metrics of a shop application instance.
+ * <p>
+ * The metrics are published as a {@link MetricSet} service so that they are
+ * available in the Gyrex monitoring console.
+ * </p>
+ */
+final class ShopMetrics {
+
+	private final String id;
+	private final String applicationId;
+
+	/** result cache lookups (processed = hits, failed = misses) */
+	private final ThroughputMetric resultCacheMetric;
+
+	/** result cache evictions */
+	private final ThroughputMetric resultCacheEvictionMetric;
+
+	/** facet cache lookups (processed = hits, failed = misses) */
+	private final ThroughputMetric facetCacheMetric;
+
+	/** product document cache lookups (processed = hits, failed = misses) */
+	private final ThroughputMetric productCacheMetric;
+
+	/** product document cache evictions */
+	private final ThroughputMetric productCacheEvictionMetric;
+
+	/** listing service and query executor lookups (processed = found, failed = missing) */
+	private final ThroughputMetric serviceLookupMetric;
+
+	/** requests which joined an identical in-flight query */
+	private final ThroughputMetric coalescedQueriesMetric;
+
+	/** requests of the JSON listings servlet */
+	private final EndpointMetrics jsonListingsMetrics;
+
+	/** typeahead suggestion requests of the JSON listings servlet */
+	private final EndpointMetrics suggestMetrics;
+
+	/** requests of the HTML listings servlet */
+	private final EndpointMetrics htmlListingsMetrics;
+
+	private ServiceRegistration registration;
+
+	/**
+	 * Creates a new instance.
+	 *
+	 * @param applicationId
+	 *            the application id
+	 */
+	ShopMetrics(final String applicationId) {
+		this.applicationId = applicationId;
+		id = ShopActivator.SYMBOLIC_NAME + ".metrics." + applicationId;
+		resultCacheMetric = new ThroughputMetric(id + ".resultCache");
+		resultCacheEvictionMetric = new ThroughputMetric(id + ".resultCache.evictions");
+		coalescedQueriesMetric = new ThroughputMetric(id + ".coalescedQueries");
+		facetCacheMetric = new ThroughputMetric(id + ".facetCache");
+		serviceLookupMetric = new ThroughputMetric(id + ".serviceLookups");
+		productCacheMetric = new ThroughputMetric(id + ".productCache");
+		productCacheEvictionMetric = new ThroughputMetric(id + ".productCache.evictions");
+		jsonListingsMetrics = new EndpointMetrics(id + ".listings.json");
+		suggestMetrics = new EndpointMetrics(id + ".listings.suggest");
+		htmlListingsMetrics = new EndpointMetrics(id + ".listings.html");
+	}
+
+	/**
+	 * Counts an event on a throughput metric.
+	 *
+	 * @param metric
+	 *            the metric
+	 */
+	static void count(final ThroughputMetric metric) {
+		metric.requestStarted();
+		metric.requestFinished(0, 0);
+	}
+
+	ThroughputMetric getCoalescedQueriesMetric() {
+		return coalescedQueriesMetric;
+	}
+
+	ThroughputMetric getFacetCacheMetric() {
+		return facetCacheMetric;
+	}
+
+	EndpointMetrics getHtmlListingsMetrics() {
+		return htmlListingsMetrics;
+	}
+
+	EndpointMetrics getJsonListingsMetrics() {
+		return jsonListingsMetrics;
+	}
+
+	ThroughputMetric getProductCacheEvictionMetric() {
+		return productCacheEvictionMetric;
+	}
+
+	ThroughputMetric getProductCacheMetric() {
+		return productCacheMetric;
+	}
+
+	ThroughputMetric getResultCacheEvictionMetric() {
+		return resultCacheEvictionMetric;
+	}
+
+	ThroughputMetric getResultCacheMetric() {
+		return resultCacheMetric;
+	}
+
+	ThroughputMetric getServiceLookupMetric() {
+		return serviceLookupMetric;
+	}
+
+	EndpointMetrics getSuggestMetrics() {
+		return suggestMetrics;
+	}
+
+	/**
+	 * Publishes the metrics.
+	 */
+	synchronized void register() {
+		if (null != registration) {
+			return;
+		}
+		final List<BaseMetric> metrics = new ArrayList<BaseMetric>();
+		Collections.addAll(metrics, resultCacheMetric, resultCacheEvictionMetric, facetCacheMetric, productCacheMetric, productCacheEvictionMetric, coalescedQueriesMetric, serviceLookupMetric);
+		Collections.addAll(metrics, jsonListingsMetrics.getMetrics());
+		Collections.addAll(metrics, suggestMetrics.getMetrics());
+		Collections.addAll(metrics, htmlListingsMetrics.getMetrics());
+		final MetricSet metricSet = new MetricSet(id, "Metrics of shop application " + applicationId, metrics.toArray(new BaseMetric[metrics.size()]));
+		registration = ShopActivator.getInstance().getServiceHelper().registerService(MetricSet.class.getName(), metricSet, "CloudFree.net", "Metrics of the CloudFree shop application.", null, null);
+	}
+
+	/**
+	 * Withdraws the metrics.
+	 */
+	synchronized void unregister() {
+		if (null == registration) {
+			return;
+		}
+		registration.unregister();
+		registration = null;
+	}
+}
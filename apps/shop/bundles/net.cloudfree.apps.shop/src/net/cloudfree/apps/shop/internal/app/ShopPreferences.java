@@ -0,0 +1,199 @@
+/*******************************************************************************
+ * Copyright (c) 2010 Gunnar Wagenknecht and others.
+ * All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html.
+ *
+ * Contributors:
+ *     Gunnar Wagenknecht - initial API and implementation
+ *******************************************************************************/
+package net.cloudfree.apps.shop.internal.app;
+
+import net.cloudfree.apps.shop.internal.ShopActivator;
+
+import org.eclipse.gyrex.context.IRuntimeContext;
+
+/**
+ * Shop application settings stored in the runtime context preferences.
+ * <p>
+ * All lookups fall back to the specified default value if no context is
+ * available (eg. when running outside of an application).
+ * </p>
+ */
+final class ShopPreferences {
+
+	/** the preference qualifier */
+	static final String QUALIFIER = ShopActivator.SYMBOLIC_NAME;
+
+	/** enables gzip/deflate response compression (boolean) */
+	static final String COMPRESSION_ENABLED = "compression.enabled";
+
+	/** compression level 0-9 (int) */
+	static final String COMPRESSION_LEVEL = "compression.level";
+
+	/** minimum response size in bytes for compression (int) */
+	static final String COMPRESSION_MIN_SIZE = "compression.minSize";
+
+	/** maximum number of idle pooled deflaters per encoding (int) */
+	static final String COMPRESSION_POOL_SIZE = "compression.poolSize";
+
+	/** number of listings fetched per index query during an export (int) */
+	static final String EXPORT_PAGE_SIZE = "export.pageSize";
+
+	/** maximum number of cached facet results; zero disables the cache (int) */
+	static final String FACET_CACHE_MAX_ENTRIES = "facetCache.maxEntries";
+
+	/** time-to-live of cached facet results in milliseconds (long) */
+	static final String FACET_CACHE_TTL = "facetCache.ttl";
+
+	/** comma separated facets of the HTML listings, eg. <code>category,price=[* TO 10]|[10 TO *]</code>; changes apply immediately (string) */
+	static final String FACETS = "facets";
+
+	/** prefix of the named field projection profiles, eg. <code>fields.profile.tile</code> (string) */
+	static final String FIELDS_PROFILE_PREFIX = "fields.profile.";
+
+	/** max age of single product responses in seconds; negative disables caching (int) */
+	static final String HTTP_MAX_AGE_PRODUCT = "http.maxAge.product";
+
+	/** max age of search responses in seconds; negative disables caching (int) */
+	static final String HTTP_MAX_AGE_SEARCH = "http.maxAge.search";
+
+	/** maximum number of ids per multi-get request (int) */
+	static final String IDS_MAX_PER_REQUEST = "ids.maxPerRequest";
+
+	/** interval for polling the listing index for commits in milliseconds (long) */
+	static final String INDEX_POLL_INTERVAL = "index.pollInterval";
+
+	/** comma separated currency codes supported in addition to the default currency (string) */
+	static final String PRICE_CURRENCIES = "price.currencies";
+
+	/** default currency code of prices (string) */
+	static final String PRICE_CURRENCY = "price.currency";
+
+	/** default locale for formatting prices (string) */
+	static final String PRICE_LOCALE = "price.locale";
+
+	/** comma separated locales supported for formatting prices; empty for the default locale only (string) */
+	static final String PRICE_LOCALES = "price.locales";
+
+	/** maximum size of all cached product documents in bytes; zero disables the cache (long) */
+	static final String PRODUCT_CACHE_MAX_SIZE = "productCache.maxSize";
+
+	/** stores cached product documents outside of the heap (boolean) */
+	static final String PRODUCT_CACHE_OFF_HEAP = "productCache.offHeap";
+
+	/** number of seconds clients are asked to wait after a rejected query (int) */
+	static final String QUERY_RETRY_AFTER = "query.retryAfter";
+
+	/** maximum number of queries waiting for a query thread (int) */
+	static final String QUERY_QUEUE_SIZE = "query.queueSize";
+
+	/** number of threads executing listing queries (int) */
+	static final String QUERY_THREADS = "query.threads";
+
+	/** deadline for a listing query in milliseconds (long) */
+	static final String QUERY_TIMEOUT = "query.timeout";
+
+	/** maximum number of idle pooled response buffers (int) */
+	static final String RESPONSE_BUFFER_POOL_SIZE = "response.bufferPoolSize";
+
+	/** size of the response buffers in bytes; larger responses are streamed (int) */
+	static final String RESPONSE_BUFFER_SIZE = "response.bufferSize";
+
+	/** maximum number of cached listing results; zero disables the cache (int) */
+	static final String RESULT_CACHE_MAX_ENTRIES = "resultCache.maxEntries";
+
+	/** time-to-live of cached listing results in milliseconds (long) */
+	static final String RESULT_CACHE_TTL = "resultCache.ttl";
+
+	/** maximum start index for offset paging; negative disables the limit (long) */
+	static final String SEARCH_MAX_START_INDEX = "search.maxStartIndex";
+
+	/** capacity of the slow request log buffer (int) */
+	static final String SLOW_LOG_BUFFER_SIZE = "slowLog.bufferSize";
+
+	/** percentage of slow requests written to the slow request log (int) */
+	static final String SLOW_LOG_SAMPLE_PERCENT = "slowLog.samplePercent";
+
+	/** minimum time of a request in the slow request log in milliseconds; negative disables the log (long) */
+	static final String SLOW_LOG_THRESHOLD = "slowLog.threshold";
+
+	/** enables the admin view of the slowest query shapes (boolean) */
+	static final String SLOW_LOG_VIEW_ENABLED = "slowLog.viewEnabled";
+
+	/** number of listings read per index query while building the suggest index (int) */
+	static final String SUGGEST_BATCH_SIZE = "suggest.batchSize";
+
+	/** enables the in-memory suggest index and the typeahead endpoint (boolean) */
+	static final String SUGGEST_ENABLED = "suggest.enabled";
+
+	/** comma separated listing fields providing suggestions (string) */
+	static final String SUGGEST_FIELDS = "suggest.fields";
+
+	/** index field with the modification time of listings for incremental suggest index updates (string) */
+	static final String SUGGEST_MODIFIED_FIELD = "suggest.modifiedField";
+
+	/** minimum time between full suggest index rebuilds in milliseconds (long) */
+	static final String SUGGEST_REBUILD_INTERVAL = "suggest.rebuildInterval";
+
+	/** numeric index field weighing listings in suggestions, eg. a popularity; empty weighs all equally (string) */
+	static final String SUGGEST_WEIGHT_FIELD = "suggest.weightField";
+
+	/** number of listings read per index query while building the URI path index (int) */
+	static final String URIPATH_INDEX_BATCH_SIZE = "uripathIndex.batchSize";
+
+	/** enables the in-memory URI path index (boolean) */
+	static final String URIPATH_INDEX_ENABLED = "uripathIndex.enabled";
+
+	/** index field with the modification time of listings for incremental URI path index updates (string) */
+	static final String URIPATH_INDEX_MODIFIED_FIELD = "uripathIndex.modifiedField";
+
+	/** minimum time between full URI path index rebuilds in milliseconds (long) */
+	static final String URIPATH_INDEX_REBUILD_INTERVAL = "uripathIndex.rebuildInterval";
+
+	/** maximum number of variations returned per product (int) */
+	static final String VARIATIONS_MAX_PER_PRODUCT = "variations.maxPerProduct";
+
+	/** whitespace separated search query strings or product paths replayed before the application is ready (string) */
+	static final String WARMUP_QUERIES = "warmup.queries";
+
+	/** number of times the warm-up queries are replayed (int) */
+	static final String WARMUP_ROUNDS = "warmup.rounds";
+
+	/** maximum duration of the warm-up in milliseconds (long) */
+	static final String WARMUP_TIMEOUT = "warmup.timeout";
+
+	static boolean getBoolean(final IRuntimeContext context, final String key, final boolean defaultValue) {
+		if (null == context) {
+			return defaultValue;
+		}
+		return context.getPreferences().getBoolean(QUALIFIER, key, defaultValue);
+	}
+
+	static int getInt(final IRuntimeContext context, final String key, final int defaultValue) {
+		if (null == context) {
+			return defaultValue;
+		}
+		return context.getPreferences().getInt(QUALIFIER, key, defaultValue);
+	}
+
+	static long getLong(final IRuntimeContext context, final String key, final long defaultValue) {
+		if (null == context) {
+			return defaultValue;
+		}
+		return context.getPreferences().getLong(QUALIFIER, key, defaultValue);
+	}
+
+	static String getString(final IRuntimeContext context, final String key, final String defaultValue) {
+		if (null == context) {
+			return defaultValue;
+		}
+		return context.getPreferences().get(QUALIFIER, key, defaultValue);
+	}
+
+	private ShopPreferences() {
+		// empty
+	}
+}
@@ -0,0 +1,369 @@
+/*******************************************************************************
+ * Copyright (c) 2010 Gunnar Wagenknecht and others.
+ * All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html.
+ *
+ * Contributors:
+ *     Gunnar Wagenknecht - initial API and implementation
+ *******************************************************************************/
+package net.cloudfree.apps.shop.internal.app;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.apache.commons.lang.StringUtils;
+
+/**
+ * A sampled log of slow listing requests.
+ * <p>
+ * Requests exceeding a threshold are recorded with their normalized query,
+ * the number of matching listings, the timing breakdown, the response size
+ * and some client hints. Request threads only put entries into a bounded
+ * lock-free ring buffer (dropping them if it is full). A background thread
+ * appends the entries to a log file and aggregates them by query shape (the
+ * endpoint and the query without values, paging and cursor) for a top-N view
+ * of the slowest queries.
+ * </p>
+ */
+final class SlowRequestLog {
+
+	/**
+	 * A logged request.
+	 */
+	static final class Entry {
+		final long timestamp = System.currentTimeMillis();
+		final String endpoint;
+		final String query;
+		final String shape;
+		final long numFound;
+		final long queryTime;
+		final long renderingTime;
+		final long totalTime;
+		final long bytes;
+		final int status;
+		final String userAgent;
+		final String acceptLanguage;
+		final String acceptEncoding;
+
+		Entry(final String endpoint, final HttpServletRequest req, final RequestTrace trace, final long totalTime, final int status, final long bytes) {
+			this.endpoint = endpoint;
+			query = null != trace.query ? trace.query : req.getQueryString();
+			shape = null != trace.shape ? trace.shape : "-";
+			numFound = trace.numFound;
+			queryTime = trace.queryTime;
+			renderingTime = trace.renderingTime >= 0 ? TimeUnit.NANOSECONDS.toMillis(trace.renderingTime) : -1;
+			this.totalTime = totalTime;
+			this.bytes = bytes;
+			this.status = status;
+			userAgent = req.getHeader("User-Agent");
+			acceptLanguage = req.getHeader("Accept-Language");
+			acceptEncoding = req.getHeader("Accept-Encoding");
+		}
+	}
+
+	/**
+	 * The aggregated entries of a query shape.
+	 */
+	static final class Shape {
+		final String endpoint;
+		final String shape;
+		long count;
+		long totalTime;
+		Entry slowest;
+
+		Shape(final String endpoint, final String shape) {
+			this.endpoint = endpoint;
+			this.shape = shape;
+		}
+	}
+
+	/** default threshold in milliseconds */
+	static final long DEFAULT_THRESHOLD = 500L;
+
+	/** default percentage of slow requests logged */
+	static final int DEFAULT_SAMPLE_PERCENT = 100;
+
+	/** default capacity of the ring buffer */
+	static final int DEFAULT_BUFFER_SIZE = 1024;
+
+	/** maximum size of the log file before it is rotated */
+	private static final long MAX_FILE_SIZE = 10L * 1024 * 1024;
+
+	/** maximum number of aggregated query shapes */
+	private static final int MAX_SHAPES = 10000;
+
+	/** interval for draining the ring buffer in milliseconds */
+	private static final long DRAIN_INTERVAL = 500L;
+
+	private static final Comparator<Shape> SLOWEST_FIRST = new Comparator<Shape>() {
+		@Override
+		public int compare(final Shape s1, final Shape s2) {
+			final long t1 = s1.slowest.totalTime;
+			final long t2 = s2.slowest.totalTime;
+			return t1 > t2 ? -1 : (t1 < t2 ? 1 : 0);
+		}
+	};
+
+	private static String clean(final String value) {
+		// keep one entry per line
+		return null != value ? StringUtils.replaceChars(value, "\t\r\n", "   ") : "-";
+	}
+
+	private final File file;
+	private final long threshold;
+	private final int samplePercent;
+	private final AtomicReferenceArray<Entry> buffer;
+	private final AtomicLong writeSequence = new AtomicLong();
+	private final AtomicLong slowRequests = new AtomicLong();
+	private final AtomicLong dropped = new AtomicLong();
+	private final Map<String, Shape> shapes = new HashMap<String, Shape>();
+
+	private int readIndex;
+	private Writer writer;
+	private ScheduledExecutorService executor;
+
+	/**
+	 * Creates a new instance.
+	 *
+	 * @param file
+	 *            the log file
+	 * @param threshold
+	 *            the minimum request time in milliseconds
+	 * @param samplePercent
+	 *            the percentage of slow requests to log (1-100)
+	 * @param bufferSize
+	 *            the capacity of the ring buffer
+	 */
+	SlowRequestLog(final File file, final long threshold, final int samplePercent, final int bufferSize) {
+		this.file = file;
+		this.threshold = threshold;
+		this.samplePercent = Math.max(1, Math.min(100, samplePercent));
+		buffer = new AtomicReferenceArray<Entry>(Math.max(16, bufferSize));
+	}
+
+	private void aggregate(final Entry entry) {
+		final String key = entry.endpoint + "|" + entry.shape;
+		synchronized (shapes) {
+			Shape shape = shapes.get(key);
+			if (null == shape) {
+				if (shapes.size() >= MAX_SHAPES) {
+					trimShapes();
+				}
+				shape = new Shape(entry.endpoint, entry.shape);
+				shapes.put(key, shape);
+			}
+			shape.count++;
+			shape.totalTime += entry.totalTime;
+			if ((null == shape.slowest) || (entry.totalTime >= shape.slowest.totalTime)) {
+				shape.slowest = entry;
+			}
+		}
+	}
+
+	/**
+	 * Writes and aggregates the buffered entries.
+	 */
+	private void drain() {
+		final StringBuilder line = new StringBuilder(256);
+		final SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
+		try {
+			for (int i = 0; i < buffer.length(); i++) {
+				final Entry entry = buffer.getAndSet(readIndex, null);
+				readIndex = (readIndex + 1) % buffer.length();
+				if (null == entry) {
+					continue;
+				}
+				aggregate(entry);
+
+				line.setLength(0);
+				line.append(dateFormat.format(new Date(entry.timestamp))).append('\t');
+				line.append(entry.endpoint).append('\t');
+				line.append(entry.status).append('\t');
+				line.append("total=").append(entry.totalTime).append("ms\t");
+				line.append("query=").append(entry.queryTime).append("ms\t");
+				line.append("rendering=").append(entry.renderingTime).append("ms\t");
+				line.append("found=").append(entry.numFound).append('\t');
+				line.append("bytes=").append(entry.bytes).append('\t');
+				line.append(clean(entry.query)).append('\t');
+				line.append(clean(entry.userAgent)).append('\t');
+				line.append(clean(entry.acceptLanguage)).append('\t');
+				line.append(clean(entry.acceptEncoding)).append('\n');
+				getWriter().write(line.toString());
+			}
+			if (null != writer) {
+				writer.flush();
+			}
+		} catch (final IOException e) {
+			// drop the file; retried with the next entry
+			closeWriter();
+		}
+	}
+
+	private void closeWriter() {
+		if (null == writer) {
+			return;
+		}
+		try {
+			writer.close();
+		} catch (final IOException e) {
+			// ignore
+		}
+		writer = null;
+	}
+
+	/**
+	 * Returns the number of slow requests dropped because the ring buffer was
+	 * full.
+	 *
+	 * @return the number of dropped requests
+	 */
+	long getDropped() {
+		return dropped.get();
+	}
+
+	/**
+	 * Returns the query shapes with the slowest requests.
+	 *
+	 * @param n
+	 *            the maximum number of shapes
+	 * @return the slowest shapes (slowest first)
+	 */
+	List<Shape> getSlowestShapes(final int n) {
+		final List<Shape> slowest;
+		synchronized (shapes) {
+			slowest = new ArrayList<Shape>(shapes.size());
+			for (final Shape shape : shapes.values()) {
+				final Shape copy = new Shape(shape.endpoint, shape.shape);
+				copy.count = shape.count;
+				copy.totalTime = shape.totalTime;
+				copy.slowest = shape.slowest;
+				slowest.add(copy);
+			}
+		}
+		Collections.sort(slowest, SLOWEST_FIRST);
+		return slowest.size() > n ? slowest.subList(0, n) : slowest;
+	}
+
+	/**
+	 * Returns the threshold.
+	 *
+	 * @return the minimum request time in milliseconds
+	 */
+	long getThreshold() {
+		return threshold;
+	}
+
+	private Writer getWriter() throws IOException {
+		if ((null != writer) && (file.length() > MAX_FILE_SIZE)) {
+			closeWriter();
+			final File rotated = new File(file.getPath() + ".1");
+			rotated.delete();
+			file.renameTo(rotated);
+		}
+		if (null == writer) {
+			writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true), "UTF-8"));
+		}
+		return writer;
+	}
+
+	/**
+	 * Logs a request if it was slow (and sampled).
+	 * <p>
+	 * Never blocks.
+	 * </p>
+	 *
+	 * @param endpoint
+	 *            the endpoint name
+	 * @param req
+	 *            the request
+	 * @param trace
+	 *            the trace of the request
+	 * @param status
+	 *            the response status
+	 * @param bytes
+	 *            the number of bytes written
+	 */
+	void log(final String endpoint, final HttpServletRequest req, final RequestTrace trace, final int status, final long bytes) {
+		final long totalTime = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - trace.start);
+		// exactly samplePercent out of every 100 slow requests
+		if ((totalTime < threshold) || ((slowRequests.getAndIncrement() % 100) >= samplePercent)) {
+			return;
+		}
+		final int index = (int) (writeSequence.getAndIncrement() % buffer.length());
+		if (!buffer.compareAndSet(index, null, new Entry(endpoint, req, trace, totalTime, status, bytes))) {
+			dropped.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Starts writing the log.
+	 */
+	synchronized void start() {
+		if (null != executor) {
+			return;
+		}
+		executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(final Runnable r) {
+				final Thread thread = new Thread(r, "CloudFree Slow Request Log");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		executor.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				drain();
+			}
+		}, DRAIN_INTERVAL, DRAIN_INTERVAL, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Stops writing the log.
+	 */
+	synchronized void stop() {
+		if (null == executor) {
+			return;
+		}
+		executor.shutdown();
+		try {
+			executor.awaitTermination(DRAIN_INTERVAL * 2, TimeUnit.MILLISECONDS);
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		executor = null;
+		closeWriter();
+	}
+
+	private void trimShapes() {
+		// keep the slower half
+		final List<Shape> all = new ArrayList<Shape>(shapes.values());
+		Collections.sort(all, SLOWEST_FIRST);
+		for (final Shape shape : all.subList(all.size() / 2, all.size())) {
+			shapes.remove(shape.endpoint + "|" + shape.shape);
+		}
+	}
+}
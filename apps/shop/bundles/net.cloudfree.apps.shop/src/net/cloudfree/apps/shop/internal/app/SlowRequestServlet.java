@@ -0,0 +1,103 @@
+/*******************************************************************************
+ * Copyright (c) 2010 Gunnar Wagenknecht and others.
+ * All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html.
+ *
+ * Contributors:
+ *     Gunnar Wagenknecht - initial API and implementation
+ *******************************************************************************/
+package net.cloudfree.apps.shop.internal.app;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import net.cloudfree.apps.shop.internal.app.SlowRequestLog.Entry;
+import net.cloudfree.apps.shop.internal.app.SlowRequestLog.Shape;
+
+import org.codehaus.jackson.JsonGenerator;
+
+import org.apache.commons.lang.math.NumberUtils;
+
+/**
+ * Admin view of the query shapes with the slowest requests.
+ * <p>
+ * The number of shapes is passed as parameter <code>n</code> (default 20, at
+ * most 100).
+ * </p>
+ */
+public class SlowRequestServlet extends HttpServlet {
+
+	/** serialVersionUID */
+	private static final long serialVersionUID = 1L;
+
+	private final SlowRequestLog slowRequestLog;
+
+	/**
+	 * Creates a new instance.
+	 *
+	 * @param slowRequestLog
+	 */
+	public SlowRequestServlet(final SlowRequestLog slowRequestLog) {
+		this.slowRequestLog = slowRequestLog;
+	}
+
+	@Override
+	protected void doGet(final HttpServletRequest req, final HttpServletResponse resp) throws ServletException, IOException {
+		final int n = Math.max(1, Math.min(100, NumberUtils.toInt(req.getParameter("n"), 20)));
+
+		resp.setContentType("application/json");
+		resp.setCharacterEncoding("UTF-8");
+		resp.setHeader("Cache-Control", "no-cache");
+
+		final PrintWriter writer = resp.getWriter();
+		final JsonGenerator json = ListingJsonWriter.createGenerator(writer, req.getParameter("text") != null);
+		json.writeStartObject();
+		json.writeFieldName("threshold");
+		json.writeNumber(slowRequestLog.getThreshold());
+		json.writeFieldName("dropped");
+		json.writeNumber(slowRequestLog.getDropped());
+		json.writeFieldName("shapes");
+		json.writeStartArray();
+		for (final Shape shape : slowRequestLog.getSlowestShapes(n)) {
+			final Entry slowest = shape.slowest;
+			json.writeStartObject();
+			json.writeFieldName("endpoint");
+			json.writeString(shape.endpoint);
+			json.writeFieldName("shape");
+			json.writeString(shape.shape);
+			json.writeFieldName("query");
+			json.writeString(slowest.query);
+			json.writeFieldName("count");
+			json.writeNumber(shape.count);
+			json.writeFieldName("avgTime");
+			json.writeNumber(shape.totalTime / shape.count);
+			json.writeFieldName("maxTime");
+			json.writeNumber(slowest.totalTime);
+			json.writeFieldName("queryTime");
+			json.writeNumber(slowest.queryTime);
+			json.writeFieldName("renderingTime");
+			json.writeNumber(slowest.renderingTime);
+			json.writeFieldName("numFound");
+			json.writeNumber(slowest.numFound);
+			json.writeFieldName("bytes");
+			json.writeNumber(slowest.bytes);
+			json.writeFieldName("status");
+			json.writeNumber(slowest.status);
+			json.writeFieldName("timestamp");
+			json.writeNumber(slowest.timestamp);
+			json.writeEndObject();
+		}
+		json.writeEndArray();
+		json.writeEndObject();
+		json.close();
+		writer.close();
+	}
+}
@@ -0,0 +1,846 @@
+/*******************************************************************************
+ * Copyright (c) 2010 Gunnar Wagenknecht and others.
+ * All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html.
+ *
+ * Contributors:
+ *     Gunnar Wagenknecht - initial API and implementation
+ *******************************************************************************/
+package net.cloudfree.apps.shop.internal.app;
+
+import java.io.UnsupportedEncodingException;
+import java.text.Normalizer;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import net.cloudfree.apps.shop.internal.app.ListingIndexMonitor.IndexCommitListener;
+import net.cloudfree.apps.shop.internal.app.ListingScanner.ListingHandler;
+
+import org.eclipse.gyrex.cds.model.documents.Document;
+import org.eclipse.gyrex.cds.model.solr.ISolrQueryExecutor;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.commons.lang.math.NumberUtils;
+import org.apache.solr.common.SolrDocument;
+
+/**
+ * An in-memory prefix index of listing titles, names, categories and tags for
+ * typeahead suggestions.
+ * <p>
+ * The index is a snapshot of sorted, normalized (lower case, no accents, single
+ * spaces) UTF-8 keys stored in a shared byte array. Every suggestion text is
+ * reachable by its full key and by the keys starting at its next
+ * {@value #MAX_WORD_KEYS} words (eg. "blue shirt" and "shirt" for
+ * "Cool Blue Shirt"). All keys with a prefix form a range found by binary
+ * search; a max tree over the weights of the keys returns the heaviest entries
+ * of the range without visiting all of them. A lookup therefore only costs
+ * <code>O(log n + count * log n)</code> and never touches the index.
+ * </p>
+ * <p>
+ * The weight of a text is the sum of the weights of all listings containing
+ * it. A listing weighs the value of the weight field (eg. a popularity) or
+ * <code>1</code>, thus without a weight field frequent categories and tags
+ * come first.
+ * </p>
+ * <p>
+ * Memory: 12 bytes (key offset, text reference, max tree node) + 1 byte
+ * (length) + the UTF-8 length of the key per entry and 8 bytes (text offset,
+ * weight) + 1 byte (length) + the UTF-8 length of the text per text.
+ * {@link #getMemorySize()} reports the actual size of the current snapshot.
+ * With texts of 20-30 characters (3-4 keys per text) this is about 35 MB per
+ * million keys.
+ * </p>
+ * <p>
+ * Building needs more: the distinct texts are collected in a map (about 55 MB
+ * per million keys) before the keys are appended to one byte array and sorted
+ * in place by their offsets, so the builder, the arrays of the new snapshot and
+ * the copies made while they grow are held at the same time. The peak is about
+ * 130 MB per million keys (1 million texts with 3.5 million keys build within a
+ * 500 MB heap) on top of the current snapshot, which is replaced only when the
+ * new one is complete.
+ * </p>
+ * <p>
+ * Between rebuilds, listings modified since the last refresh (if a
+ * modification time field is configured) are read on every index commit and
+ * kept in a small second snapshot which is searched as well. A listing
+ * modified several times adds its weight to it only once. The snapshot is
+ * rebuilt in the background once the second one grows too large or on commits
+ * at most once per rebuild interval, which also drops texts of deleted
+ * listings.
+ * </p>
+ */
+final class SuggestIndex implements IndexCommitListener {
+
+	/**
+	 * Collects the candidates of a new snapshot.
+	 */
+	static final class Builder {
+
+		/**
+		 * A text and its accumulated weight.
+		 */
+		private static final class Candidate {
+			final String text;
+			long weight;
+
+			Candidate(final String text, final long weight) {
+				this.text = text;
+				this.weight = weight;
+			}
+		}
+
+		/**
+		 * Compares the keys of two entries and, if equal, their texts.
+		 */
+		private static int compare(final byte[] keys, final int[] keyOffsets, final int[] entryTexts, final int a, final int b) {
+			final int offsetA = keyOffsets[a];
+			final int offsetB = keyOffsets[b];
+			final int result = Snapshot.compare(keys, offsetA + 1, keys[offsetA] & 0xff, keys, offsetB + 1, keys[offsetB] & 0xff);
+			return result != 0 ? result : entryTexts[a] - entryTexts[b];
+		}
+
+		/**
+		 * Sorts the first <code>count</code> entries in place (heap sort, no
+		 * additional memory).
+		 */
+		private static void sort(final byte[] keys, final int[] keyOffsets, final int[] entryTexts, final int count) {
+			for (int i = (count >>> 1) - 1; i >= 0; i--) {
+				siftDown(keys, keyOffsets, entryTexts, i, count);
+			}
+			for (int end = count - 1; end > 0; end--) {
+				swap(keyOffsets, entryTexts, 0, end);
+				siftDown(keys, keyOffsets, entryTexts, 0, end);
+			}
+		}
+
+		private static void siftDown(final byte[] keys, final int[] keyOffsets, final int[] entryTexts, int i, final int count) {
+			while (true) {
+				int child = (2 * i) + 1;
+				if (child >= count) {
+					return;
+				}
+				if (((child + 1) < count) && (compare(keys, keyOffsets, entryTexts, child + 1, child) > 0)) {
+					child++;
+				}
+				if (compare(keys, keyOffsets, entryTexts, i, child) >= 0) {
+					return;
+				}
+				swap(keyOffsets, entryTexts, i, child);
+				i = child;
+			}
+		}
+
+		private static void swap(final int[] keyOffsets, final int[] entryTexts, final int a, final int b) {
+			final int offset = keyOffsets[a];
+			keyOffsets[a] = keyOffsets[b];
+			keyOffsets[b] = offset;
+			final int text = entryTexts[a];
+			entryTexts[a] = entryTexts[b];
+			entryTexts[b] = text;
+		}
+
+		/** candidates by normalized text; the first spelling wins */
+		private final Map<String, Candidate> candidates = new HashMap<String, Candidate>();
+
+		/**
+		 * Adds a text.
+		 *
+		 * @param text
+		 *            the text
+		 * @param weight
+		 *            the weight to add to the text
+		 */
+		void add(final String text, final long weight) {
+			final String display = StringUtils.abbreviate(StringUtils.join(StringUtils.split(text), " "), MAX_TEXT_LENGTH);
+			final String key = normalize(display).trim();
+			if (key.length() == 0) {
+				return;
+			}
+			final Candidate candidate = candidates.get(key);
+			if (null == candidate) {
+				candidates.put(key, new Candidate(display, weight));
+			} else {
+				candidate.weight += weight;
+			}
+		}
+
+		Snapshot build() throws UnsupportedEncodingException {
+			// texts
+			final int textCount = candidates.size();
+			final int[] textOffsets = new int[textCount];
+			final int[] weights = new int[textCount];
+			final ByteArray texts = new ByteArray(textCount * 16);
+
+			// keys (appended to one array and sorted by their offsets)
+			final ByteArray keyBytes = new ByteArray(textCount * 32);
+			int[] keyOffsets = new int[textCount * 2];
+			int[] entryTexts = new int[textCount * 2];
+			int keyCount = 0;
+			int text = 0;
+			for (final Map.Entry<String, Candidate> entry : candidates.entrySet()) {
+				final Candidate candidate = entry.getValue();
+				final byte[] textBytes = candidate.text.getBytes("UTF-8");
+				textOffsets[text] = texts.add(textBytes, 0, textBytes.length);
+				weights[text] = (int) Math.min(Integer.MAX_VALUE, candidate.weight);
+
+				// the full key and the keys starting at the next words (a space is a single byte in UTF-8)
+				final byte[] key = entry.getKey().getBytes("UTF-8");
+				for (int i = 0, start = 0; (i <= MAX_WORD_KEYS) && (start < key.length); i++) {
+					if (keyCount == keyOffsets.length) {
+						keyOffsets = Arrays.copyOf(keyOffsets, keyCount + (keyCount >> 1) + 16);
+						entryTexts = Arrays.copyOf(entryTexts, keyOffsets.length);
+					}
+					keyOffsets[keyCount] = keyBytes.add(key, start, key.length - start);
+					entryTexts[keyCount++] = text;
+					while ((start < key.length) && (key[start++] != ' ')) {
+						// skip word
+					}
+				}
+				text++;
+			}
+			final byte[] keys = keyBytes.toByteArray();
+			sort(keys, keyOffsets, entryTexts, keyCount);
+			return new Snapshot(keys, Arrays.copyOf(keyOffsets, keyCount), Arrays.copyOf(entryTexts, keyCount), texts.toByteArray(), textOffsets, weights);
+		}
+
+		int size() {
+			return candidates.size();
+		}
+	}
+
+	/**
+	 * A growing byte array of length-prefixed values.
+	 */
+	private static final class ByteArray {
+		private byte[] bytes;
+		private int length;
+
+		ByteArray(final int capacity) {
+			bytes = new byte[Math.max(1024, capacity)];
+		}
+
+		int add(final byte[] value, final int offset, final int count) {
+			final int valueLength = Math.min(255, count);
+			if ((length + 1 + valueLength) > bytes.length) {
+				bytes = Arrays.copyOf(bytes, Math.max(length + 1 + valueLength, bytes.length + (bytes.length >> 1)));
+			}
+			final int start = length;
+			bytes[length++] = (byte) valueLength;
+			System.arraycopy(value, offset, bytes, length, valueLength);
+			length += valueLength;
+			return start;
+		}
+
+		byte[] toByteArray() {
+			return Arrays.copyOf(bytes, length);
+		}
+	}
+
+	/**
+	 * The immutable, sorted snapshot.
+	 */
+	static final class Snapshot {
+
+		/**
+		 * A key range and the heaviest entry in it.
+		 */
+		private static final class Range implements Comparable<Range> {
+			final int from;
+			final int to;
+			final int best;
+			final int weight;
+
+			Range(final int from, final int to, final int best, final int weight) {
+				this.from = from;
+				this.to = to;
+				this.best = best;
+				this.weight = weight;
+			}
+
+			@Override
+			public int compareTo(final Range other) {
+				if (weight != other.weight) {
+					return weight > other.weight ? -1 : 1;
+				}
+				return best < other.best ? -1 : (best == other.best ? 0 : 1);
+			}
+		}
+
+		/**
+		 * Compares two UTF-8 strings by their unsigned bytes (ie. by code
+		 * points).
+		 *
+		 * @return a negative number, zero or a positive number if the first
+		 *         string is before, equal to or after the second
+		 */
+		static int compare(final byte[] bytes, final int offset, final int length, final byte[] other, final int otherOffset, final int otherLength) {
+			final int common = Math.min(length, otherLength);
+			for (int i = 0; i < common; i++) {
+				final int a = bytes[offset + i] & 0xff;
+				final int b = other[otherOffset + i] & 0xff;
+				if (a != b) {
+					return a - b;
+				}
+			}
+			return length < otherLength ? -1 : (length > otherLength ? 1 : 0);
+		}
+
+		private final byte[] keys;
+		private final int[] keyOffsets;
+		private final int[] entryTexts;
+		private final byte[] texts;
+		private final int[] textOffsets;
+		private final int[] weights;
+
+		/** max tree; node i > 0 holds the heaviest entry below it, leaves are implicit */
+		private final int[] tree;
+
+		Snapshot(final byte[] keys, final int[] keyOffsets, final int[] entryTexts, final byte[] texts, final int[] textOffsets, final int[] weights) {
+			this.keys = keys;
+			this.keyOffsets = keyOffsets;
+			this.entryTexts = entryTexts;
+			this.texts = texts;
+			this.textOffsets = textOffsets;
+			this.weights = weights;
+			final int n = keyOffsets.length;
+			tree = new int[n];
+			for (int i = n - 1; i > 0; i--) {
+				tree[i] = heavier(node(2 * i), node((2 * i) + 1));
+			}
+		}
+
+		/**
+		 * Returns the index of the first entry whose key does not sort before
+		 * the prefix (<code>inclusive</code>) or neither sorts before nor
+		 * starts with it.
+		 */
+		private int find(final byte[] prefix, final boolean inclusive) {
+			int low = 0;
+			int high = keyOffsets.length;
+			while (low < high) {
+				final int mid = (low + high) >>> 1;
+				final int offset = keyOffsets[mid];
+				final int result = compare(keys, offset + 1, keys[offset] & 0xff, prefix, 0, prefix.length);
+				if ((result < 0) || (!inclusive && startsWith(mid, prefix))) {
+					low = mid + 1;
+				} else {
+					high = mid;
+				}
+			}
+			return low;
+		}
+
+		/**
+		 * Returns the memory used by the snapshot in bytes (without object
+		 * headers).
+		 */
+		long getMemorySize() {
+			return keys.length + (4L * keyOffsets.length) + (4L * entryTexts.length) + (4L * tree.length) + texts.length + (4L * textOffsets.length) + (4L * weights.length);
+		}
+
+		String getText(final int text) {
+			final int offset = textOffsets[text];
+			try {
+				return new String(texts, offset + 1, texts[offset] & 0xff, "UTF-8");
+			} catch (final UnsupportedEncodingException e) {
+				throw new IllegalStateException("UTF-8 not available", e);
+			}
+		}
+
+		private int heavier(final int a, final int b) {
+			final int weightA = weights[entryTexts[a]];
+			final int weightB = weights[entryTexts[b]];
+			return (weightA > weightB) || ((weightA == weightB) && (a < b)) ? a : b;
+		}
+
+		/**
+		 * Returns the heaviest entry in the range.
+		 */
+		private int max(int from, int to) {
+			int best = from;
+			final int n = keyOffsets.length;
+			for (from += n, to += n; from < to; from >>= 1, to >>= 1) {
+				if ((from & 1) == 1) {
+					best = heavier(best, node(from++));
+				}
+				if ((to & 1) == 1) {
+					best = heavier(best, node(--to));
+				}
+			}
+			return best;
+		}
+
+		private int node(final int node) {
+			final int n = keyOffsets.length;
+			return node >= n ? node - n : tree[node];
+		}
+
+		int size() {
+			return keyOffsets.length;
+		}
+
+		private boolean startsWith(final int entry, final byte[] prefix) {
+			final int offset = keyOffsets[entry];
+			final int length = keys[offset] & 0xff;
+			return (length >= prefix.length) && (compare(keys, offset + 1, prefix.length, prefix, 0, prefix.length) == 0);
+		}
+
+		/**
+		 * Collects the heaviest texts with keys starting with a prefix.
+		 *
+		 * @param prefix
+		 *            the normalized prefix
+		 * @param count
+		 *            the maximum number of texts
+		 * @param texts
+		 *            the list to add the text indexes to (in order of
+		 *            descending weight)
+		 */
+		void suggest(final byte[] prefix, final int count, final List<Integer> texts) {
+			final int from = find(prefix, true);
+			final int to = find(prefix, false);
+			if (from >= to) {
+				return;
+			}
+			final PriorityQueue<Range> ranges = new PriorityQueue<Range>();
+			int best = max(from, to);
+			ranges.add(new Range(from, to, best, weights[entryTexts[best]]));
+			while (!ranges.isEmpty() && (texts.size() < count)) {
+				final Range range = ranges.poll();
+				final Integer text = Integer.valueOf(entryTexts[range.best]);
+				if (!texts.contains(text)) {
+					// a text may be reached by several keys
+					texts.add(text);
+				}
+				if (range.from < range.best) {
+					best = max(range.from, range.best);
+					ranges.add(new Range(range.from, range.best, best, weights[entryTexts[best]]));
+				}
+				if ((range.best + 1) < range.to) {
+					best = max(range.best + 1, range.to);
+					ranges.add(new Range(range.best + 1, range.to, best, weights[entryTexts[best]]));
+				}
+			}
+		}
+
+		int getWeight(final int text) {
+			return weights[text];
+		}
+	}
+
+	/**
+	 * A suggestion.
+	 */
+	static final class Suggestion {
+		final String text;
+		final int weight;
+
+		Suggestion(final String text, final int weight) {
+			this.text = text;
+			this.weight = weight;
+		}
+	}
+
+	/** default number of listings read per index query while building */
+	static final int DEFAULT_BATCH_SIZE = 5000;
+
+	/** default listing fields providing suggestions */
+	static final String DEFAULT_FIELDS = Document.TITLE + "," + Document.NAME + ",category,tags";
+
+	/** default minimum time between full rebuilds in milliseconds */
+	static final long DEFAULT_REBUILD_INTERVAL = 600000L;
+
+	/** maximum number of suggestions per lookup */
+	static final int MAX_COUNT = 20;
+
+	/** maximum length of a suggestion text (longer texts are abbreviated) */
+	static final int MAX_TEXT_LENGTH = 80;
+
+	/** maximum number of additional keys starting at later words of a text */
+	static final int MAX_WORD_KEYS = 4;
+
+	private static boolean isAscii(final String text) {
+		for (int i = 0; i < text.length(); i++) {
+			if (text.charAt(i) >= 0x80) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Normalizes a text or prefix: letters and digits in lower case without
+	 * accents, everything else collapsed into single spaces.
+	 * <p>
+	 * A trailing separator is kept (as a space) so that a prefix ending with
+	 * a complete word does not match longer words.
+	 * </p>
+	 *
+	 * @param text
+	 *            the text
+	 * @return the normalized text
+	 */
+	static String normalize(final String text) {
+		final String decomposed = isAscii(text) ? text : Normalizer.normalize(text, Normalizer.Form.NFD);
+		final StringBuilder normalized = new StringBuilder(decomposed.length());
+		boolean separator = false;
+		for (int i = 0; i < decomposed.length(); i++) {
+			final char c = decomposed.charAt(i);
+			if (Character.getType(c) == Character.NON_SPACING_MARK) {
+				continue;
+			}
+			if (!Character.isLetterOrDigit(c)) {
+				separator = true;
+				continue;
+			}
+			if (separator && (normalized.length() > 0)) {
+				normalized.append(' ');
+			}
+			separator = false;
+			normalized.append(Character.toLowerCase(c));
+		}
+		if (separator && (normalized.length() > 0)) {
+			normalized.append(' ');
+		}
+		return normalized.toString();
+	}
+
+	private final ListingServices services;
+	private final String[] fields;
+	private final String weightField;
+	private final int batchSize;
+	private final long rebuildInterval;
+	private final String modifiedField;
+	private final AtomicBoolean refreshPending = new AtomicBoolean();
+
+	/** modified listings since the last rebuild (only accessed by the executor) */
+	private Builder modifications;
+
+	/** ids of the listings whose weight has been added to the modifications */
+	private Set<String> modifiedListings;
+
+	private volatile Snapshot snapshot;
+	private volatile Snapshot modified;
+	private volatile long lastRebuild;
+	private volatile long lastRefresh;
+	private volatile ExecutorService executor;
+
+	/**
+	 * Creates a new instance.
+	 *
+	 * @param services
+	 *            the services providing the index
+	 * @param fields
+	 *            comma separated names of the listing fields providing
+	 *            suggestions (maybe <code>null</code> for the default)
+	 * @param weightField
+	 *            the numeric index field with the weight of a listing (maybe
+	 *            <code>null</code> to weigh all listings equally)
+	 * @param batchSize
+	 *            the number of listings read per index query
+	 * @param rebuildInterval
+	 *            the minimum time between full rebuilds in milliseconds
+	 * @param modifiedField
+	 *            the index field holding the modification time of a listing
+	 *            (maybe <code>null</code> if there is none)
+	 */
+	SuggestIndex(final ListingServices services, final String fields, final String weightField, final int batchSize, final long rebuildInterval, final String modifiedField) {
+		this.services = services;
+		this.fields = StringUtils.split(StringUtils.isNotBlank(fields) ? fields : DEFAULT_FIELDS, ", ");
+		this.weightField = StringUtils.trimToNull(weightField);
+		this.batchSize = Math.max(100, batchSize);
+		this.rebuildInterval = rebuildInterval;
+		this.modifiedField = StringUtils.trimToNull(modifiedField);
+	}
+
+	/**
+	 * Builds a new snapshot of the whole index.
+	 */
+	void build() throws InterruptedException, UnsupportedEncodingException {
+		final ISolrQueryExecutor queryExecutor = services.findQueryExecutor();
+		if (null == queryExecutor) {
+			return;
+		}
+		final long start = System.currentTimeMillis();
+		final Builder builder = new Builder();
+		scan(queryExecutor, null, builder, null);
+		final Snapshot built = builder.build();
+		synchronized (this) {
+			if (null == executor) {
+				// stopped while scanning
+				return;
+			}
+			snapshot = built;
+			modified = null;
+		}
+		modifications = null;
+		modifiedListings = null;
+		lastRebuild = start;
+		lastRefresh = start;
+	}
+
+	/**
+	 * Returns the memory used by the index in bytes.
+	 *
+	 * @return the memory size (without object headers)
+	 */
+	long getMemorySize() {
+		final Snapshot current = snapshot;
+		final Snapshot currentModified = modified;
+		return (null != current ? current.getMemorySize() : 0) + (null != currentModified ? currentModified.getMemorySize() : 0);
+	}
+
+	/**
+	 * Returns the number of keys in the index.
+	 *
+	 * @return the number of keys
+	 */
+	int getSize() {
+		final Snapshot current = snapshot;
+		final Snapshot currentModified = modified;
+		return (null != current ? current.size() : 0) + (null != currentModified ? currentModified.size() : 0);
+	}
+
+	@Override
+	public void indexCommitted(final long version, final long lastModified) {
+		final ExecutorService current = executor;
+		if ((null == current) || !refreshPending.compareAndSet(false, true)) {
+			return;
+		}
+		current.execute(new Runnable() {
+			@Override
+			public void run() {
+				refreshPending.set(false);
+				try {
+					refresh();
+				} catch (final Exception e) {
+					// index not available; suggestions are a bit stale
+				}
+			}
+		});
+	}
+
+	/**
+	 * Indicates if the index has been built.
+	 *
+	 * @return <code>true</code> if suggestions are available
+	 */
+	boolean isReady() {
+		return null != snapshot;
+	}
+
+	/**
+	 * Refreshes the index after a commit.
+	 */
+	void refresh() throws InterruptedException, UnsupportedEncodingException {
+		final Snapshot current = snapshot;
+		final long now = System.currentTimeMillis();
+		if ((null == current) || ((null != modifications) && (modifications.size() > Math.max(1000, current.size() / 20))) || ((now - lastRebuild) >= rebuildInterval)) {
+			build();
+			return;
+		}
+		if (null == modifiedField) {
+			return;
+		}
+
+		final ISolrQueryExecutor queryExecutor = services.findQueryExecutor();
+		if (null == queryExecutor) {
+			return;
+		}
+		final SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'", Locale.US);
+		format.setTimeZone(TimeZone.getTimeZone("UTC"));
+		if (null == modifications) {
+			modifications = new Builder();
+			modifiedListings = new HashSet<String>();
+		}
+		final int count = scan(queryExecutor, modifiedField + ":[" + format.format(new Date(lastRefresh)) + " TO *]", modifications, modifiedListings);
+		lastRefresh = now;
+		if (count > 0) {
+			final Snapshot built = modifications.build();
+			synchronized (this) {
+				if (null != executor) {
+					modified = built;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Reads the suggestion fields of all (matching) listings.
+	 *
+	 * @param filter
+	 *            an additional filter (maybe <code>null</code>)
+	 * @param builder
+	 *            the builder to add the texts to
+	 * @param counted
+	 *            the ids of the listings whose weight has already been added
+	 *            to the builder; the texts of these listings are added without
+	 *            weight (maybe <code>null</code>)
+	 * @return the number of listings read
+	 */
+	private int scan(final ISolrQueryExecutor queryExecutor, final String filter, final Builder builder, final Set<String> counted) throws InterruptedException {
+		final int[] count = new int[1];
+		final String[] queryFields = new String[fields.length + (null != weightField ? 1 : 0)];
+		System.arraycopy(fields, 0, queryFields, 0, fields.length);
+		if (null != weightField) {
+			queryFields[fields.length] = weightField;
+		}
+		final String[] filters = null != filter ? new String[] { ListingFilters.EXCLUDE_VARIATIONS, filter } : new String[] { ListingFilters.EXCLUDE_VARIATIONS };
+		ListingScanner.scan(queryExecutor, queryFields, filters, batchSize, new ListingHandler() {
+			@Override
+			public void handle(final String id, final SolrDocument document) {
+				count[0]++;
+				final Object weightValue = null != weightField ? document.getFirstValue(weightField) : null;
+				final long weight = (null != counted) && !counted.add(id) ? 0 : weightValue instanceof Number ? Math.round(((Number) weightValue).doubleValue()) : null != weightValue ? NumberUtils.toLong(weightValue.toString(), 1) : 1;
+				for (final String field : fields) {
+					final Collection<Object> values = document.getFieldValues(field);
+					if (null == values) {
+						continue;
+					}
+					for (final Object value : values) {
+						if (null != value) {
+							builder.add(value.toString(), Math.max(0, weight));
+						}
+					}
+				}
+			}
+		});
+		return count[0];
+	}
+
+	/**
+	 * Builds the index in the background and starts refreshing it on commits.
+	 */
+	synchronized void start() {
+		if (null != executor) {
+			return;
+		}
+		executor = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+			@Override
+			public Thread newThread(final Runnable r) {
+				final Thread thread = new Thread(r, "CloudFree Suggest Index");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		refreshPending.set(true);
+		executor.execute(new Runnable() {
+			@Override
+			public void run() {
+				refreshPending.set(false);
+				try {
+					build();
+				} catch (final Exception e) {
+					// index not available; built on the next commit
+				}
+			}
+		});
+	}
+
+	/**
+	 * Stops refreshing and releases the index.
+	 */
+	synchronized void stop() {
+		if (null == executor) {
+			return;
+		}
+		executor.shutdownNow();
+		executor = null;
+		snapshot = null;
+		modified = null;
+	}
+
+	/**
+	 * Returns the heaviest texts with a word starting with a prefix.
+	 *
+	 * @param prefix
+	 *            the prefix as typed by the user
+	 * @param count
+	 *            the maximum number of suggestions
+	 * @return the suggestions in order of descending weight (maybe empty)
+	 */
+	List<Suggestion> suggest(final String prefix, final int count) {
+		final String key = normalize(prefix);
+		final Snapshot current = snapshot;
+		if ((key.length() == 0) || (null == current)) {
+			return new ArrayList<Suggestion>(0);
+		}
+		final byte[] keyBytes;
+		try {
+			keyBytes = key.getBytes("UTF-8");
+		} catch (final UnsupportedEncodingException e) {
+			throw new IllegalStateException("UTF-8 not available", e);
+		}
+		final List<Integer> texts = new ArrayList<Integer>(count);
+		current.suggest(keyBytes, count, texts);
+		final List<Suggestion> suggestions = new ArrayList<Suggestion>(count);
+		for (final Integer text : texts) {
+			suggestions.add(new Suggestion(current.getText(text.intValue()), current.getWeight(text.intValue())));
+		}
+
+		// merge recently modified listings (weights are not summed with the snapshot)
+		final Snapshot currentModified = modified;
+		if (null != currentModified) {
+			texts.clear();
+			currentModified.suggest(keyBytes, count, texts);
+			final int known = suggestions.size();
+			for (final Integer text : texts) {
+				final String modifiedText = currentModified.getText(text.intValue());
+				final String modifiedKey = normalize(modifiedText);
+				final int weight = currentModified.getWeight(text.intValue());
+				boolean found = false;
+				for (int i = 0; i < known; i++) {
+					final Suggestion suggestion = suggestions.get(i);
+					if (modifiedKey.equals(normalize(suggestion.text))) {
+						found = true;
+						if (weight > suggestion.weight) {
+							suggestions.set(i, new Suggestion(suggestion.text, weight));
+						}
+						break;
+					}
+				}
+				if (!found) {
+					suggestions.add(new Suggestion(modifiedText, weight));
+				}
+			}
+			sort(suggestions);
+			while (suggestions.size() > count) {
+				suggestions.remove(suggestions.size() - 1);
+			}
+		}
+		return suggestions;
+	}
+
+	private static void sort(final List<Suggestion> suggestions) {
+		// insertion sort by descending weight; the lists are short
+		for (int i = 1; i < suggestions.size(); i++) {
+			final Suggestion suggestion = suggestions.get(i);
+			int j = i;
+			while ((j > 0) && (suggestions.get(j - 1).weight < suggestion.weight)) {
+				suggestions.set(j, suggestions.get(j - 1));
+				j--;
+			}
+			suggestions.set(j, suggestion);
+		}
+	}
+}
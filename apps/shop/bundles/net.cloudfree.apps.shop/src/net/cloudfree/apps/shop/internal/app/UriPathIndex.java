@@ -0,0 +1,416 @@
+/*******************************************************************************
+ * Copyright (c) 2010 Gunnar Wagenknecht and others.
+ * All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html.
+ *
+ * Contributors:
+ *     Gunnar Wagenknecht - initial API and implementation
+ *******************************************************************************/
+package net.cloudfree.apps.shop.internal.app;
+
+import java.io.UnsupportedEncodingException;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import net.cloudfree.apps.shop.internal.app.ListingIndexMonitor.IndexCommitListener;
+import net.cloudfree.apps.shop.internal.app.ListingScanner.ListingHandler;
+
+import org.eclipse.gyrex.cds.model.documents.Document;
+import org.eclipse.gyrex.cds.model.solr.ISolrQueryExecutor;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.solr.common.SolrDocument;
+
+/**
+ * An in-memory index from listing URI paths to listing ids.
+ * <p>
+ * The index is a snapshot of sorted 64-bit hashes of all URI paths with the
+ * matching ids stored in a shared byte array. URI paths themselves are not
+ * kept; instead, callers must verify that the listing found for an id really
+ * has the requested URI path and {@link #remove(String) remove} the mapping
+ * otherwise. This makes hash collisions and stale mappings harmless.
+ * </p>
+ * <p>
+ * Memory: 8 bytes (hash) + 4 bytes (offset) + 1 byte (length) + the UTF-8
+ * length of the id per listing. For 5M listings with ids of 12 characters
+ * this is about 125 MB; during a rebuild the old snapshot and the growing new
+ * one (which over-allocates by up to 50%) are held at the same time.
+ * </p>
+ * <p>
+ * Between rebuilds, changes are kept in a small overlay map: mappings learned
+ * from URI path queries, removals and (if a modification time field is
+ * configured) listings modified since the last refresh, which is checked on
+ * every index commit. The snapshot is rebuilt in the background once the
+ * overlay grows too large or, without a modification time field, on commits
+ * at most once per rebuild interval. Overlay entries recorded while a rebuild
+ * is scanning are kept.
+ * </p>
+ */
+final class UriPathIndex implements IndexCommitListener {
+
+	/**
+	 * An overlay entry.
+	 */
+	private static final class Mapping {
+		/** the id (<code>null</code> if removed) */
+		final String id;
+		final long time;
+
+		Mapping(final String id) {
+			this.id = id;
+			time = System.currentTimeMillis();
+		}
+	}
+
+	/**
+	 * The immutable, sorted snapshot.
+	 */
+	private static final class Snapshot {
+		final long[] hashes;
+		final int[] offsets;
+		final byte[] ids;
+
+		Snapshot(final long[] hashes, final int[] offsets, final byte[] ids) {
+			this.hashes = hashes;
+			this.offsets = offsets;
+			this.ids = ids;
+		}
+
+		String getId(final long hash) {
+			final int index = Arrays.binarySearch(hashes, hash);
+			if (index < 0) {
+				return null;
+			}
+			final int offset = offsets[index];
+			try {
+				return new String(ids, offset + 1, ids[offset] & 0xff, "UTF-8");
+			} catch (final UnsupportedEncodingException e) {
+				throw new IllegalStateException("UTF-8 not available", e);
+			}
+		}
+
+		int size() {
+			return hashes.length;
+		}
+	}
+
+	/**
+	 * Collects the entries of a new snapshot.
+	 */
+	private static final class SnapshotBuilder {
+		private long[] hashes = new long[1024];
+		private int[] offsets = new int[1024];
+		private byte[] ids = new byte[16 * 1024];
+		private int size;
+		private int idsLength;
+
+		void add(final String uriPath, final String id) {
+			final byte[] idBytes;
+			try {
+				idBytes = id.getBytes("UTF-8");
+			} catch (final UnsupportedEncodingException e) {
+				throw new IllegalStateException("UTF-8 not available", e);
+			}
+			if (idBytes.length > 255) {
+				// too long; will be resolved using a query
+				return;
+			}
+			if (size == hashes.length) {
+				hashes = Arrays.copyOf(hashes, size + (size >> 1));
+				offsets = Arrays.copyOf(offsets, hashes.length);
+			}
+			if ((idsLength + 1 + idBytes.length) > ids.length) {
+				ids = Arrays.copyOf(ids, Math.max(idsLength + 1 + idBytes.length, ids.length + (ids.length >> 1)));
+			}
+			hashes[size] = hash(uriPath);
+			offsets[size] = idsLength;
+			ids[idsLength++] = (byte) idBytes.length;
+			System.arraycopy(idBytes, 0, ids, idsLength, idBytes.length);
+			idsLength += idBytes.length;
+			size++;
+		}
+
+		Snapshot build() {
+			final long[] sortedHashes = Arrays.copyOf(hashes, size);
+			final int[] sortedOffsets = Arrays.copyOf(offsets, size);
+			heapSort(sortedHashes, sortedOffsets);
+			return new Snapshot(sortedHashes, sortedOffsets, Arrays.copyOf(ids, idsLength));
+		}
+	}
+
+	/** default number of listings read per index query while building */
+	static final int DEFAULT_BATCH_SIZE = 5000;
+
+	/** default minimum time between full rebuilds in milliseconds */
+	static final long DEFAULT_REBUILD_INTERVAL = 600000L;
+
+	/** the fields read by a scan */
+	private static final String[] FIELDS = { Document.URI_PATH };
+
+	private static long hash(final String uriPath) {
+		// 64-bit FNV-1a
+		long hash = 0xcbf29ce484222325L;
+		for (int i = 0; i < uriPath.length(); i++) {
+			hash ^= uriPath.charAt(i);
+			hash *= 0x100000001b3L;
+		}
+		return hash;
+	}
+
+	private static void heapSort(final long[] keys, final int[] values) {
+		final int n = keys.length;
+		for (int i = (n / 2) - 1; i >= 0; i--) {
+			siftDown(keys, values, i, n);
+		}
+		for (int end = n - 1; end > 0; end--) {
+			swap(keys, values, 0, end);
+			siftDown(keys, values, 0, end);
+		}
+	}
+
+	private static void siftDown(final long[] keys, final int[] values, int root, final int n) {
+		while (true) {
+			int child = (2 * root) + 1;
+			if (child >= n) {
+				return;
+			}
+			if (((child + 1) < n) && (keys[child + 1] > keys[child])) {
+				child++;
+			}
+			if (keys[root] >= keys[child]) {
+				return;
+			}
+			swap(keys, values, root, child);
+			root = child;
+		}
+	}
+
+	private static void swap(final long[] keys, final int[] values, final int a, final int b) {
+		final long key = keys[a];
+		keys[a] = keys[b];
+		keys[b] = key;
+		final int value = values[a];
+		values[a] = values[b];
+		values[b] = value;
+	}
+
+	private final ListingServices services;
+	private final int batchSize;
+	private final long rebuildInterval;
+	private final String modifiedField;
+	private final ConcurrentHashMap<String, Mapping> overlay = new ConcurrentHashMap<String, Mapping>();
+	private final AtomicBoolean refreshPending = new AtomicBoolean();
+
+	private volatile Snapshot snapshot;
+	private volatile long lastRebuild;
+	private volatile long lastRefresh;
+	private volatile ExecutorService executor;
+
+	/**
+	 * Creates a new instance.
+	 *
+	 * @param services
+	 *            the services providing the index
+	 * @param batchSize
+	 *            the number of listings read per index query
+	 * @param rebuildInterval
+	 *            the minimum time between full rebuilds in milliseconds
+	 * @param modifiedField
+	 *            the index field holding the modification time of a listing
+	 *            (maybe <code>null</code> if there is none)
+	 */
+	UriPathIndex(final ListingServices services, final int batchSize, final long rebuildInterval, final String modifiedField) {
+		this.services = services;
+		this.batchSize = Math.max(100, batchSize);
+		this.rebuildInterval = rebuildInterval;
+		this.modifiedField = StringUtils.trimToNull(modifiedField);
+	}
+
+	/**
+	 * Builds a new snapshot of the whole index.
+	 */
+	void build() throws InterruptedException {
+		final ISolrQueryExecutor queryExecutor = services.findQueryExecutor();
+		if (null == queryExecutor) {
+			return;
+		}
+		final long start = System.currentTimeMillis();
+		final SnapshotBuilder builder = new SnapshotBuilder();
+		ListingScanner.scan(queryExecutor, FIELDS, new String[0], batchSize, new ListingHandler() {
+			@Override
+			public void handle(final String id, final SolrDocument document) {
+				final Object uriPath = document.getFirstValue(Document.URI_PATH);
+				if (null != uriPath) {
+					builder.add(uriPath.toString(), id);
+				}
+			}
+		});
+		final Snapshot built = builder.build();
+		synchronized (this) {
+			if (null == executor) {
+				// stopped while scanning
+				return;
+			}
+			snapshot = built;
+		}
+
+		// keep the mappings learned and removed while scanning
+		for (final Map.Entry<String, Mapping> entry : overlay.entrySet()) {
+			if (entry.getValue().time < start) {
+				overlay.remove(entry.getKey(), entry.getValue());
+			}
+		}
+		lastRebuild = start;
+		lastRefresh = start;
+	}
+
+	/**
+	 * Returns the id of the listing with the specified URI path.
+	 *
+	 * @param uriPath
+	 *            the URI path
+	 * @return the id (maybe <code>null</code> if unknown)
+	 */
+	String getId(final String uriPath) {
+		final Mapping mapping = overlay.get(uriPath);
+		if (null != mapping) {
+			return mapping.id;
+		}
+		final Snapshot current = snapshot;
+		return null != current ? current.getId(hash(uriPath)) : null;
+	}
+
+	@Override
+	public void indexCommitted(final long version, final long lastModified) {
+		final ExecutorService current = executor;
+		if ((null == current) || !refreshPending.compareAndSet(false, true)) {
+			return;
+		}
+		current.execute(new Runnable() {
+			@Override
+			public void run() {
+				refreshPending.set(false);
+				try {
+					refresh();
+				} catch (final Exception e) {
+					// index not available; the overlay and verification keep lookups correct
+				}
+			}
+		});
+	}
+
+	/**
+	 * Records a mapping learned from a URI path query.
+	 *
+	 * @param uriPath
+	 *            the URI path
+	 * @param id
+	 *            the listing id
+	 */
+	void put(final String uriPath, final String id) {
+		if (!id.equals(getId(uriPath))) {
+			overlay.put(uriPath, new Mapping(id));
+		}
+	}
+
+	/**
+	 * Refreshes the index after a commit.
+	 */
+	void refresh() throws InterruptedException {
+		final Snapshot current = snapshot;
+		final long now = System.currentTimeMillis();
+		if ((null == current) || (overlay.size() > Math.max(1000, current.size() / 10))) {
+			build();
+			return;
+		}
+		if (null == modifiedField) {
+			if ((now - lastRebuild) >= rebuildInterval) {
+				build();
+			}
+			return;
+		}
+
+		final ISolrQueryExecutor queryExecutor = services.findQueryExecutor();
+		if (null == queryExecutor) {
+			return;
+		}
+		final SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'", Locale.US);
+		format.setTimeZone(TimeZone.getTimeZone("UTC"));
+		ListingScanner.scan(queryExecutor, FIELDS, new String[] { modifiedField + ":[" + format.format(new Date(lastRefresh)) + " TO *]" }, batchSize, new ListingHandler() {
+			@Override
+			public void handle(final String id, final SolrDocument document) {
+				final Object uriPath = document.getFirstValue(Document.URI_PATH);
+				if (null != uriPath) {
+					put(uriPath.toString(), id);
+				}
+			}
+		});
+		lastRefresh = now;
+	}
+
+	/**
+	 * Removes a mapping which turned out to be wrong.
+	 *
+	 * @param uriPath
+	 *            the URI path
+	 */
+	void remove(final String uriPath) {
+		overlay.put(uriPath, new Mapping(null));
+	}
+
+	/**
+	 * Builds the index in the background and starts refreshing it on commits.
+	 */
+	synchronized void start() {
+		if (null != executor) {
+			return;
+		}
+		executor = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+			@Override
+			public Thread newThread(final Runnable r) {
+				final Thread thread = new Thread(r, "CloudFree URI Path Index");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		refreshPending.set(true);
+		executor.execute(new Runnable() {
+			@Override
+			public void run() {
+				refreshPending.set(false);
+				try {
+					build();
+				} catch (final Exception e) {
+					// index not available; built on the next commit
+				}
+			}
+		});
+	}
+
+	/**
+	 * Stops refreshing and releases the index.
+	 */
+	synchronized void stop() {
+		if (null == executor) {
+			return;
+		}
+		executor.shutdownNow();
+		executor = null;
+		snapshot = null;
+		overlay.clear();
+	}
+}
@@ -0,0 +1,218 @@
+/*******************************************************************************
+ * Copyright (c) 2010 Gunnar Wagenknecht and others.
+ * All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html.
+ *
+ * Contributors:
+ *     Gunnar Wagenknecht - initial API and implementation
+ *******************************************************************************/
+package net.cloudfree.apps.shop.internal.app;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.eclipse.gyrex.cds.model.IListing;
+import org.eclipse.gyrex.cds.model.documents.Document;
+import org.eclipse.gyrex.cds.model.solr.ISolrQueryExecutor;
+import org.eclipse.gyrex.cds.service.query.ListingQuery;
+import org.eclipse.gyrex.cds.service.query.ListingQuery.ResultDimension;
+import org.eclipse.gyrex.cds.service.result.IListingResult;
+
+import org.apache.solr.client.solrj.SolrQuery;
+import org.apache.solr.client.solrj.response.QueryResponse;
+import org.apache.solr.common.SolrDocument;
+import org.apache.solr.common.SolrDocumentList;
+
+/**
+ * Loads variations (and masters) for many listings with a single index query
+ * instead of one query per listing.
+ */
+final class VariationLoader {
+
+	/** default maximum number of variations per product */
+	static final int DEFAULT_MAX_PER_PRODUCT = 10;
+
+	/** the field holding the id of the master of a variation */
+	static final String PARENT_ID = "parentid";
+
+	/** maximum number of ids per query (stays below the boolean clause limit) */
+	static final int MAX_IDS_PER_QUERY = 500;
+
+	private static String createIdQuery(final String field, final Collection<String> ids) {
+		final StringBuilder query = new StringBuilder(field.length() + 3 + (ids.size() * 16));
+		query.append(field).append(":(");
+		boolean first = true;
+		for (final String id : ids) {
+			if (!first) {
+				query.append(" OR ");
+			}
+			query.append(ListingQuery.escapeQueryChars(id));
+			first = false;
+		}
+		query.append(')');
+		return query.toString();
+	}
+
+	/**
+	 * Configures a query to find listings by id.
+	 * <p>
+	 * The ids are sorted so that lookups of the same ids in a different order
+	 * produce identical queries (and thus share cache entries).
+	 * </p>
+	 *
+	 * @param query
+	 *            the query to configure
+	 * @param ids
+	 *            the ids (at most {@link #MAX_IDS_PER_QUERY})
+	 * @return the query
+	 */
+	static ListingQuery setIdFilter(final ListingQuery query, final Collection<String> ids) {
+		query.setFilterQueries(createIdQuery(Document.ID, new TreeSet<String>(ids)));
+		query.setResultDimension(ResultDimension.FULL);
+		query.setMaxResults(ids.size());
+		return query;
+	}
+
+	private final int maxPerProduct;
+
+	/**
+	 * Creates a new instance.
+	 *
+	 * @param maxPerProduct
+	 *            the maximum number of variations to load per product
+	 */
+	VariationLoader(final int maxPerProduct) {
+		this.maxPerProduct = maxPerProduct > 0 ? maxPerProduct : DEFAULT_MAX_PER_PRODUCT;
+	}
+
+	/**
+	 * Maps the listings of a result by their id.
+	 *
+	 * @param result
+	 *            the result of a query configured with
+	 *            {@link #setIdFilter(ListingQuery, Collection)} (maybe
+	 *            <code>null</code>)
+	 * @return a map of the found listings by id
+	 */
+	static Map<String, IListing> mapById(final IListingResult result) {
+		if (null == result) {
+			return Collections.emptyMap();
+		}
+
+		final IListing[] listings = result.getListings();
+		final Map<String, IListing> listingsById = new HashMap<String, IListing>(listings.length * 2);
+		for (final IListing listing : listings) {
+			listingsById.put(listing.getId(), listing);
+		}
+		return listingsById;
+	}
+
+	/**
+	 * Returns the maximum number of variations loaded per product.
+	 *
+	 * @return the maximum number of variations per product
+	 */
+	int getMaxPerProduct() {
+		return maxPerProduct;
+	}
+
+	/**
+	 * Loads the variations of the specified products.
+	 * <p>
+	 * All variations are fetched with one <code>parentid:(a OR b ...)</code>
+	 * query and grouped by their parent. In the rare case that one product has
+	 * so many variations that others would be crowded out of the result
+	 * window, the query is repeated for the remaining products only.
+	 * </p>
+	 *
+	 * @param queryExecutor
+	 *            the query executor
+	 * @param products
+	 *            the products
+	 * @param fields
+	 *            the fields to retrieve for each variation
+	 * @return the variations by product id (never <code>null</code>)
+	 */
+	Map<String, List<SolrDocument>> loadVariations(final ISolrQueryExecutor queryExecutor, final SolrDocumentList products, final String... fields) {
+		final Set<String> remaining = new LinkedHashSet<String>(products.size() * 2);
+		for (final SolrDocument product : products) {
+			final Object id = product.getFirstValue(Document.ID);
+			if (null != id) {
+				remaining.add(id.toString());
+			}
+		}
+		if (remaining.isEmpty()) {
+			return Collections.emptyMap();
+		}
+
+		final String[] queryFields = new String[fields.length + 1];
+		System.arraycopy(fields, 0, queryFields, 0, fields.length);
+		queryFields[fields.length] = PARENT_ID;
+
+		final Map<String, List<SolrDocument>> variationsByParent = new HashMap<String, List<SolrDocument>>(remaining.size() * 2);
+		final Set<Object> seen = new HashSet<Object>();
+		while (!remaining.isEmpty()) {
+			final List<String> batch = new ArrayList<String>(Math.min(remaining.size(), MAX_IDS_PER_QUERY));
+			for (final String id : remaining) {
+				if (batch.size() == MAX_IDS_PER_QUERY) {
+					break;
+				}
+				batch.add(id);
+			}
+
+			final int rows = batch.size() * maxPerProduct;
+			final SolrQuery query = new SolrQuery();
+			query.setQuery(createIdQuery(PARENT_ID, batch));
+			query.setFields(queryFields);
+			query.setRows(rows);
+			final QueryResponse response = queryExecutor.query(query);
+			final SolrDocumentList results = response.getResults();
+			if (null != results) {
+				for (final SolrDocument variation : results) {
+					final Object parentId = variation.getFirstValue(PARENT_ID);
+					if ((null == parentId) || !seen.add(variation.getFirstValue(Document.ID))) {
+						continue;
+					}
+					List<SolrDocument> variations = variationsByParent.get(parentId.toString());
+					if (null == variations) {
+						variations = new ArrayList<SolrDocument>(Math.min(maxPerProduct, 10));
+						variationsByParent.put(parentId.toString(), variations);
+					}
+					if (variations.size() < maxPerProduct) {
+						variations.add(variation);
+					}
+				}
+			}
+
+			if ((null == results) || (results.getNumFound() <= rows)) {
+				// all variations of the batch fit into the result window
+				remaining.removeAll(batch);
+			} else {
+				// the window was full; this implies that at least one product reached its limit
+				boolean progress = false;
+				for (final String id : batch) {
+					final List<SolrDocument> variations = variationsByParent.get(id);
+					if ((null != variations) && (variations.size() >= maxPerProduct)) {
+						progress |= remaining.remove(id);
+					}
+				}
+				if (!progress) {
+					// nothing completed (eg. variations already seen or without a matching parent); repeating the query would loop forever
+					remaining.removeAll(batch);
+				}
+			}
+		}
+		return variationsByParent;
+	}
+}